@@ -0,0 +1,32 @@
+#!/usr/bin/env bash
+
+# Creates an application class data sharing (AppCDS) archive for the REX server
+# jar. Starting the server with the archive avoids loading and verifying most
+# classes (sshd, MINA, jopt-simple, JCE) from the jar, which shortens the time
+# until the server is listening. Requires a JVM supporting
+# -XX:ArchiveClassesAtExit (JDK 13 or newer).
+#
+# usage: build-cds.sh <path/to/at.mduft.rex.jar> [archive]
+#
+# The archive is only valid for the exact JVM and jar it was created with, so
+# re-run this whenever either changes. Start the server with:
+#
+#   java -XX:SharedArchiveFile=<archive> -jar at.mduft.rex.jar --fast-startup ...
+#
+# On Windows, run the same java command line as below from a command prompt.
+
+JAR=${1:?usage: $0 <path/to/at.mduft.rex.jar> [archive]}
+ARCHIVE=${2:-$(dirname ${JAR})/rex.jsa}
+JAVA=${JAVA:-java}
+
+TMP=$(mktemp -d)
+trap "rm -rf ${TMP}" EXIT
+touch ${TMP}/pubkeys.txt
+
+# the training run performs a complete startup (including host key handling and
+# binding the port), then exits - dumping all loaded classes to the archive.
+${JAVA} -XX:ArchiveClassesAtExit="${ARCHIVE}" -jar "${JAR}" \
+    --pubkeys="${TMP}/pubkeys.txt" --hostkey="${TMP}/hostkey.ser" \
+    --port=0 --fast-startup --init-only || exit 1
+
+echo "created ${ARCHIVE}"
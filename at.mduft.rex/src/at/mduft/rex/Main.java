@@ -4,18 +4,51 @@
 package at.mduft.rex;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import joptsimple.ArgumentAcceptingOptionSpec;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import joptsimple.OptionSpecBuilder;
 
 import org.apache.sshd.SshServer;
+import org.apache.sshd.common.Channel;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.util.SecurityUtils;
+import org.apache.sshd.server.UserAuth;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.SessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.mduft.rex.auth.AuthTimingListener;
+import at.mduft.rex.auth.AuthorizedKeyCache;
+import at.mduft.rex.auth.CachingKeyPairProvider;
+import at.mduft.rex.auth.ConnectionRateLimiter;
+import at.mduft.rex.auth.RexUserAuthPublicKey;
+import at.mduft.rex.auth.SignatureVerifier;
+import at.mduft.rex.client.SessionPool;
+import at.mduft.rex.command.CpuPlacement;
+import at.mduft.rex.command.JobTable;
+import at.mduft.rex.command.ProcessLifecycle;
+import at.mduft.rex.command.ResourceAccounting;
+import at.mduft.rex.command.SimpleCommand;
+import at.mduft.rex.command.Staging;
+import at.mduft.rex.command.WorkerPool;
+import at.mduft.rex.router.Backend;
+import at.mduft.rex.router.BackendRouter;
+import at.mduft.rex.util.BufferPool;
+import at.mduft.rex.util.FileWatchHub;
+import at.mduft.rex.util.Metrics;
+import at.mduft.rex.util.SpoolingOutputStream;
+import at.mduft.rex.util.Trace;
+
 /**
  * Entry point for the REX server
  */
@@ -31,10 +64,56 @@ public class Main {
     /** high idle timeout (for master connections) - 60 minutes */
     private static final int IDLE_MASTER_TIMEOUT = 60 * 60 * 1000;
 
+    /** maximum number of distinct keys remembered by the authorization cache */
+    private static final int AUTH_CACHE_SIZE = 4096;
+
     private static final ArgumentAcceptingOptionSpec<Integer> OPT_PORT;
     private static final ArgumentAcceptingOptionSpec<File> OPT_PUBKEYS;
     private static final ArgumentAcceptingOptionSpec<String> OPT_USER;
     private static final ArgumentAcceptingOptionSpec<File> OPT_HOSTKEY;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_CONN_RATE;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_CONN_BURST;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_WATCH_DEBOUNCE;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_WATCH_POLL;
+    private static final OptionSpecBuilder OPT_FAST_STARTUP;
+    private static final OptionSpecBuilder OPT_INIT_ONLY;
+    private static final OptionSpecBuilder OPT_BUFFER_LEAKS;
+    private static final ArgumentAcceptingOptionSpec<File> OPT_USAGE_LOG;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_USAGE_SAMPLE;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_USAGE_TOP;
+    private static final ArgumentAcceptingOptionSpec<File> OPT_SCRATCH;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_STAGE_THREADS;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_WORKER_MAX;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_WORKER_IDLE;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_WORKER_REQUESTS;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_WORKER_GROWTH;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_SPOOL_MEMORY;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_SPOOL_MAX;
+    private static final ArgumentAcceptingOptionSpec<File> OPT_TRACE_FILE;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_COMMAND_THREADS;
+    private static final ArgumentAcceptingOptionSpec<File> OPT_JOB_DIR;
+    private static final ArgumentAcceptingOptionSpec<String> OPT_CPU_PLACEMENT;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_KILL_GRACE;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_JOB_MAX;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_JOB_TTL;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_COMMAND_TIMEOUT;
+    private static final ArgumentAcceptingOptionSpec<Double> OPT_TRACE_SAMPLE;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_TRACE_THRESHOLD;
+    private static final ArgumentAcceptingOptionSpec<Long> OPT_TRACE_MAX;
+    private static final ArgumentAcceptingOptionSpec<String> OPT_BACKENDS;
+    private static final ArgumentAcceptingOptionSpec<File> OPT_BACKEND_IDENTITY;
+    private static final ArgumentAcceptingOptionSpec<String> OPT_BACKEND_USER;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_BACKEND_SESSIONS;
+    private static final ArgumentAcceptingOptionSpec<String> OPT_TRANSPORT;
+    private static final ArgumentAcceptingOptionSpec<String> OPT_CIPHERS;
+    private static final ArgumentAcceptingOptionSpec<String> OPT_MACS;
+    private static final ArgumentAcceptingOptionSpec<String> OPT_COMPRESSION;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_NIO_WORKERS;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_SO_RCVBUF;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_SO_SNDBUF;
+    private static final ArgumentAcceptingOptionSpec<Boolean> OPT_TCP_NODELAY;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_WINDOW_SIZE;
+    private static final ArgumentAcceptingOptionSpec<Integer> OPT_PACKET_SIZE;
 
     static {
         PARSER = new OptionParser();
@@ -53,6 +132,152 @@ public class Main {
                 .acceptsAll(Arrays.asList("hostkey", "h"),
                         "Host key file, created if it does not exist").withRequiredArg()
                 .ofType(File.class).describedAs("hostkey-storage").required();
+        OPT_CONN_RATE = PARSER
+                .accepts("conn-rate",
+                        "Maximum sustained number of new connections per second from a single source, 0 to disable")
+                .withRequiredArg().ofType(Integer.class).describedAs("per-second").defaultsTo(0);
+        OPT_CONN_BURST = PARSER
+                .accepts("conn-burst", "Number of connections a single source may open at once")
+                .withRequiredArg().ofType(Integer.class).describedAs("count").defaultsTo(100);
+        OPT_WATCH_DEBOUNCE = PARSER
+                .accepts("watch-debounce",
+                        "Time a watched file (fex. pubkeys) must be unmodified before it is reloaded")
+                .withRequiredArg().ofType(Long.class).describedAs("millis").defaultsTo(500L);
+        OPT_WATCH_POLL = PARSER
+                .accepts("watch-poll",
+                        "Poll interval for watched files on file systems without change notification (CIFS, NFS)")
+                .withRequiredArg().ofType(Long.class).describedAs("millis").defaultsTo(2000L);
+        OPT_FAST_STARTUP = PARSER
+                .accepts("fast-startup",
+                        "Start listening before the host key is loaded/generated and do not register BouncyCastle (the JVM's own JCE provider is used)");
+        OPT_INIT_ONLY = PARSER
+                .accepts("init-only",
+                        "Initialize everything, including host key generation, then exit once the server listened. Use to pre-generate host keys and for class data sharing training runs");
+        OPT_BUFFER_LEAKS = PARSER
+                .accepts("buffer-leak-detection",
+                        "Log pooled stream buffers that are never returned to the pool. Slow, for testing only");
+        OPT_USAGE_LOG = PARSER
+                .accepts("usage-log",
+                        "File to append resource usage of each exec to (JSON lines, rolled over at 10MB)")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OPT_USAGE_SAMPLE = PARSER
+                .accepts("usage-sample", "Interval in which CPU time and memory of execs are sampled")
+                .withRequiredArg().ofType(Long.class).describedAs("millis").defaultsTo(1000L);
+        OPT_USAGE_TOP = PARSER
+                .accepts("usage-top", "Number of entries printed per table by the usage command")
+                .withRequiredArg().ofType(Integer.class).describedAs("count").defaultsTo(20);
+        OPT_SCRATCH = PARSER
+                .accepts("scratch",
+                        "Server local directory files of 'exec --stage-in/--stage-out' are staged to, kept as cache between execs")
+                .withRequiredArg().ofType(File.class).describedAs("dir")
+                .defaultsTo(new File(System.getProperty("java.io.tmpdir"), "rex-scratch"));
+        OPT_STAGE_THREADS = PARSER
+                .accepts("stage-threads", "Number of files copied in parallel when staging")
+                .withRequiredArg().ofType(Integer.class).describedAs("threads").defaultsTo(8);
+        OPT_WORKER_MAX = PARSER
+                .accepts("worker-max", "Maximum number of persistent workers for 'exec --worker'")
+                .withRequiredArg().ofType(Integer.class).describedAs("count")
+                .defaultsTo(Runtime.getRuntime().availableProcessors());
+        OPT_WORKER_IDLE = PARSER
+                .accepts("worker-idle-timeout", "Time after which an idle persistent worker is stopped")
+                .withRequiredArg().ofType(Long.class).describedAs("millis").defaultsTo(300000L);
+        OPT_WORKER_REQUESTS = PARSER
+                .accepts("worker-max-requests",
+                        "Number of requests after which a persistent worker is replaced")
+                .withRequiredArg().ofType(Integer.class).describedAs("count").defaultsTo(1000);
+        OPT_WORKER_GROWTH = PARSER
+                .accepts("worker-max-growth",
+                        "Growth of a persistent worker's resident memory since its first request after which it is replaced, 0 to disable")
+                .withRequiredArg().ofType(Long.class).describedAs("MB").defaultsTo(512L);
+        OPT_SPOOL_MEMORY = PARSER
+                .accepts("spool-memory",
+                        "Output of an exec buffered in memory per stream while the client is reading slower than the process writes, more is spooled to a temporary file")
+                .withRequiredArg().ofType(Integer.class).describedAs("kB").defaultsTo(1024);
+        OPT_SPOOL_MAX = PARSER
+                .accepts("spool-max",
+                        "Maximum size of an exec's output spool file per stream, the process is blocked when reached")
+                .withRequiredArg().ofType(Long.class).describedAs("MB").defaultsTo(1024L);
+        OPT_TRACE_FILE = PARSER
+                .accepts("trace-file",
+                        "File to append the spans of traced requests to (Chrome trace event JSON, for chrome://tracing or Perfetto)")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OPT_TRACE_SAMPLE = PARSER
+                .accepts("trace-sample", "Fraction of all requests to trace, 0 to 1")
+                .withRequiredArg().ofType(Double.class).describedAs("fraction").defaultsTo(0.0);
+        OPT_TRACE_THRESHOLD = PARSER
+                .accepts("trace-threshold", "Requests taking at least that long are always traced")
+                .withRequiredArg().ofType(Long.class).describedAs("millis").defaultsTo(1000L);
+        OPT_TRACE_MAX = PARSER
+                .accepts("trace-max", "Size of the trace file before it is rolled over")
+                .withRequiredArg().ofType(Long.class).describedAs("MB").defaultsTo(50L);
+        OPT_COMMAND_THREADS = PARSER
+                .accepts("command-threads",
+                        "Maximum number of path, stats, usage and health commands running at once, more are rejected")
+                .withRequiredArg().ofType(Integer.class).describedAs("threads").defaultsTo(64);
+        OPT_COMMAND_TIMEOUT = PARSER
+                .accepts("command-timeout",
+                        "Time after which a path, stats, usage or health command is aborted, 0 for no limit")
+                .withRequiredArg().ofType(Long.class).describedAs("millis").defaultsTo(30000L);
+        OPT_JOB_DIR = PARSER
+                .accepts("job-dir",
+                        "Server local directory the output of 'exec --detach' jobs is kept in, emptied on startup")
+                .withRequiredArg().ofType(File.class).describedAs("dir")
+                .defaultsTo(new File(System.getProperty("java.io.tmpdir"), "rex-jobs"));
+        OPT_JOB_MAX = PARSER
+                .accepts("job-max",
+                        "Maximum number of jobs kept, the oldest finished job is forgotten if exceeded")
+                .withRequiredArg().ofType(Integer.class).describedAs("count").defaultsTo(256);
+        OPT_JOB_TTL = PARSER
+                .accepts("job-ttl", "Time a finished job and its output are kept")
+                .withRequiredArg().ofType(Long.class).describedAs("minutes").defaultsTo(1440L);
+        OPT_CPU_PLACEMENT = PARSER
+                .accepts("cpu-placement",
+                        "Pin spawned processes to CPUs (Linux, needs taskset or numactl): 'off', 'node' (least loaded NUMA node), 'core' (least loaded single CPU, shared by all processes the command starts, so parallel builds run serialized) or the class name of a custom CpuPlacement.Strategy")
+                .withRequiredArg().describedAs("strategy").defaultsTo("off");
+        OPT_KILL_GRACE = PARSER
+                .accepts("kill-grace",
+                        "Time terminated processes get to exit before they are killed forcibly")
+                .withRequiredArg().ofType(Long.class).describedAs("millis").defaultsTo(5000L);
+        OPT_BACKENDS = PARSER
+                .accepts("backends",
+                        "Run as router: forward exec and path commands to these REX servers, optionally pinning each server's host key fingerprint")
+                .withRequiredArg().describedAs("host:port[=fingerprint],...")
+                .withValuesSeparatedBy(',');
+        OPT_BACKEND_IDENTITY = PARSER
+                .accepts("backend-identity", "Private key to authenticate at the backends with")
+                .requiredIf(OPT_BACKENDS).withRequiredArg().ofType(File.class)
+                .describedAs("file");
+        OPT_BACKEND_USER = PARSER
+                .accepts("backend-user", "User to authenticate at the backends as")
+                .withRequiredArg().describedAs("user").defaultsTo("rex");
+        OPT_BACKEND_SESSIONS = PARSER
+                .accepts("backend-sessions", "Number of SSH sessions kept open to each backend")
+                .withRequiredArg().ofType(Integer.class).describedAs("count").defaultsTo(2);
+        OPT_TRANSPORT = PARSER
+                .accepts("transport-profile",
+                        "SSH transport preset, one of " + TransportProfile.getPresetNames()
+                                + ". Single settings can be overridden with the options below")
+                .withRequiredArg().describedAs("profile").defaultsTo(TransportProfile.DEFAULT);
+        OPT_CIPHERS = PARSER.accepts("ciphers", "Allowed ciphers in order of preference")
+                .withRequiredArg().describedAs("cipher,...").withValuesSeparatedBy(',');
+        OPT_MACS = PARSER.accepts("macs", "Allowed MACs in order of preference")
+                .withRequiredArg().describedAs("mac,...").withValuesSeparatedBy(',');
+        OPT_COMPRESSION = PARSER
+                .accepts("compression",
+                        "Allowed compressions in order of preference (none, zlib, zlib@openssh.com)")
+                .withRequiredArg().describedAs("compression,...").withValuesSeparatedBy(',');
+        OPT_NIO_WORKERS = PARSER.accepts("nio-workers", "Number of NIO I/O threads")
+                .withRequiredArg().ofType(Integer.class).describedAs("threads");
+        OPT_SO_RCVBUF = PARSER.accepts("so-rcvbuf", "Socket receive buffer size")
+                .withRequiredArg().ofType(Integer.class).describedAs("bytes");
+        OPT_SO_SNDBUF = PARSER.accepts("so-sndbuf", "Socket send buffer size")
+                .withRequiredArg().ofType(Integer.class).describedAs("bytes");
+        OPT_TCP_NODELAY = PARSER.accepts("tcp-nodelay", "Disable Nagle's algorithm")
+                .withRequiredArg().ofType(Boolean.class).describedAs("true|false");
+        OPT_WINDOW_SIZE = PARSER.accepts("window-size", "SSH channel window size")
+                .withRequiredArg().ofType(Integer.class).describedAs("bytes");
+        OPT_PACKET_SIZE = PARSER.accepts("packet-size", "Maximum SSH channel packet size")
+                .withRequiredArg().ofType(Integer.class).describedAs("bytes");
         PARSER.acceptsAll(Arrays.asList("help", "?"), "show this help").forHelp();
     }
 
@@ -66,6 +291,8 @@ public class Main {
      *             in case of an unexpected error.
      */
     public static void main(String[] args) throws Exception {
+        long startNanos = System.nanoTime();
+
         // parse command line and print help in case we cannot.
         OptionSet opts;
         try {
@@ -81,19 +308,105 @@ public class Main {
             return;
         }
 
-        // setup the ssh server with some defaults and the options given on the command line.
+        SshServer server = startServer(opts, startNanos);
+
+        if (opts.has(OPT_INIT_ONLY)) {
+            log.info("initialization done, exiting");
+            server.stop(true);
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Starts a server in the current JVM, fex. for load testing. Passing port 0 binds to any free
+     * port, which can be queried using {@link SshServer#getPort()} afterwards.
+     * 
+     * @param args
+     *            command line arguments for the server, see {@link #main(String[])}.
+     * @return the started {@link SshServer}.
+     * @throws Exception
+     *             in case the arguments are invalid or the server cannot be started.
+     */
+    public static SshServer start(String... args) throws Exception {
+        return startServer(PARSER.parse(args), System.nanoTime());
+    }
+
+    /**
+     * Sets up the ssh server with some defaults and the given options, and starts it.
+     */
+    private static SshServer startServer(OptionSet opts, long startNanos) throws Exception {
         log.info("starting REX server");
-        SshServer server = SshServer.setUpDefaultServer();
+        boolean fastStartup = opts.has(OPT_FAST_STARTUP);
+        if (fastStartup) {
+            // BouncyCastle registration is by far the most expensive part of the setup and is not
+            // needed on current JVMs.
+            SecurityUtils.setRegisterBouncyCastle(false);
+        }
+        if (opts.has(OPT_BUFFER_LEAKS)) {
+            BufferPool.setLeakDetection(true);
+        }
+        ResourceAccounting.configure(opts.valueOf(OPT_USAGE_SAMPLE), opts.valueOf(OPT_USAGE_TOP),
+                opts.valueOf(OPT_USAGE_LOG));
+        Staging.configure(opts.valueOf(OPT_SCRATCH), opts.valueOf(OPT_STAGE_THREADS));
+        WorkerPool.configure(opts.valueOf(OPT_WORKER_MAX), opts.valueOf(OPT_WORKER_IDLE),
+                opts.valueOf(OPT_WORKER_REQUESTS), opts.valueOf(OPT_WORKER_GROWTH) * 1024);
+        SpoolingOutputStream.configure(opts.valueOf(OPT_SPOOL_MEMORY) * 1024,
+                opts.valueOf(OPT_SPOOL_MAX) * 1024 * 1024);
+        Trace.configure(opts.valueOf(OPT_TRACE_FILE), opts.valueOf(OPT_TRACE_MAX) * 1024 * 1024,
+                opts.valueOf(OPT_TRACE_SAMPLE), opts.valueOf(OPT_TRACE_THRESHOLD));
+        JobTable.configure(opts.valueOf(OPT_JOB_DIR), opts.valueOf(OPT_JOB_MAX),
+                TimeUnit.MINUTES.toMillis(opts.valueOf(OPT_JOB_TTL)));
+        CpuPlacement.configure(opts.valueOf(OPT_CPU_PLACEMENT));
+        ProcessLifecycle.configure(opts.valueOf(OPT_KILL_GRACE));
+        SimpleCommand.configure(opts.valueOf(OPT_COMMAND_THREADS),
+                opts.valueOf(OPT_COMMAND_TIMEOUT));
+        final SshServer server = SshServer.setUpDefaultServer();
+        List<NamedFactory<Channel>> channels = new ArrayList<>(server.getChannelFactories());
+        for (int i = 0; i < channels.size(); ++i) {
+            if ("session".equals(channels.get(i).getName())) {
+                channels.set(i, new TracingChannelSession.Factory());
+            }
+        }
+        server.setChannelFactories(channels);
+        Metrics.gauge("sessions.open", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return server.getActiveSessions().size();
+            }
+        });
 
         File pubKeyFile = opts.valueOf(OPT_PUBKEYS);
         if (!pubKeyFile.isFile()) {
             throw new IllegalArgumentException("argument not a file: " + pubKeyFile);
         }
-        PubKeyAuthenticator auth = new PubKeyAuthenticator(opts.valueOf(OPT_USER), pubKeyFile);
+        FileWatchHub watchHub = new FileWatchHub(opts.valueOf(OPT_WATCH_DEBOUNCE),
+                opts.valueOf(OPT_WATCH_POLL));
+        watchHub.start();
+
+        PubKeyAuthenticator auth = new PubKeyAuthenticator(opts.valueOf(OPT_USER), pubKeyFile,
+                watchHub);
         server.setPublickeyAuthenticator(auth);
+        AuthorizedKeyCache keyCache = new AuthorizedKeyCache(auth, AUTH_CACHE_SIZE);
+        SignatureVerifier verifier = new SignatureVerifier();
+        server.setUserAuthFactories(Arrays.<NamedFactory<UserAuth>> asList(
+                new RexUserAuthPublicKey.Factory(keyCache, verifier)));
 
-        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(opts.valueOf(OPT_HOSTKEY)
-                .getAbsolutePath()));
+        SessionFactory sessionFactory = new SessionFactory();
+        sessionFactory.addListener(new AuthTimingListener());
+        if (opts.valueOf(OPT_CONN_RATE) > 0) {
+            sessionFactory.addListener(new ConnectionRateLimiter(opts.valueOf(OPT_CONN_RATE),
+                    opts.valueOf(OPT_CONN_BURST)));
+        }
+        server.setSessionFactory(sessionFactory);
+
+        CachingKeyPairProvider hostKeys = new CachingKeyPairProvider(
+                new SimpleGeneratorHostKeyProvider(opts.valueOf(OPT_HOSTKEY).getAbsolutePath()));
+        if (fastStartup && !opts.has(OPT_INIT_ONLY)) {
+            hostKeys.preloadAsync();
+        } else {
+            hostKeys.loadKeys();
+        }
+        server.setKeyPairProvider(hostKeys);
 
         Map<String, String> props = server.getProperties();
         props.put(SshServer.AUTH_METHODS, "publickey");
@@ -102,9 +415,82 @@ public class Main {
 
         server.setShellFactory(new RexShellFactory());
         server.setCommandFactory(COMMAND_FACTORY);
+        if (opts.has(OPT_BACKENDS)) {
+            COMMAND_FACTORY.setRouter(createRouter(opts));
+        }
+
+        createTransportProfile(opts).apply(server);
 
         server.setPort(opts.valueOf(OPT_PORT));
         server.start();
+
+        long sinceMain = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        long sinceJvm = System.currentTimeMillis()
+                - ManagementFactory.getRuntimeMXBean().getStartTime();
+        log.info("listening on port " + server.getPort() + ", startup took " + sinceMain
+                + "ms (" + sinceJvm + "ms since JVM start)");
+        return server;
+    }
+
+    /**
+     * Creates the {@link BackendRouter} for the backends given on the command line. Sessions to
+     * the backends are opened lazily on the first request.
+     * 
+     * @param opts
+     *            the parsed command line
+     * @return the {@link BackendRouter} to forward requests with.
+     * @throws Exception
+     *             in case the identity cannot be loaded or a backend address is invalid.
+     */
+    private static BackendRouter createRouter(OptionSet opts) throws Exception {
+        KeyPair identity = SessionPool.loadIdentity(opts.valueOf(OPT_BACKEND_IDENTITY));
+        List<Backend> backends = new ArrayList<>();
+        for (String address : opts.valuesOf(OPT_BACKENDS)) {
+            backends.add(new Backend(address.trim(), opts.valueOf(OPT_BACKEND_USER), identity,
+                    opts.valueOf(OPT_BACKEND_SESSIONS)));
+        }
+        log.info("routing exec and path commands to " + backends);
+        return new BackendRouter(backends);
+    }
+
+    /**
+     * Creates the {@link TransportProfile} from the selected preset, refined by any single
+     * transport option given on the command line.
+     * 
+     * @param opts
+     *            the parsed command line
+     * @return the {@link TransportProfile} to apply to the server.
+     */
+    private static TransportProfile createTransportProfile(OptionSet opts) {
+        TransportProfile profile = TransportProfile.forPreset(opts.valueOf(OPT_TRANSPORT));
+        if (opts.has(OPT_CIPHERS)) {
+            profile.setCiphers(opts.valuesOf(OPT_CIPHERS));
+        }
+        if (opts.has(OPT_MACS)) {
+            profile.setMacs(opts.valuesOf(OPT_MACS));
+        }
+        if (opts.has(OPT_COMPRESSION)) {
+            profile.setCompressions(opts.valuesOf(OPT_COMPRESSION));
+        }
+        if (opts.has(OPT_NIO_WORKERS)) {
+            profile.setNioWorkers(opts.valueOf(OPT_NIO_WORKERS));
+        }
+        if (opts.has(OPT_SO_RCVBUF)) {
+            profile.setReceiveBufferSize(opts.valueOf(OPT_SO_RCVBUF));
+        }
+        if (opts.has(OPT_SO_SNDBUF)) {
+            profile.setSendBufferSize(opts.valueOf(OPT_SO_SNDBUF));
+        }
+        if (opts.has(OPT_TCP_NODELAY)) {
+            profile.setTcpNoDelay(opts.valueOf(OPT_TCP_NODELAY));
+        }
+        if (opts.has(OPT_WINDOW_SIZE)) {
+            profile.setWindowSize(opts.valueOf(OPT_WINDOW_SIZE));
+        }
+        if (opts.has(OPT_PACKET_SIZE)) {
+            profile.setPacketSize(opts.valueOf(OPT_PACKET_SIZE));
+        }
+        return profile;
     }
 
     public static RexCommandFactory getCommandFactory() {
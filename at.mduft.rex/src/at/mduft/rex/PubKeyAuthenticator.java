@@ -8,10 +8,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.WatchService;
 import java.security.PublicKey;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.sshd.common.util.Base64;
 import org.apache.sshd.common.util.Buffer;
@@ -21,7 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import at.mduft.rex.util.FileChangeListener;
-import at.mduft.rex.util.FileChangeWatch;
+import at.mduft.rex.util.FileWatchHub;
 
 /**
  * Public Key Authenticator that is capable of deciding whether a given public key is allowed to
@@ -31,49 +32,55 @@ import at.mduft.rex.util.FileChangeWatch;
 public class PubKeyAuthenticator implements PublickeyAuthenticator {
 
     private static final Logger log = LoggerFactory.getLogger(PubKeyAuthenticator.class);
-    private final List<PublicKey> signatures = new ArrayList<>();
-    private final FileChangeWatch watchService;
+
+    /**
+     * immutable index of all authorized keys. rebuilt completely on each reload and published
+     * using a single volatile write, so readers never see a partially loaded set.
+     */
+    private volatile KeyIndex signatures = new KeyIndex(Collections.<KeyId, PublicKey> emptyMap(), 0);
     private final String username;
 
     /**
-     * Creates an authenticator that reads allowed keys from a file. A {@link WatchService} is set
-     * up to track modifications on the given {@link File}. In case the {@link File} changes, it is
-     * reloaded from disc.
+     * Creates an authenticator that reads allowed keys from a file. The given {@link FileWatchHub}
+     * is used to track modifications on the given {@link File}. In case the {@link File} changes,
+     * it is reloaded from disc.
      * 
      * @param user
      *            the user that is allowed to connect using the given keys.
      * @param pubKeyFile
      *            the public key file. format is the same as OpenSSH's authorized_keys2 file.
+     * @param watchHub
+     *            the {@link FileWatchHub} that notifies about modifications of the file.
      * @throws IOException
-     *             in case of an error while setting up the {@link WatchService}.
+     *             in case of an error while registering the file with the {@link FileWatchHub}.
      */
-    public PubKeyAuthenticator(String user, File pubKeyFile) throws IOException {
+    public PubKeyAuthenticator(String user, File pubKeyFile, FileWatchHub watchHub)
+            throws IOException {
         username = user;
 
         Path toWatch = pubKeyFile.toPath();
-        watchService = new FileChangeWatch(toWatch);
-        watchService.addListener(new FileChangeListener() {
+        watchHub.watch(toWatch, new FileChangeListener() {
             @Override
             public void fileChanged(Path file) {
                 reLoad(file);
             }
         });
-        watchService.start();
 
         // initial load
         reLoad(toWatch);
     }
 
     /**
-     * Loads public keys from the given files, decodes them and remembers the {@link PublicKey}
-     * instance in a {@link List}.
+     * Loads public keys from the given files, decodes them and publishes a new immutable index of
+     * {@link PublicKey} instances. The currently active index stays in use until the new one is
+     * complete. If the file cannot be read, an empty index is published.
      * 
      * @param pubKeyFile
      *            the public key file to parse.
      */
-    private void reLoad(Path pubKeyFile) {
+    private synchronized void reLoad(Path pubKeyFile) {
         log.info("(re-)loading keys from " + pubKeyFile);
-        signatures.clear();
+        Map<KeyId, PublicKey> loaded = new HashMap<>();
 
         try (BufferedReader r = new BufferedReader(new FileReader(pubKeyFile.toFile()))) {
             String line;
@@ -85,15 +92,21 @@ public class PubKeyAuthenticator implements PublickeyAuthenticator {
                             continue;
                         }
                         Buffer b = new Buffer(Base64.decodeBase64(part.getBytes()));
-                        signatures.add(b.getRawPublicKey());
+                        PublicKey key = b.getRawPublicKey();
+                        loaded.put(new KeyId(key), key);
                     }
                 } catch (Exception e) {
                     log.error("failed to load a key: " + e);
                 }
             }
         } catch (IOException e) {
-            log.error("failed to load authorized keys", e);
+            // a deleted or unreadable file revokes all access.
+            log.error("failed to load authorized keys, rejecting all keys", e);
+            loaded.clear();
         }
+
+        signatures = new KeyIndex(Collections.unmodifiableMap(loaded), signatures.generation + 1);
+        log.info("loaded " + loaded.size() + " authorized keys");
     }
 
     @Override
@@ -103,13 +116,64 @@ public class PubKeyAuthenticator implements PublickeyAuthenticator {
             return false;
         }
 
-        for (PublicKey allowed : signatures) {
-            if (key.equals(allowed)) {
+        return signatures.keys.containsKey(new KeyId(key));
+    }
+
+    /**
+     * @return the generation of the currently active set of authorized keys. Changes whenever the
+     *         keys are reloaded, so decisions cached by callers can be invalidated.
+     */
+    public long getGeneration() {
+        return signatures.generation;
+    }
+
+    /**
+     * An immutable snapshot of authorized keys along with its generation.
+     */
+    private static final class KeyIndex {
+
+        final Map<KeyId, PublicKey> keys;
+        final long generation;
+
+        KeyIndex(Map<KeyId, PublicKey> keys, long generation) {
+            this.keys = keys;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Identifies a {@link PublicKey} by its algorithm and encoded form. The hash code is computed
+     * once, so lookups in the key index are cheap.
+     */
+    private static final class KeyId {
+
+        private final String algorithm;
+        private final byte[] encoded;
+        private final int hash;
+
+        KeyId(PublicKey key) {
+            this.algorithm = key.getAlgorithm();
+            this.encoded = key.getEncoded();
+            this.hash = 31 * algorithm.hashCode() + Arrays.hashCode(encoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
                 return true;
             }
+            if (!(obj instanceof KeyId)) {
+                return false;
+            }
+            KeyId other = (KeyId) obj;
+            return hash == other.hash && algorithm.equals(other.algorithm)
+                    && Arrays.equals(encoded, other.encoded);
         }
-
-        return false;
     }
 
 }
@@ -19,7 +19,14 @@ import org.slf4j.LoggerFactory;
 
 import at.mduft.rex.command.DefaultCommand;
 import at.mduft.rex.command.ExecCommand;
+import at.mduft.rex.command.HealthCommand;
+import at.mduft.rex.command.JobCommand;
 import at.mduft.rex.command.PathConvCommand;
+import at.mduft.rex.command.StatsCommand;
+import at.mduft.rex.command.UsageCommand;
+import at.mduft.rex.router.BackendRouter;
+import at.mduft.rex.router.ForwardCommand;
+import at.mduft.rex.util.Trace;
 
 /**
  * Static command factory for REX commands. Each supported command has to be added here.
@@ -58,12 +65,51 @@ public class RexCommandFactory implements CommandFactory {
         commands = new HashMap<>();
         commands.put("exec", ExecCommand.class);
         commands.put("path", PathConvCommand.class);
+        commands.put("stats", StatsCommand.class);
+        commands.put("usage", UsageCommand.class);
+        commands.put("health", HealthCommand.class);
+        commands.put("job", JobCommand.class);
+    }
+
+    /** commands that are forwarded to a backend if routing is enabled */
+    private static final List<String> routed = Arrays.asList("exec", "path");
+
+    private BackendRouter router;
+
+    /**
+     * Enables routing: exec and path commands are forwarded to the backends chosen by the given
+     * router instead of being executed locally. All other commands are still served locally,
+     * except for jobs: a job runs on a backend, where the router cannot query it, so
+     * <code>exec --detach</code> and <code>job</code> are rejected.
+     * 
+     * @param router
+     *            the router to use, <code>null</code> to execute everything locally.
+     */
+    public void setRouter(BackendRouter router) {
+        this.router = router;
     }
 
     @Override
+    @SuppressWarnings("try")
     public Command createCommand(String command) {
+        try (Trace.Span span = Trace.span("createCommand")) {
+            return create(command);
+        }
+    }
+
+    private Command create(String command) {
         String[] args = splitAndCleanCommand(command);
 
+        if (router != null && args.length > 0) {
+            if ("job".equals(args[0]) || ("exec".equals(args[0]) && isDetached(args))) {
+                return new DefaultCommand(new UnsupportedOperationException(
+                        "detached jobs are not supported when routing to backends"));
+            }
+            if (routed.contains(args[0])) {
+                return new ForwardCommand(router, command, args);
+            }
+        }
+
         Class<? extends Command> cls = commands.get(args[0]);
         if (cls == null) {
             return new DefaultCommand();
@@ -81,7 +127,8 @@ public class RexCommandFactory implements CommandFactory {
             // try without any parameter
             return cls.newInstance();
         } catch (Exception e) {
-            log.error("cannot create command " + cls.getName() + " for: " + Arrays.asList(args));
+            log.error("[" + Trace.currentId() + "] cannot create command " + cls.getName()
+                    + " for: " + Arrays.asList(args));
             Throwable current = e;
             String indent = "  ";
             while (current != null) {
@@ -96,6 +143,18 @@ public class RexCommandFactory implements CommandFactory {
         }
     }
 
+    private static boolean isDetached(String[] args) {
+        for (String arg : args) {
+            if ("--".equals(arg)) {
+                break;
+            }
+            if ("--detach".equals(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @return all registered commands
      */
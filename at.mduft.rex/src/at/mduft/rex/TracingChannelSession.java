@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex;
+
+import java.io.IOException;
+
+import org.apache.sshd.common.Channel;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.Session;
+import org.apache.sshd.common.session.ConnectionService;
+import org.apache.sshd.common.util.Buffer;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.channel.ChannelSession;
+
+import at.mduft.rex.auth.AuthTimingListener;
+import at.mduft.rex.util.Metrics;
+import at.mduft.rex.util.Trace;
+
+/**
+ * {@link ChannelSession} that records a {@link Trace} for the request sent on it. The trace
+ * starts when the channel is opened (or when the session was created, for the first request of a
+ * session) and ends when the channel is closed. While the command is created and started, the
+ * trace is attached to the handling thread.
+ * <p>
+ * If the client closes the channel while the command is still running (fex. the user pressed
+ * Ctrl-C), the command is destroyed right away instead of after sshd's grace period for the
+ * command to exit.
+ */
+public class TracingChannelSession extends ChannelSession {
+
+    private final Trace trace = Trace.begin();
+    private final Trace.Span open = trace.open("channel open");
+
+    /**
+     * Creates {@link TracingChannelSession}s, replaces sshd's {@link ChannelSession.Factory}.
+     */
+    public static class Factory implements NamedFactory<Channel> {
+
+        @Override
+        public String getName() {
+            return "session";
+        }
+
+        @Override
+        public Channel create() {
+            return new TracingChannelSession();
+        }
+    }
+
+    @Override
+    public void init(ConnectionService service, Session session, int id) {
+        super.init(service, session, id);
+        long[] auth = AuthTimingListener.claimAuthentication(session);
+        if (auth != null) {
+            trace.record("auth", auth[0], auth[1]);
+        }
+    }
+
+    @Override
+    protected boolean handleExec(Buffer buffer) throws IOException {
+        open.close();
+        int pos = buffer.rpos();
+        trace.annotate("command", buffer.getString());
+        buffer.rpos(pos);
+
+        long start = System.nanoTime();
+        Trace previous = Trace.attach(trace);
+        try {
+            return super.handleExec(buffer);
+        } finally {
+            Trace.attach(previous);
+            // time the I/O thread could not serve other sessions.
+            Metrics.latency("channel.exec_blocking").recordSince(start);
+        }
+    }
+
+    @Override
+    public void handleClose() throws IOException {
+        Command running = command;
+        if (running != null && gracefulState.get() == 0) {
+            // we did not close the channel, so the command has not exited yet.
+            running.destroy();
+        }
+        super.handleClose();
+    }
+
+    @Override
+    protected void postClose() {
+        super.postClose();
+        trace.finish();
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.service.IoProcessor;
+import org.apache.mina.core.service.SimpleIoProcessorPool;
+import org.apache.mina.transport.socket.SocketSessionConfig;
+import org.apache.mina.transport.socket.nio.NioProcessor;
+import org.apache.mina.transport.socket.nio.NioSession;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.Compression;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.compression.CompressionDelayedZlib;
+import org.apache.sshd.common.compression.CompressionNone;
+import org.apache.sshd.common.compression.CompressionZlib;
+import org.apache.sshd.common.future.CloseFuture;
+import org.apache.sshd.common.io.IoConnector;
+import org.apache.sshd.common.io.IoHandler;
+import org.apache.sshd.common.io.IoServiceFactory;
+import org.apache.sshd.common.io.IoServiceFactoryFactory;
+import org.apache.sshd.common.io.mina.MinaAcceptor;
+import org.apache.sshd.common.io.mina.MinaConnector;
+import org.apache.sshd.common.util.CloseableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Set of SSH transport settings that are applied to the {@link SshServer}. Each setting is
+ * optional, <code>null</code> means the library default is kept. Available presets:
+ * <dl>
+ * <dt>default</dt>
+ * <dd>keeps all library defaults.</dd>
+ * <dt>lan-throughput</dt>
+ * <dd>for trusted, fast networks and large outputs: cheap ciphers and MACs first, large socket
+ * buffers and a large channel window, Nagle enabled.</dd>
+ * <dt>low-latency</dt>
+ * <dd>for many small requests: TCP_NODELAY, AES-CTR with SHA1 MACs, one NIO worker per CPU.</dd>
+ * </dl>
+ * Presets can be refined by setting individual values afterwards.
+ */
+public class TransportProfile {
+
+    private static final Logger log = LoggerFactory.getLogger(TransportProfile.class);
+
+    /** name of the preset that keeps all library defaults */
+    public static final String DEFAULT = "default";
+
+    private final String name;
+    private List<String> ciphers;
+    private List<String> macs;
+    private List<String> compressions;
+    private Integer nioWorkers;
+    private Integer receiveBufferSize;
+    private Integer sendBufferSize;
+    private Boolean tcpNoDelay;
+    private Integer windowSize;
+    private Integer packetSize;
+
+    private TransportProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the names of all available presets.
+     */
+    public static List<String> getPresetNames() {
+        return Arrays.asList(DEFAULT, "lan-throughput", "low-latency");
+    }
+
+    /**
+     * Creates a {@link TransportProfile} initialized from the given preset.
+     *
+     * @param preset
+     *            the name of the preset, see {@link #getPresetNames()}.
+     * @return the {@link TransportProfile}, which may be further customized.
+     */
+    public static TransportProfile forPreset(String preset) {
+        TransportProfile p = new TransportProfile(preset);
+        int cpus = Runtime.getRuntime().availableProcessors();
+        switch (preset) {
+        case DEFAULT:
+            break;
+        case "lan-throughput":
+            p.ciphers = Arrays.asList("arcfour128", "aes128-ctr", "arcfour256", "aes256-ctr");
+            p.macs = Arrays.asList("hmac-md5", "hmac-sha1", "hmac-sha2-256");
+            p.compressions = Arrays.asList("none");
+            p.nioWorkers = cpus * 2;
+            p.receiveBufferSize = 1024 * 1024;
+            p.sendBufferSize = 1024 * 1024;
+            p.tcpNoDelay = false;
+            p.windowSize = 8 * 1024 * 1024;
+            break;
+        case "low-latency":
+            p.ciphers = Arrays.asList("aes128-ctr", "arcfour128", "aes256-ctr");
+            p.macs = Arrays.asList("hmac-sha1", "hmac-md5", "hmac-sha2-256");
+            p.compressions = Arrays.asList("none");
+            p.nioWorkers = cpus;
+            p.tcpNoDelay = true;
+            break;
+        default:
+            throw new IllegalArgumentException("unknown transport profile: " + preset
+                    + ", available: " + getPresetNames());
+        }
+        return p;
+    }
+
+    public void setCiphers(List<String> ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    public void setMacs(List<String> macs) {
+        this.macs = macs;
+    }
+
+    public void setCompressions(List<String> compressions) {
+        this.compressions = compressions;
+    }
+
+    public void setNioWorkers(Integer nioWorkers) {
+        this.nioWorkers = nioWorkers;
+    }
+
+    public void setReceiveBufferSize(Integer receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public void setSendBufferSize(Integer sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setWindowSize(Integer windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public void setPacketSize(Integer packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    /**
+     * Applies all settings to the given {@link SshServer}. Must be called before the server is
+     * started.
+     *
+     * @param server
+     *            the server to configure.
+     */
+    public void apply(SshServer server) {
+        if (ciphers != null) {
+            server.setCipherFactories(select("cipher", server.getCipherFactories(), ciphers));
+        }
+        if (macs != null) {
+            server.setMacFactories(select("mac", server.getMacFactories(), macs));
+        }
+        if (compressions != null) {
+            List<NamedFactory<Compression>> all = Arrays.<NamedFactory<Compression>> asList(
+                    new CompressionNone.Factory(), new CompressionZlib.Factory(),
+                    new CompressionDelayedZlib.Factory());
+            server.setCompressionFactories(select("compression", all, compressions));
+        }
+        // log what is actually in effect, not what was asked for.
+        ciphers = names(server.getCipherFactories());
+        macs = names(server.getMacFactories());
+        compressions = names(server.getCompressionFactories());
+
+        Map<String, String> props = server.getProperties();
+        putIfSet(props, FactoryManager.NIO_WORKERS, nioWorkers);
+        putIfSet(props, FactoryManager.WINDOW_SIZE, windowSize);
+        putIfSet(props, FactoryManager.MAX_PACKET_SIZE, packetSize);
+
+        if (tcpNoDelay != null || receiveBufferSize != null || sendBufferSize != null) {
+            // only MINA exposes socket options, so use it if any is set.
+            server.setIoServiceFactoryFactory(new SocketOptionsFactory());
+        }
+
+        log.info("transport profile " + this);
+    }
+
+    private static <T> List<String> names(List<NamedFactory<T>> factories) {
+        List<String> result = new ArrayList<>();
+        for (NamedFactory<T> f : factories) {
+            result.add(f.getName());
+        }
+        return result;
+    }
+
+    private static void putIfSet(Map<String, String> props, String key, Integer value) {
+        if (value != null) {
+            props.put(key, value.toString());
+        }
+    }
+
+    /**
+     * Selects the factories with the given names, in the given order, from the available ones.
+     */
+    private static <T> List<NamedFactory<T>> select(String what, List<NamedFactory<T>> available,
+            List<String> names) {
+        Map<String, NamedFactory<T>> byName = new LinkedHashMap<>();
+        for (NamedFactory<T> f : available) {
+            byName.put(f.getName(), f);
+        }
+
+        List<NamedFactory<T>> result = new ArrayList<>();
+        for (String n : names) {
+            NamedFactory<T> f = byName.get(n);
+            if (f == null) {
+                log.info(what + " '" + n + "' not available, ignoring. available: "
+                        + byName.keySet());
+                continue;
+            }
+            result.add(f);
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("none of the configured " + what
+                    + " algorithms is available: " + names);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public String toString() {
+        return "'" + name + "': ciphers=" + orDefault(ciphers) + ", macs=" + orDefault(macs)
+                + ", compression=" + orDefault(compressions) + ", nio-workers="
+                + orDefault(nioWorkers) + ", so-rcvbuf=" + orDefault(receiveBufferSize)
+                + ", so-sndbuf=" + orDefault(sendBufferSize) + ", tcp-nodelay="
+                + orDefault(tcpNoDelay) + ", window-size=" + orDefault(windowSize)
+                + ", packet-size=" + orDefault(packetSize);
+    }
+
+    private static String orDefault(Object value) {
+        return value == null ? "<default>" : value.toString();
+    }
+
+    /**
+     * Same as sshd's MINA service factory, but sets the socket options on the acceptor before it
+     * is bound. MINA applies them to each connection when accepting it, before any data is
+     * exchanged. Setting them once the SSH session exists would be too late for the receive buffer
+     * to have an effect on the TCP window.
+     */
+    private final class SocketOptionsFactory implements IoServiceFactoryFactory {
+
+        @Override
+        public IoServiceFactory create(final FactoryManager manager) {
+            String workers = manager.getProperties().get(FactoryManager.NIO_WORKERS);
+            final IoProcessor<NioSession> processor = new SimpleIoProcessorPool<>(
+                    NioProcessor.class, workers == null ? FactoryManager.DEFAULT_NIO_WORKERS
+                            : Integer.parseInt(workers));
+            return new IoServiceFactory() {
+                @Override
+                public IoConnector createConnector(IoHandler handler) {
+                    return new MinaConnector(manager, handler, processor);
+                }
+
+                @Override
+                public org.apache.sshd.common.io.IoAcceptor createAcceptor(IoHandler handler) {
+                    return new MinaAcceptor(manager, handler, processor) {
+                        @Override
+                        protected IoAcceptor createAcceptor() {
+                            IoAcceptor acceptor = super.createAcceptor();
+                            apply((SocketSessionConfig) acceptor.getSessionConfig());
+                            return acceptor;
+                        }
+                    };
+                }
+
+                @Override
+                public CloseFuture close(boolean immediately) {
+                    processor.dispose();
+                    return CloseableUtils.closed();
+                }
+            };
+        }
+
+        private void apply(SocketSessionConfig socket) {
+            if (tcpNoDelay != null) {
+                socket.setTcpNoDelay(tcpNoDelay);
+            }
+            if (receiveBufferSize != null) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+            if (sendBufferSize != null) {
+                socket.setSendBufferSize(sendBufferSize);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.auth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.sshd.common.Session;
+import org.apache.sshd.common.Session.AttributeKey;
+import org.apache.sshd.common.SessionListener;
+
+import at.mduft.rex.util.Metrics;
+
+/**
+ * {@link SessionListener} that records the time from connection to successful authentication of
+ * each session as {@code auth.time_to_authenticated}. The interval is also kept with the session,
+ * to be claimed by the trace of the session's first request. The number of connections still
+ * waiting for authentication is available as {@code auth.pending}.
+ */
+public class AuthTimingListener implements SessionListener {
+
+    /** start and end of the authentication, until claimed */
+    private static final AttributeKey<AtomicReference<long[]>> AUTHENTICATION = new AttributeKey<>();
+
+    private final ConcurrentMap<Session, Long> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new {@link AuthTimingListener}.
+     */
+    public AuthTimingListener() {
+        Metrics.gauge("auth.pending", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return pending.size();
+            }
+        });
+    }
+
+    @Override
+    public void sessionCreated(Session session) {
+        pending.put(session, System.nanoTime());
+    }
+
+    @Override
+    public void sessionEvent(Session session, Event event) {
+        if (event != Event.Authenticated) {
+            return;
+        }
+        Long start = pending.remove(session);
+        if (start != null) {
+            Metrics.latency("auth.time_to_authenticated").recordSince(start);
+            session.setAttribute(AUTHENTICATION, new AtomicReference<>(new long[] { start,
+                    System.nanoTime() }));
+        }
+    }
+
+    /**
+     * Claims the authentication interval of the given session. Only the first caller gets it,
+     * later requests on the same session did not wait for the authentication.
+     *
+     * @param session
+     *            the authenticated session
+     * @return start and end of the authentication as returned by {@link System#nanoTime()},
+     *         <code>null</code> if already claimed or unknown.
+     */
+    public static long[] claimAuthentication(Session session) {
+        AtomicReference<long[]> interval = session.getAttribute(AUTHENTICATION);
+        return interval == null ? null : interval.getAndSet(null);
+    }
+
+    @Override
+    public void sessionClosed(Session session) {
+        if (pending.remove(session) != null) {
+            Metrics.counter("auth.unauthenticated_closed").incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.auth;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import at.mduft.rex.PubKeyAuthenticator;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Caches positive authorization decisions by the raw SSH key blob sent from the client. A hit
+ * skips decoding the key and the lookup in the {@link PubKeyAuthenticator}. Entries are bound to
+ * the generation of the authorized keys they were validated against, so removing a key from the
+ * authorized keys file takes effect immediately.
+ */
+public class AuthorizedKeyCache {
+
+    private final ConcurrentMap<BlobId, Entry> cache = new ConcurrentHashMap<>();
+    private final PubKeyAuthenticator authenticator;
+    private final int maxEntries;
+
+    /**
+     * Creates a new {@link AuthorizedKeyCache}.
+     *
+     * @param authenticator
+     *            the {@link PubKeyAuthenticator} that makes the actual decisions.
+     * @param maxEntries
+     *            the maximum number of cached keys. The cache is reset when it grows beyond.
+     */
+    public AuthorizedKeyCache(PubKeyAuthenticator authenticator, int maxEntries) {
+        this.authenticator = authenticator;
+        this.maxEntries = maxEntries;
+
+        Metrics.gauge("auth.cache.size", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return cache.size();
+            }
+        });
+    }
+
+    /**
+     * @return the {@link PubKeyAuthenticator} backing this cache.
+     */
+    public PubKeyAuthenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * @param username
+     *            the user trying to log in
+     * @param blob
+     *            the raw SSH encoded public key
+     * @return the decoded {@link PublicKey} if it is known to be authorized for the user,
+     *         <code>null</code> otherwise.
+     */
+    public PublicKey lookup(String username, byte[] blob) {
+        Entry entry = cache.get(new BlobId(blob));
+        if (entry == null || entry.generation != authenticator.getGeneration()
+                || !entry.username.equals(username)) {
+            Metrics.counter("auth.cache.miss").incrementAndGet();
+            return null;
+        }
+        Metrics.counter("auth.cache.hit").incrementAndGet();
+        return entry.key;
+    }
+
+    /**
+     * Remembers a positive authorization decision.
+     *
+     * @param username
+     *            the user that was authorized
+     * @param blob
+     *            the raw SSH encoded public key
+     * @param key
+     *            the decoded {@link PublicKey}
+     * @param generation
+     *            the generation of authorized keys the decision was based on.
+     */
+    public void put(String username, byte[] blob, PublicKey key, long generation) {
+        if (cache.size() >= maxEntries) {
+            cache.clear();
+        }
+        cache.put(new BlobId(blob), new Entry(username, key, generation));
+    }
+
+    private static final class Entry {
+
+        final String username;
+        final PublicKey key;
+        final long generation;
+
+        Entry(String username, PublicKey key, long generation) {
+            this.username = username;
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+
+    private static final class BlobId {
+
+        private final byte[] blob;
+        private final int hash;
+
+        BlobId(byte[] blob) {
+            this.blob = blob;
+            this.hash = Arrays.hashCode(blob);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlobId)) {
+                return false;
+            }
+            BlobId other = (BlobId) obj;
+            return hash == other.hash && Arrays.equals(blob, other.blob);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.auth;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.common.KeyPairProvider;
+import org.apache.sshd.common.keyprovider.AbstractKeyPairProvider;
+
+/**
+ * {@link KeyPairProvider} that loads host keys once from a delegate and serves them without any
+ * locking afterwards. sshd's generating providers synchronize every lookup, which serializes the
+ * key exchange of all concurrently connecting clients.
+ */
+public class CachingKeyPairProvider extends AbstractKeyPairProvider {
+
+    private final AbstractKeyPairProvider delegate;
+    private volatile Iterable<KeyPair> keys;
+    private volatile String keyTypes;
+
+    /**
+     * @param delegate
+     *            the provider to load host keys from.
+     */
+    public CachingKeyPairProvider(AbstractKeyPairProvider delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Loads (and if required generates) the host keys on a background thread. Connections that
+     * arrive before the keys are ready wait for them during key exchange.
+     */
+    public void preloadAsync() {
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                loadKeys();
+                log.info("host keys ready after "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            }
+        }, "Host Key Loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    @Override
+    public Iterable<KeyPair> loadKeys() {
+        Iterable<KeyPair> result = keys;
+        if (result == null) {
+            result = delegate.loadKeys();
+            if (result.iterator().hasNext()) {
+                // don't remember failures, the next connection may try again.
+                keys = result;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getKeyTypes() {
+        String result = keyTypes;
+        if (result == null) {
+            result = super.getKeyTypes();
+            keyTypes = result;
+        }
+        return result;
+    }
+
+}
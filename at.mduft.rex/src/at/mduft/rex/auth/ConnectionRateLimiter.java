@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.auth;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.common.Session;
+import org.apache.sshd.common.SessionListener;
+import org.apache.sshd.common.session.AbstractSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.Metrics;
+
+/**
+ * {@link SessionListener} that limits the rate of new connections per source address using a
+ * token bucket. Connections exceeding the rate are closed right away, before any expensive key
+ * exchange or authentication happens, so a reconnect storm from a single host cannot starve
+ * others.
+ */
+public class ConnectionRateLimiter implements SessionListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionRateLimiter.class);
+
+    /** number of tracked sources that triggers removal of idle buckets */
+    private static final int PRUNE_THRESHOLD = 4096;
+
+    private final ConcurrentMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final double ratePerNano;
+    private final int burst;
+
+    /**
+     * Creates a new {@link ConnectionRateLimiter}.
+     *
+     * @param perSecond
+     *            the sustained number of new connections per second allowed for each source.
+     * @param burst
+     *            the number of connections a source may open at once.
+     */
+    public ConnectionRateLimiter(int perSecond, int burst) {
+        this.ratePerNano = perSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+    }
+
+    @Override
+    public void sessionCreated(Session session) {
+        if (!(session instanceof AbstractSession)) {
+            return;
+        }
+        SocketAddress remote = ((AbstractSession) session).getIoSession().getRemoteAddress();
+        if (!(remote instanceof InetSocketAddress)) {
+            return;
+        }
+
+        if (!tryAcquire(((InetSocketAddress) remote).getAddress())) {
+            Metrics.counter("auth.ratelimit.rejected").incrementAndGet();
+            log.debug("connection rate exceeded for " + remote + ", closing");
+            session.close(true);
+        }
+    }
+
+    @Override
+    public void sessionEvent(Session session, Event event) {
+        // nothing
+    }
+
+    @Override
+    public void sessionClosed(Session session) {
+        // nothing
+    }
+
+    private boolean tryAcquire(InetAddress source) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(source);
+        if (bucket == null) {
+            if (buckets.size() > PRUNE_THRESHOLD) {
+                prune(now);
+            }
+            Bucket fresh = new Bucket(burst, now);
+            bucket = buckets.putIfAbsent(source, fresh);
+            if (bucket == null) {
+                bucket = fresh;
+            }
+        }
+        return bucket.take(now);
+    }
+
+    /**
+     * Removes all buckets that have been refilled completely, as they are equivalent to a fresh
+     * one.
+     */
+    private void prune(long now) {
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+            if (it.next().isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private final class Bucket {
+
+        private double tokens;
+        private long last;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.last = now;
+        }
+
+        synchronized boolean take(long now) {
+            refill(now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - last) * ratePerNano);
+            last = now;
+        }
+    }
+
+}
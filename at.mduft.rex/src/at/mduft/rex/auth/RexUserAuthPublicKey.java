@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.auth;
+
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+import org.apache.sshd.common.KeyPairProvider;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.Session.AttributeKey;
+import org.apache.sshd.common.Signature;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.util.Buffer;
+import org.apache.sshd.common.util.KeyUtils;
+import org.apache.sshd.server.UserAuth;
+import org.apache.sshd.server.auth.AbstractUserAuth;
+import org.apache.sshd.server.auth.UserAuthPublicKey;
+
+import at.mduft.rex.PubKeyAuthenticator;
+
+/**
+ * Replacement for sshd's {@link UserAuthPublicKey} that takes the fast path for keys that have
+ * been authorized before (see {@link AuthorizedKeyCache}) and measures signature verifications
+ * with the {@link SignatureVerifier}. The protocol handling is the same
+ * as in the original class.
+ */
+public class RexUserAuthPublicKey extends AbstractUserAuth {
+
+    /** session attribute holding the fingerprint of the key the client authenticated with */
+    public static final AttributeKey<String> KEY_FINGERPRINT = new AttributeKey<>();
+
+    /**
+     * Creates {@link RexUserAuthPublicKey} instances sharing one cache and verifier.
+     */
+    public static class Factory implements NamedFactory<UserAuth> {
+
+        private final AuthorizedKeyCache cache;
+        private final SignatureVerifier verifier;
+
+        public Factory(AuthorizedKeyCache cache, SignatureVerifier verifier) {
+            this.cache = cache;
+            this.verifier = verifier;
+        }
+
+        @Override
+        public String getName() {
+            return "publickey";
+        }
+
+        @Override
+        public UserAuth create() {
+            return new RexUserAuthPublicKey(cache, verifier);
+        }
+    }
+
+    private final AuthorizedKeyCache cache;
+    private final SignatureVerifier verifier;
+
+    RexUserAuthPublicKey(AuthorizedKeyCache cache, SignatureVerifier verifier) {
+        this.cache = cache;
+        this.verifier = verifier;
+    }
+
+    @Override
+    protected Boolean doAuth(Buffer buffer, boolean init) throws Exception {
+        if (!init) {
+            throw new IllegalStateException();
+        }
+        boolean hasSig = buffer.getBoolean();
+        String alg = buffer.getString();
+
+        int oldLim = buffer.wpos();
+        int oldPos = buffer.rpos();
+        int len = buffer.getInt();
+        byte[] blob = new byte[len];
+        System.arraycopy(buffer.array(), buffer.rpos(), blob, 0, len);
+
+        PublicKey key = cache.lookup(username, blob);
+        if (key == null) {
+            buffer.wpos(buffer.rpos() + len);
+            key = buffer.getRawPublicKey();
+            buffer.wpos(oldLim);
+
+            PubKeyAuthenticator authenticator = cache.getAuthenticator();
+            long generation = authenticator.getGeneration();
+            if (!authenticator.authenticate(username, key, session)) {
+                return false;
+            }
+            cache.put(username, blob, key, generation);
+        }
+        buffer.rpos(oldPos + 4 + len);
+
+        String keyAlg = (key instanceof RSAPublicKey) ? KeyPairProvider.SSH_RSA
+                : KeyPairProvider.SSH_DSS;
+        byte[] sig = hasSig ? buffer.getBytes() : null;
+
+        if (!hasSig) {
+            Buffer buf = session.createBuffer(SshConstants.SSH_MSG_USERAUTH_PK_OK);
+            buf.putString(alg);
+            buf.putRawBytes(buffer.array(), oldPos, 4 + len);
+            session.writePacket(buf);
+            return null;
+        }
+
+        Buffer buf = new Buffer();
+        buf.putString(session.getKex().getH());
+        buf.putByte(SshConstants.SSH_MSG_USERAUTH_REQUEST);
+        buf.putString(username);
+        buf.putString(service);
+        buf.putString("publickey");
+        buf.putByte((byte) 1);
+        buf.putString(keyAlg);
+        buf.putRawBytes(buffer.array(), oldPos, 4 + len);
+
+        Signature verif = NamedFactory.Utils.create(session.getFactoryManager()
+                .getSignatureFactories(), keyAlg);
+        verif.init(key, null);
+        if (!verifier.verify(verif, buf.getCompactData(), sig)) {
+            throw new Exception("Key verification failed");
+        }
+        session.setAttribute(KEY_FINGERPRINT, KeyUtils.getFingerPrint(key));
+        return true;
+    }
+
+}
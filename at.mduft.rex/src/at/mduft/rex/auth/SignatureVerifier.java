@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sshd.common.Signature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Verifies public key signatures and records how many run at once and how long they take.
+ * sshd's authentication is synchronous, so a verification runs on the I/O thread that received
+ * the request, and the number of I/O threads bounds the number of verifications running in
+ * parallel.
+ */
+public class SignatureVerifier {
+
+    private static final Logger log = LoggerFactory.getLogger(SignatureVerifier.class);
+
+    private final AtomicLong active = new AtomicLong();
+
+    /**
+     * Creates a new {@link SignatureVerifier}.
+     */
+    public SignatureVerifier() {
+        Metrics.gauge("auth.verify.active", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return active.get();
+            }
+        });
+    }
+
+    /**
+     * Verifies the given signature on the calling thread.
+     *
+     * @param verifier
+     *            the {@link Signature}, already initialized with the public key.
+     * @param data
+     *            the signed data
+     * @param signature
+     *            the signature to verify
+     * @return whether the signature is valid.
+     */
+    public boolean verify(Signature verifier, byte[] data, byte[] signature) {
+        long start = System.nanoTime();
+        active.incrementAndGet();
+        try {
+            verifier.update(data, 0, data.length);
+            return verifier.verify(signature);
+        } catch (Exception e) {
+            log.debug("signature verification failed: " + e);
+            return false;
+        } finally {
+            active.decrementAndGet();
+            Metrics.latency("auth.verify").recordSince(start);
+        }
+    }
+
+}
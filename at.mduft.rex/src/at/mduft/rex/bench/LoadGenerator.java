@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpecBuilder;
+
+import org.apache.sshd.ClientChannel;
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.client.future.AuthFuture;
+import org.apache.sshd.client.future.ConnectFuture;
+import org.apache.sshd.common.util.Base64;
+import org.apache.sshd.common.util.Buffer;
+import org.apache.sshd.common.util.OsUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.Main;
+import at.mduft.rex.util.LatencyRecorder;
+
+/**
+ * End-to-end load generator. Starts a REX server in-process on a loopback port with a throwaway
+ * key, and drives it using sshd's client with a configurable number of concurrent workers. Each
+ * request goes through the full stack: SSH handshake (unless sessions are reused), channel open,
+ * command creation, argument processing, process spawn, output pumping and exit.
+ * <p>
+ * The result is written as JSON: overall throughput, and per request kind the throughput and
+ * p50/p99/p999 latencies of each phase:
+ * <dl>
+ * <dt>connect</dt>
+ * <dd>TCP connect and SSH version exchange.</dd>
+ * <dt>auth</dt>
+ * <dd>key exchange and public key authentication.</dd>
+ * <dt>open</dt>
+ * <dd>channel open, which includes creating and starting the command on the server.</dd>
+ * <dt>first_byte</dt>
+ * <dd>from channel open until the first byte of output arrives.</dd>
+ * <dt>total</dt>
+ * <dd>the whole request, from connect (or channel open with reused sessions) until the channel
+ * is closed.</dd>
+ * </dl>
+ * Any arguments after <code>--</code> are passed to the server, fex.
+ * <code>-- --transport-profile=low-latency</code>.
+ */
+public class LoadGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final String USER = "rex";
+
+    /** maximum time a single request may take before it is counted as failed */
+    private static final long REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    /** The kinds of requests issued */
+    enum Kind {
+        EXEC_SMALL("exec-small"), EXEC_LARGE("exec-large"), PATH("path");
+
+        final String id;
+
+        private Kind(String id) {
+            this.id = id;
+        }
+
+        static Kind byId(String id) {
+            for (Kind k : values()) {
+                if (k.id.equals(id)) {
+                    return k;
+                }
+            }
+            throw new IllegalArgumentException("unknown request kind: " + id + ", available: "
+                    + Arrays.toString(values()));
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    /** The measured phases of each request */
+    enum Phase {
+        CONNECT, AUTH, OPEN, FIRST_BYTE, TOTAL;
+
+        String id() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Map<Kind, KindStats> stats = new EnumMap<>(Kind.class);
+    private final Map<Kind, String> commands = new EnumMap<>(Kind.class);
+    private final List<Kind> mix = new ArrayList<>();
+    private final int concurrency;
+    private final boolean reuseSessions;
+    private final KeyPair identity;
+
+    private SshClient client;
+    private int port;
+
+    private LoadGenerator(int concurrency, boolean reuseSessions, KeyPair identity) {
+        this.concurrency = concurrency;
+        this.reuseSessions = reuseSessions;
+        this.identity = identity;
+        for (Kind k : Kind.values()) {
+            stats.put(k, new KindStats());
+        }
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args
+     *            command line arguments, use <code>--help</code> for details.
+     * @throws Exception
+     *             in case of an unexpected error.
+     */
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        ArgumentAcceptingOptionSpec<Integer> optConcurrency = parser
+                .accepts("concurrency", "Number of concurrently issued requests")
+                .withRequiredArg().ofType(Integer.class).describedAs("workers").defaultsTo(8);
+        ArgumentAcceptingOptionSpec<Integer> optRequests = parser
+                .accepts("requests", "Number of measured requests").withRequiredArg()
+                .ofType(Integer.class).describedAs("count").defaultsTo(2000);
+        ArgumentAcceptingOptionSpec<Integer> optWarmup = parser
+                .accepts("warmup", "Number of requests issued before measuring")
+                .withRequiredArg().ofType(Integer.class).describedAs("count").defaultsTo(200);
+        ArgumentAcceptingOptionSpec<String> optMix = parser
+                .accepts("mix", "Weighted mix of request kinds (exec-small, exec-large, path)")
+                .withRequiredArg().describedAs("kind=weight,...").withValuesSeparatedBy(',')
+                .defaultsTo("exec-small=70", "exec-large=10", "path=20");
+        ArgumentAcceptingOptionSpec<Integer> optLargeLines = parser
+                .accepts("large-lines", "Number of output lines of each exec-large request")
+                .withRequiredArg().ofType(Integer.class).describedAs("lines").defaultsTo(50000);
+        OptionSpecBuilder optReuse = parser.accepts("reuse-sessions",
+                "Keep one authenticated session per worker (like ssh ControlMaster)");
+        ArgumentAcceptingOptionSpec<File> optOutput = parser
+                .accepts("output", "File to write the JSON report to instead of stdout")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        parser.acceptsAll(Arrays.asList("help", "?"), "show this help").forHelp();
+
+        OptionSet opts;
+        try {
+            opts = parser.parse(args);
+            if (opts.has("help")) {
+                System.out.println("usage: LoadGenerator [options] [-- server-options]");
+                parser.printHelpOn(System.out);
+                System.exit(0);
+            }
+        } catch (Exception e) {
+            log.info("error: " + e.toString());
+            System.exit(-1);
+            return;
+        }
+
+        Path work = Files.createTempDirectory("rex-load");
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        LoadGenerator lg = new LoadGenerator(opts.valueOf(optConcurrency), opts.has(optReuse),
+                generator.generateKeyPair());
+        lg.setMix(opts.valuesOf(optMix));
+        lg.setUpCommands(work, opts.valueOf(optLargeLines));
+
+        SshServer server = lg.startServer(work, opts.nonOptionArguments());
+        boolean failed;
+        try {
+            lg.startClient();
+            log.info("warming up with " + opts.valueOf(optWarmup) + " requests");
+            lg.run(opts.valueOf(optWarmup), false);
+            log.info("measuring " + opts.valueOf(optRequests) + " requests");
+            long nanos = lg.run(opts.valueOf(optRequests), true);
+
+            try (Writer w = opts.has(optOutput) ? new OutputStreamWriter(new FileOutputStream(
+                    opts.valueOf(optOutput)), StandardCharsets.UTF_8) : new OutputStreamWriter(
+                    System.out, StandardCharsets.UTF_8)) {
+                PrintWriter pw = new PrintWriter(w);
+                lg.report(pw, nanos);
+                pw.flush();
+            }
+            failed = lg.errors() > 0;
+        } finally {
+            lg.client.stop();
+            server.stop(true);
+            deleteAll(work.toFile());
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private void setMix(List<String> weights) {
+        for (String w : weights) {
+            String[] kv = w.split("=", 2);
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            Kind kind = Kind.byId(kv[0].trim());
+            for (int i = 0; i < weight; ++i) {
+                mix.add(kind);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("request mix is empty");
+        }
+    }
+
+    /**
+     * Prepares the command lines for all request kinds. The working directory is mapped to itself
+     * as client and server root.
+     */
+    private void setUpCommands(Path work, int largeLines) throws IOException {
+        Path large = work.resolve("large.txt");
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(large,
+                StandardCharsets.UTF_8))) {
+            for (int i = 0; i < largeLines; ++i) {
+                w.print("line " + i + " of the large output generator used for load testing\n");
+            }
+        }
+        Path sub = Files.createDirectories(work.resolve("src"));
+
+        String dir = work.toString();
+        String roots = "\"--roots=" + dir + ";" + dir + "\"";
+        String exec = "exec " + roots + " \"--pwd=" + dir + "\" -- ";
+        if (OsUtils.isWin32()) {
+            commands.put(Kind.EXEC_SMALL, exec + "cmd /c echo hello");
+            commands.put(Kind.EXEC_LARGE, exec + "cmd /c type \"" + large + "\"");
+        } else {
+            commands.put(Kind.EXEC_SMALL, exec + "echo hello");
+            commands.put(Kind.EXEC_LARGE, exec + "cat \"" + large + "\"");
+        }
+        commands.put(Kind.PATH, "path " + roots + " -e \"--to-server=" + sub + "," + large
+                + "\" \"--to-client=" + dir + "\"");
+    }
+
+    private SshServer startServer(Path work, List<?> extraArgs) throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.putRawPublicKey(identity.getPublic());
+        Path pubKeys = work.resolve("authorized_keys");
+        Files.write(pubKeys, ("ssh-rsa " + new String(Base64.encodeBase64(buffer.getCompactData()),
+                StandardCharsets.US_ASCII) + " load-generator\n").getBytes(StandardCharsets.US_ASCII));
+
+        List<String> args = new ArrayList<>();
+        args.add("--port=0");
+        args.add("--user=" + USER);
+        args.add("--pubkeys=" + pubKeys);
+        args.add("--hostkey=" + work.resolve("hostkey"));
+        for (Object a : extraArgs) {
+            args.add(a.toString());
+        }
+
+        SshServer server = Main.start(args.toArray(new String[args.size()]));
+        port = server.getPort();
+        return server;
+    }
+
+    private void startClient() {
+        client = SshClient.setUpDefaultClient();
+        client.start();
+    }
+
+    /**
+     * Issues the given number of requests using all workers.
+     *
+     * @param count
+     *            the number of requests
+     * @param record
+     *            whether to record latencies
+     * @return the wall clock time it took in nanoseconds.
+     */
+    private long run(int count, final boolean record) throws InterruptedException {
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; ++i) {
+            final Random random = new Random(i);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work(remaining, random, record);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "Load Worker " + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private void work(AtomicInteger remaining, Random random, boolean record) {
+        ClientSession session = null;
+        try {
+            while (remaining.getAndDecrement() > 0) {
+                Kind kind = mix.get(random.nextInt(mix.size()));
+                KindStats ks = stats.get(kind);
+                long start = System.nanoTime();
+                try {
+                    if (session == null) {
+                        session = connect(record ? ks : null);
+                    }
+                    boolean ok = execute(session, kind, record ? ks : null);
+                    if (!reuseSessions) {
+                        session.close(false).await();
+                        session = null;
+                    }
+                    if (record) {
+                        ks.phase(Phase.TOTAL).recordSince(start);
+                        ks.count.incrementAndGet();
+                        if (!ok) {
+                            ks.errors.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    log.debug("request failed: " + kind, e);
+                    if (record) {
+                        ks.count.incrementAndGet();
+                        ks.errors.incrementAndGet();
+                    }
+                    if (session != null) {
+                        session.close(true);
+                        session = null;
+                    }
+                }
+            }
+        } finally {
+            if (session != null) {
+                session.close(false);
+            }
+        }
+    }
+
+    private ClientSession connect(KindStats ks) throws Exception {
+        long start = System.nanoTime();
+        ConnectFuture connect = client.connect(USER, "127.0.0.1", port);
+        if (!connect.await(REQUEST_TIMEOUT) || !connect.isConnected()) {
+            throw new IOException("connect failed", connect.getException());
+        }
+        ClientSession session = connect.getSession();
+        long connected = System.nanoTime();
+
+        session.addPublicKeyIdentity(identity);
+        AuthFuture auth = session.auth();
+        if (!auth.await(REQUEST_TIMEOUT) || !auth.isSuccess()) {
+            session.close(true);
+            throw new IOException("authentication failed", auth.getException());
+        }
+        if (ks != null) {
+            ks.phase(Phase.CONNECT).record(TimeUnit.NANOSECONDS.toMicros(connected - start));
+            ks.phase(Phase.AUTH).recordSince(connected);
+        }
+        return session;
+    }
+
+    /**
+     * Executes a single request on the given session.
+     *
+     * @return whether the request succeeded.
+     */
+    private boolean execute(ClientSession session, Kind kind, KindStats ks) throws Exception {
+        long start = System.nanoTime();
+        ClientChannel channel = session.createExecChannel(commands.get(kind));
+        FirstByteStream out = new FirstByteStream();
+        FirstByteStream err = new FirstByteStream();
+        channel.setOut(out);
+        channel.setErr(err);
+        if (!channel.open().await(REQUEST_TIMEOUT)) {
+            channel.close(true);
+            throw new IOException("channel open timed out");
+        }
+        long opened = System.nanoTime();
+
+        int state = channel.waitFor(ClientChannel.CLOSED, REQUEST_TIMEOUT);
+        if ((state & ClientChannel.CLOSED) == 0) {
+            channel.close(true);
+            throw new IOException("request timed out");
+        }
+        if (ks != null) {
+            ks.phase(Phase.OPEN).record(TimeUnit.NANOSECONDS.toMicros(opened - start));
+            if (out.first != 0) {
+                ks.phase(Phase.FIRST_BYTE).record(
+                        TimeUnit.NANOSECONDS.toMicros(out.first - opened));
+            }
+            ks.bytes.addAndGet(out.bytes + err.bytes);
+        }
+
+        Integer exit = channel.getExitStatus();
+        if (exit == null || exit != 0 || out.bytes == 0) {
+            log.debug(kind + " failed: exit=" + exit + ", out=" + out.bytes + ", err=" + err.bytes);
+            return false;
+        }
+        return true;
+    }
+
+    private long errors() {
+        long result = 0;
+        for (KindStats ks : stats.values()) {
+            result += ks.errors.get();
+        }
+        return result;
+    }
+
+    private void report(PrintWriter w, long nanos) {
+        double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        long total = 0;
+        for (KindStats ks : stats.values()) {
+            total += ks.count.get();
+        }
+
+        w.print("{\n");
+        w.print("  \"concurrency\": " + concurrency + ",\n");
+        w.print("  \"reuse_sessions\": " + reuseSessions + ",\n");
+        w.print("  \"duration_ms\": " + TimeUnit.NANOSECONDS.toMillis(nanos) + ",\n");
+        w.print("  \"requests\": " + total + ",\n");
+        w.print("  \"errors\": " + errors() + ",\n");
+        w.print("  \"throughput_rps\": " + rate(total, seconds) + ",\n");
+        w.print("  \"kinds\": {");
+        String sep = "\n";
+        for (Map.Entry<Kind, KindStats> entry : stats.entrySet()) {
+            KindStats ks = entry.getValue();
+            if (ks.count.get() == 0) {
+                continue;
+            }
+            w.print(sep + "    \"" + entry.getKey() + "\": {\n");
+            w.print("      \"requests\": " + ks.count.get() + ",\n");
+            w.print("      \"errors\": " + ks.errors.get() + ",\n");
+            w.print("      \"output_bytes\": " + ks.bytes.get() + ",\n");
+            w.print("      \"throughput_rps\": " + rate(ks.count.get(), seconds) + ",\n");
+            w.print("      \"phases\": {");
+            String phaseSep = "\n";
+            for (Phase p : Phase.values()) {
+                LatencyRecorder r = ks.phase(p);
+                if (r.count() == 0) {
+                    continue;
+                }
+                w.print(phaseSep + "        \"" + p.id() + "\": { \"count\": " + r.count()
+                        + ", \"p50_us\": " + r.percentile(0.5) + ", \"p99_us\": "
+                        + r.percentile(0.99) + ", \"p999_us\": " + r.percentile(0.999)
+                        + ", \"max_us\": " + r.max() + " }");
+                phaseSep = ",\n";
+            }
+            w.print("\n      }\n    }");
+            sep = ",\n";
+        }
+        w.print("\n  }\n}\n");
+    }
+
+    private static String rate(long count, double seconds) {
+        return String.format("%.1f", seconds == 0 ? 0 : count / seconds);
+    }
+
+    private static void deleteAll(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteAll(c);
+            }
+        }
+        if (!f.delete()) {
+            log.debug("cannot delete " + f);
+        }
+    }
+
+    /**
+     * Statistics of a single request kind.
+     */
+    private static final class KindStats {
+
+        final Map<Phase, LatencyRecorder> phases = new EnumMap<>(Phase.class);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        KindStats() {
+            for (Phase p : Phase.values()) {
+                phases.put(p, new LatencyRecorder());
+            }
+        }
+
+        LatencyRecorder phase(Phase p) {
+            return phases.get(p);
+        }
+    }
+
+    /**
+     * Discards output, but remembers when the first byte arrived and how many bytes there were.
+     */
+    private static final class FirstByteStream extends OutputStream {
+
+        volatile long first;
+        volatile long bytes;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (first == 0 && len > 0) {
+                first = System.nanoTime();
+            }
+            bytes += len;
+        }
+    }
+
+}
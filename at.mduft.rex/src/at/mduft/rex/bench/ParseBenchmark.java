@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpecBuilder;
+
+import at.mduft.rex.util.RequestParser;
+
+/**
+ * Measures how parsing of exec requests scales with the number of concurrent sessions. Compares
+ * the shared {@link RequestParser} used by the server against the previous approach of a single
+ * joptsimple {@link OptionParser} guarded by a lock (joptsimple keeps parse state in the parser,
+ * so it cannot be shared otherwise).
+ * <p>
+ * For each thread count from 1 to the given maximum (default: number of processors), both
+ * parsers are run for a fixed time, printing the total throughput.
+ */
+public class ParseBenchmark {
+
+    private static final String[] REQUEST = { "exec",
+            "--roots=/srv/build;C:/build,/srv/tools;D:/tools", "--pwd=C:/build/module/src",
+            "--compress", "--rewrite-paths", "--", "cc", "-c", "-IC:/build/module/include",
+            "-DNDEBUG", "-o", "C:/build/module/obj/main.o", "C:/build/module/src/main.c" };
+
+    private static final long MEASURE_MILLIS = 2000;
+    private static final long WARMUP_MILLIS = 1000;
+
+    private interface Parser {
+        int parse(String[] args);
+    }
+
+    private static Parser requestParser() {
+        final RequestParser.Option roots = RequestParser.list("roots", "server-path;client-path",
+                "roots").required();
+        final RequestParser.Option pwd = RequestParser.value("pwd", "dir", "pwd").required();
+        RequestParser.Option compress = RequestParser.flag("compress", "compress");
+        RequestParser.Option rewrite = RequestParser.flag("rewrite", "rewrite-paths");
+        final RequestParser parser = new RequestParser(roots, pwd, compress, rewrite);
+        return new Parser() {
+            @Override
+            public int parse(String[] args) {
+                RequestParser.Result result = parser.parse(args, 1);
+                return result.valuesOf(roots).size() + result.valueOf(pwd).length()
+                        + result.nonOptions().size();
+            }
+        };
+    }
+
+    private static Parser lockedParser() {
+        final OptionParser parser = new OptionParser();
+        final ArgumentAcceptingOptionSpec<String> roots = parser.accepts("roots", "roots")
+                .withRequiredArg().withValuesSeparatedBy(',').required();
+        final ArgumentAcceptingOptionSpec<String> pwd = parser.accepts("pwd", "pwd")
+                .withRequiredArg().required();
+        @SuppressWarnings("unused")
+        OptionSpecBuilder compress = parser.accepts("compress", "compress");
+        @SuppressWarnings("unused")
+        OptionSpecBuilder rewrite = parser.accepts("rewrite-paths", "rewrite");
+        return new Parser() {
+            @Override
+            public int parse(String[] args) {
+                OptionSet result;
+                synchronized (parser) {
+                    result = parser.parse(Arrays.copyOfRange(args, 1, args.length));
+                }
+                return result.valuesOf(roots).size() + result.valueOf(pwd).length()
+                        + result.nonOptionArguments().size();
+            }
+        };
+    }
+
+    /**
+     * @return the number of parses per second with the given number of threads.
+     */
+    private static long run(final Parser parser, int threads, final long millis)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong sink = new AtomicLong();
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread("Parse Bench " + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    int result = 0;
+                    while ((count & 0xff) != 0 || System.nanoTime() < deadline[0]) {
+                        result += parser.parse(REQUEST);
+                        count++;
+                    }
+                    total.addAndGet(count);
+                    sink.addAndGet(result);
+                }
+            };
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + TimeUnit.MILLISECONDS.toNanos(millis);
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - begin;
+        if (sink.get() == 0) {
+            throw new IllegalStateException("nothing parsed");
+        }
+        return total.get() * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    /**
+     * @param args
+     *            optionally the maximum number of threads.
+     * @throws Exception
+     *             in case of an unexpected error.
+     */
+    public static void main(String[] args) throws Exception {
+        int max = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime()
+                .availableProcessors();
+        List<Parser> parsers = Arrays.asList(requestParser(), lockedParser());
+        for (Parser parser : parsers) {
+            run(parser, max, WARMUP_MILLIS);
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%8s %16s %16s %8s", "threads",
+                "shared ops/s", "locked ops/s", "ratio"));
+        for (int threads = 1; threads <= max; threads *= 2) {
+            long shared = run(parsers.get(0), threads, MEASURE_MILLIS);
+            long locked = run(parsers.get(1), threads, MEASURE_MILLIS);
+            System.out.println(String.format(Locale.ROOT, "%8d %16d %16d %8.2f", threads,
+                    shared, locked, (double) shared / locked));
+            if (threads < max && threads * 2 > max) {
+                threads = max / 2;
+            }
+        }
+    }
+
+}
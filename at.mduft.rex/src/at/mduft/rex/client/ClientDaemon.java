@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import joptsimple.ArgumentAcceptingOptionSpec;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpecBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.DaemonThreads;
+
+/**
+ * Client side daemon that keeps authenticated sessions to a REX server and executes requests of
+ * local launchers (see <code>client/rex-launch.c</code>) on them. This removes the per call cost
+ * of starting ssh and the wrapper scripts; each request only opens a new channel on an existing
+ * session.
+ */
+public class ClientDaemon {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientDaemon.class);
+
+    /**
+     * Starts the daemon and serves launcher requests until the process is terminated.
+     *
+     * @param args
+     *            command line arguments, use <code>--help</code> for details.
+     * @throws Exception
+     *             in case of an unexpected error.
+     */
+    public static void main(String[] args) throws Exception {
+        File rexDir = new File(System.getProperty("user.home"), ".rex");
+
+        OptionParser parser = new OptionParser();
+        ArgumentAcceptingOptionSpec<String> optServer = parser
+                .accepts("server", "The REX server to connect to").withRequiredArg()
+                .describedAs("host").required();
+        ArgumentAcceptingOptionSpec<Integer> optPort = parser
+                .accepts("port", "The REX server's port").withRequiredArg()
+                .ofType(Integer.class).describedAs("port").defaultsTo(9000);
+        ArgumentAcceptingOptionSpec<String> optUser = parser
+                .accepts("user", "User name to authenticate as").withRequiredArg()
+                .describedAs("username").defaultsTo("rex");
+        ArgumentAcceptingOptionSpec<File> optIdentity = parser
+                .accepts("identity", "Private key file (PEM format) to authenticate with")
+                .withRequiredArg().ofType(File.class).describedAs("keyfile")
+                .defaultsTo(new File(System.getProperty("user.home"), ".ssh/id_rsa"));
+        ArgumentAcceptingOptionSpec<String> optRoots = parser
+                .accepts("roots", "Root mappings, same as REX_ROOTS in rex-config.sh")
+                .withRequiredArg().describedAs("server-path;client-path,...").required();
+        ArgumentAcceptingOptionSpec<Integer> optSessions = parser
+                .accepts("sessions", "Number of sessions to keep open").withRequiredArg()
+                .ofType(Integer.class).describedAs("count").defaultsTo(2);
+        ArgumentAcceptingOptionSpec<File> optSocket = parser
+                .accepts("socket", "Unix domain socket launchers connect to").withRequiredArg()
+                .ofType(File.class).describedAs("path")
+                .defaultsTo(new File(rexDir, "daemon.sock"));
+        ArgumentAcceptingOptionSpec<File> optState = parser
+                .accepts("state", "File telling launchers where to connect to")
+                .withRequiredArg().ofType(File.class).describedAs("path")
+                .defaultsTo(new File(rexDir, "daemon"));
+        ArgumentAcceptingOptionSpec<String> optFingerprint = parser
+                .accepts("host-fingerprint",
+                        "MD5 fingerprint of the server's host key. Any key is accepted if not set")
+                .withRequiredArg().describedAs("xx:xx:...");
+        OptionSpecBuilder optTcp = parser.accepts("tcp",
+                "Use a loopback TCP socket even if Unix domain sockets are supported");
+        parser.acceptsAll(Arrays.asList("help", "?"), "show this help").forHelp();
+
+        OptionSet opts;
+        try {
+            opts = parser.parse(args);
+            if (opts.has("help")) {
+                parser.printHelpOn(System.out);
+                System.exit(0);
+            }
+        } catch (Exception e) {
+            log.info("error: " + e.toString());
+            System.exit(-1);
+            return;
+        }
+
+        KeyPair identity = SessionPool.loadIdentity(opts.valueOf(optIdentity));
+        final SessionPool pool = new SessionPool(opts.valueOf(optServer),
+                opts.valueOf(optPort), opts.valueOf(optUser), identity,
+                opts.valueOf(optSessions), opts.valueOf(optFingerprint));
+        try {
+            pool.connectAll();
+        } catch (IOException e) {
+            pool.close();
+            throw e;
+        }
+
+        final Path stateFile = opts.valueOf(optState).toPath().toAbsolutePath();
+        Files.createDirectories(stateFile.getParent());
+        final LocalEndpoint endpoint = LocalEndpoint.bind(
+                opts.valueOf(optSocket).toPath().toAbsolutePath(), opts.has(optTcp));
+        endpoint.writeState(stateFile);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("Daemon Shutdown") {
+            @Override
+            public void run() {
+                try {
+                    Files.deleteIfExists(stateFile);
+                } catch (IOException e) {
+                    log.debug("cannot delete " + stateFile, e);
+                }
+                endpoint.close();
+                pool.close();
+            }
+        });
+
+        serve(endpoint, opts.valueOf(optRoots), pool);
+    }
+
+    private static void serve(LocalEndpoint endpoint, String roots, SessionPool pool)
+            throws IOException {
+        ExecutorService executor = Executors.newCachedThreadPool(DaemonThreads
+                .numbered("Launcher"));
+
+        while (endpoint.getChannel().isOpen()) {
+            SocketChannel socket = endpoint.getChannel().accept();
+            executor.execute(new LauncherConnection(socket, endpoint.getToken(), roots, pool));
+        }
+    }
+
+}
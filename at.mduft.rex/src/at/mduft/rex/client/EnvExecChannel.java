@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.client;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.sshd.client.channel.ChannelExec;
+import org.apache.sshd.client.channel.ChannelSession;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.util.Buffer;
+
+/**
+ * Exec channel that transfers environment variables before the command, like
+ * <code>ssh -o SendEnv=*</code> does. sshd's {@link ChannelExec} has no support for this.
+ * <p>
+ * The caller is notified once the channel is closed, at which point the exit status is
+ * available.
+ */
+public class EnvExecChannel extends ChannelSession {
+
+    private final String command;
+    private final Map<String, String> env;
+    private final Runnable onClosed;
+
+    /**
+     * @param command
+     *            the command to execute
+     * @param env
+     *            environment variables to transfer
+     * @param onClosed
+     *            called once the channel has been closed.
+     */
+    public EnvExecChannel(String command, Map<String, String> env, Runnable onClosed) {
+        this.command = command;
+        this.env = env;
+        this.onClosed = onClosed;
+    }
+
+    @Override
+    protected void doOpen() throws IOException {
+        for (Map.Entry<String, String> entry : env.entrySet()) {
+            Buffer buffer = session.createBuffer(SshConstants.SSH_MSG_CHANNEL_REQUEST);
+            buffer.putInt(recipient);
+            buffer.putString("env");
+            buffer.putBoolean(false);
+            buffer.putString(entry.getKey());
+            buffer.putString(entry.getValue());
+            writePacket(buffer);
+        }
+
+        Buffer buffer = session.createBuffer(SshConstants.SSH_MSG_CHANNEL_REQUEST);
+        buffer.putInt(recipient);
+        buffer.putString("exec");
+        buffer.putBoolean(false);
+        buffer.putString(command);
+        writePacket(buffer);
+
+        super.doOpen();
+    }
+
+    /**
+     * Signals the end of input to the remote command.
+     *
+     * @throws IOException
+     *             in case the EOF cannot be sent.
+     */
+    @Override
+    public void sendEof() throws IOException {
+        getInvertedIn().flush();
+        super.sendEof();
+    }
+
+    @Override
+    protected void postClose() {
+        super.postClose();
+        onClosed.run();
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.client;
+
+import java.io.IOException;
+
+import org.apache.sshd.client.ClientFactoryManager;
+import org.apache.sshd.client.SessionFactory;
+import org.apache.sshd.client.session.ClientSessionImpl;
+import org.apache.sshd.common.io.IoSession;
+import org.apache.sshd.common.session.AbstractSession;
+import org.apache.sshd.common.session.ConnectionService;
+
+/**
+ * {@link SessionFactory} for sessions that can open {@link EnvExecChannel}s.
+ */
+public class ExecSessionFactory extends SessionFactory {
+
+    @Override
+    protected AbstractSession doCreateSession(IoSession ioSession) throws Exception {
+        return new ExecSession(client, ioSession);
+    }
+
+    /**
+     * Client session that allows registering custom channel implementations.
+     */
+    public static class ExecSession extends ClientSessionImpl {
+
+        ExecSession(ClientFactoryManager client, IoSession session) throws Exception {
+            super(client, session);
+        }
+
+        /**
+         * Registers the given channel with this session. The session must be authenticated.
+         *
+         * @param channel
+         *            the channel to register
+         * @return the registered channel, ready to be opened.
+         * @throws IOException
+         *             in case the channel cannot be registered.
+         */
+        public EnvExecChannel register(EnvExecChannel channel) throws IOException {
+            if (!(currentService instanceof ConnectionService)) {
+                throw new IOException("session not authenticated");
+            }
+            ((ConnectionService) currentService).registerChannel(channel);
+            return channel;
+        }
+    }
+
+}
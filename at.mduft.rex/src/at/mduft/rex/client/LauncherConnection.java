@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.client.future.OpenFuture;
+import org.apache.sshd.common.util.CloseableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.Metrics;
+import at.mduft.rex.util.WindowedPipe;
+
+/**
+ * Handles a single request of a launcher. Launcher and daemon exchange frames consisting of a
+ * single type byte, a 4 byte big endian payload length and the payload.
+ * <p>
+ * The launcher sends the token ({@link #TOKEN}), the request kind (<code>exec</code> or
+ * <code>path</code>, {@link #KIND}), its working directory ({@link #PWD}), any number of
+ * environment variables as <code>name=value</code> ({@link #ENV}) and arguments ({@link #ARG}),
+ * and finally {@link #START}. After that, standard input is forwarded using {@link #STDIN} frames,
+ * terminated by {@link #STDIN_EOF}.
+ * <p>
+ * The daemon answers with {@link #STDOUT} and {@link #STDERR} frames and finally {@link #EXIT},
+ * whose payload is the 4 byte exit status. Closing the connection early aborts the request.
+ * <p>
+ * Output is passed on through {@link WindowedPipe}s, so a launcher that does not read its
+ * connection throttles the remote command through the SSH flow control instead of blocking the
+ * pooled session shared with other requests.
+ */
+public class LauncherConnection implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(LauncherConnection.class);
+
+    static final byte TOKEN = 'T';
+    static final byte KIND = 'K';
+    static final byte PWD = 'P';
+    static final byte ENV = 'V';
+    static final byte ARG = 'A';
+    static final byte START = 'S';
+    static final byte STDIN = 'I';
+    static final byte STDIN_EOF = 'E';
+    static final byte STDOUT = 'O';
+    static final byte STDERR = 'R';
+    static final byte EXIT = 'X';
+
+    /** exit status reported if the request could not be executed */
+    private static final int FAILED = 255;
+
+    private static final int MAX_FRAME = 1024 * 1024;
+    private static final long OPEN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final SocketChannel socket;
+    private final String token;
+    private final String roots;
+    private final SessionPool pool;
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+    private ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+    private volatile LauncherChannel channel;
+    private volatile boolean finished;
+
+    /**
+     * @param socket
+     *            the connection to the launcher
+     * @param token
+     *            the token the launcher has to present
+     * @param roots
+     *            root mappings passed to the REX server
+     * @param pool
+     *            sessions to execute the request on.
+     */
+    public LauncherConnection(SocketChannel socket, String token, String roots, SessionPool pool) {
+        this.socket = socket;
+        this.token = token;
+        this.roots = roots;
+        this.pool = pool;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            openChannel(start);
+            forwardInput();
+        } catch (EOFException e) {
+            // launcher went away, abort the remote command. only a graceful close is sent to the
+            // server, an immediate one just drops the channel locally.
+            if (channel != null && !finished) {
+                log.debug("launcher disconnected, closing channel");
+                channel.close(false);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!finished) {
+                log.info("request failed: " + e);
+                fail("rex daemon: " + e.getMessage() + "\n");
+                if (channel != null) {
+                    channel.close(false);
+                }
+            }
+        } finally {
+            if (channel == null) {
+                close();
+            }
+        }
+    }
+
+    private void openChannel(final long start) throws IOException {
+        String kind = null;
+        String pwd = null;
+        Map<String, String> env = new LinkedHashMap<>();
+        List<String> args = new ArrayList<>();
+
+        if (readFrame() != TOKEN || !token.equals(payloadString())) {
+            throw new IOException("invalid token");
+        }
+        for (byte type = readFrame(); type != START; type = readFrame()) {
+            switch (type) {
+            case KIND:
+                kind = payloadString();
+                break;
+            case PWD:
+                pwd = payloadString();
+                break;
+            case ENV:
+                String var = payloadString();
+                int eq = var.indexOf('=');
+                if (eq > 0) {
+                    env.put(var.substring(0, eq), var.substring(eq + 1));
+                }
+                break;
+            case ARG:
+                args.add(payloadString());
+                break;
+            default:
+                throw new IOException("unexpected frame '" + (char) type + "'");
+            }
+        }
+
+        channel = new LauncherChannel(buildCommand(kind, pwd, args), env, new Runnable() {
+            @Override
+            public void run() {
+                Metrics.latency("daemon.request").recordSince(start);
+            }
+        });
+
+        pool.acquire().register(channel);
+        OpenFuture open = channel.open();
+        if (!open.awaitUninterruptibly(OPEN_TIMEOUT) || !open.isOpened()) {
+            throw new IOException("cannot open channel", open.getException());
+        }
+        Metrics.latency("daemon.open").recordSince(start);
+    }
+
+    private String buildCommand(String kind, String pwd, List<String> args) throws IOException {
+        StringBuilder cmd = new StringBuilder();
+        if ("exec".equals(kind)) {
+            if (pwd == null) {
+                throw new IOException("missing working directory");
+            }
+            cmd.append("exec --roots=\"").append(roots).append("\" --pwd=\"").append(pwd)
+                    .append("\" --");
+        } else if ("path".equals(kind)) {
+            cmd.append("path --roots=\"").append(roots).append('"');
+        } else {
+            throw new IOException("unsupported request kind: " + kind);
+        }
+        // same quoting as rex-config.sh does for ssh.
+        for (String arg : args) {
+            cmd.append(" '").append(arg).append('\'');
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * Forwards standard input until the request has finished. Reading goes on after
+     * {@link #STDIN_EOF}, so a launcher disconnecting while the command is still running is noticed
+     * right away ({@link EOFException}), even if the command does not write any output.
+     */
+    private void forwardInput() throws IOException {
+        OutputStream in = channel.getInvertedIn();
+        boolean eof = false;
+        while (!finished) {
+            byte type = readFrame();
+            if (type == STDIN && !eof) {
+                in.write(payload.array(), 0, payload.limit());
+                in.flush();
+            } else if (type == STDIN_EOF && !eof) {
+                channel.sendEof();
+                eof = true;
+            } else {
+                throw new IOException("unexpected frame '" + (char) type + "'");
+            }
+        }
+    }
+
+    /**
+     * Reads a single frame, the payload is available in {@link #payload} afterwards.
+     *
+     * @return the frame type.
+     */
+    private byte readFrame() throws IOException {
+        header.clear();
+        readFully(header);
+        byte type = header.get(0);
+        int length = header.getInt(1);
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("invalid frame length " + length);
+        }
+        if (length > payload.capacity()) {
+            payload = ByteBuffer.allocate(length);
+        }
+        payload.clear();
+        payload.limit(length);
+        readFully(payload);
+        payload.flip();
+        return type;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private String payloadString() {
+        return new String(payload.array(), 0, payload.limit(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a frame. Data is passed to the socket without copying.
+     */
+    private synchronized void writeFrame(byte type, byte[] data, int off, int len)
+            throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(5);
+        head.put(type).putInt(len).flip();
+        ByteBuffer[] frame = { head, ByteBuffer.wrap(data, off, len) };
+        while (frame[1].hasRemaining()) {
+            socket.write(frame);
+        }
+    }
+
+    private void exit(Integer status) {
+        int code = status == null ? FAILED : status;
+        byte[] data = ByteBuffer.allocate(4).putInt(code).array();
+        try {
+            writeFrame(EXIT, data, 0, data.length);
+        } catch (IOException e) {
+            log.debug("cannot report exit status", e);
+        }
+        finished = true;
+        close();
+    }
+
+    private void fail(String message) {
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            writeFrame(STDERR, msg, 0, msg.length);
+        } catch (IOException e) {
+            log.debug("cannot report failure", e);
+        }
+        exit(null);
+    }
+
+    private void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("cannot close launcher connection", e);
+        }
+    }
+
+    /**
+     * Channel passing output on through {@link WindowedPipe}s instead of writing it to the
+     * launcher on the pooled session's I/O thread. The exit status is reported once all output
+     * has been written.
+     */
+    private final class LauncherChannel extends EnvExecChannel {
+
+        private final WindowedPipe stdout = new WindowedPipe(getLocalWindow(), "daemon.stdout");
+        private final WindowedPipe stderr = new WindowedPipe(getLocalWindow(), "daemon.stderr");
+
+        LauncherChannel(String command, Map<String, String> env, Runnable onClosed) {
+            super(command, env, onClosed);
+
+            final AtomicInteger open = new AtomicInteger(2);
+            Runnable closed = new Runnable() {
+                @Override
+                public void run() {
+                    if (open.decrementAndGet() == 0 && !finished) {
+                        exit(getExitStatus());
+                    }
+                }
+            };
+            stdout.setOnClosed(closed);
+            stderr.setOnClosed(closed);
+            stdout.connect(new FrameOutputStream(STDOUT));
+            stderr.connect(new FrameOutputStream(STDERR));
+        }
+
+        @Override
+        protected void doWriteData(byte[] data, int off, int len) throws IOException {
+            if (state.get() != CloseableUtils.AbstractCloseable.OPENED) {
+                return;
+            }
+            consume(stdout.offer(data, off, len));
+        }
+
+        @Override
+        protected void doWriteExtendedData(byte[] data, int off, int len) throws IOException {
+            consume(stderr.offer(data, off, len));
+        }
+
+        private void consume(int len) throws IOException {
+            if (len > 0) {
+                localWindow.consumeAndCheck(len);
+            }
+        }
+
+        @Override
+        protected void postClose() {
+            super.postClose();
+            stdout.finish();
+            stderr.finish();
+        }
+    }
+
+    /**
+     * Forwards output as frames of the given type. Written by the {@link WindowedPipe}s only.
+     */
+    private final class FrameOutputStream extends OutputStream {
+
+        private final byte type;
+
+        FrameOutputStream(byte type) {
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            try {
+                writeFrame(type, b, off, len);
+            } catch (IOException e) {
+                // the pipe discards the rest of the output, abort the remote command.
+                log.debug("launcher gone, discarding output", e);
+                channel.close(false);
+                throw e;
+            }
+        }
+    }
+
+}
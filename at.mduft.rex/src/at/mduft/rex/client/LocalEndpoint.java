@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The local socket launchers connect to. A Unix domain socket is used if the JVM supports it
+ * (Java 16 and newer), otherwise a TCP socket bound to the loopback interface.
+ * <p>
+ * Launchers find the socket using a state file, which contains the address on the first line (
+ * <code>unix:/path/to/socket</code> or <code>tcp:port</code>) and a random token on the second
+ * line. Launchers have to present the token before any request, so other local users cannot use
+ * the daemon even if they can reach the socket. The state file is only readable by the owner.
+ */
+public class LocalEndpoint {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalEndpoint.class);
+
+    private final ServerSocketChannel channel;
+    private final String address;
+    private final String token;
+    private final Path socketFile;
+
+    private LocalEndpoint(ServerSocketChannel channel, String address, Path socketFile) {
+        this.channel = channel;
+        this.address = address;
+        this.socketFile = socketFile;
+
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        this.token = hex.toString();
+    }
+
+    /**
+     * Binds the local socket.
+     *
+     * @param socketFile
+     *            the path of the Unix domain socket
+     * @param forceTcp
+     *            use a loopback TCP socket even if Unix domain sockets are supported.
+     * @return the bound {@link LocalEndpoint}.
+     * @throws IOException
+     *             in case the socket cannot be bound.
+     */
+    public static LocalEndpoint bind(Path socketFile, boolean forceTcp) throws IOException {
+        if (!forceTcp) {
+            ServerSocketChannel unix = bindUnix(socketFile);
+            if (unix != null) {
+                return new LocalEndpoint(unix, "unix:" + socketFile, socketFile);
+            }
+        }
+        ServerSocketChannel tcp = ServerSocketChannel.open();
+        tcp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = ((InetSocketAddress) tcp.getLocalAddress()).getPort();
+        return new LocalEndpoint(tcp, "tcp:" + port, null);
+    }
+
+    /**
+     * Binds a Unix domain socket using the Java 16 API via reflection.
+     *
+     * @return the bound channel or <code>null</code> if not supported by the JVM.
+     */
+    private static ServerSocketChannel bindUnix(Path socketFile) throws IOException {
+        ProtocolFamily unix;
+        SocketAddress address;
+        ServerSocketChannel result;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, socketFile);
+            result = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open",
+                    ProtocolFamily.class).invoke(null, unix);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            log.info("no Unix domain socket support, using loopback TCP: " + e);
+            return null;
+        }
+        Files.deleteIfExists(socketFile);
+        result.bind(address);
+        return result;
+    }
+
+    /**
+     * @return the bound channel to accept launcher connections from.
+     */
+    public ServerSocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the token launchers have to present.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Writes the state file atomically, readable only by the current user where supported.
+     *
+     * @param stateFile
+     *            the file to write.
+     * @throws IOException
+     *             in case writing fails.
+     */
+    public void writeState(Path stateFile) throws IOException {
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createFile(tmp,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tmp);
+            File f = tmp.toFile();
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+        }
+        Files.write(tmp, (address + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.info("listening on " + address + ", state in " + stateFile);
+    }
+
+    /**
+     * Closes the socket and removes the socket file.
+     */
+    public void close() {
+        try {
+            channel.close();
+            if (socketFile != null) {
+                Files.deleteIfExists(socketFile);
+            }
+        } catch (IOException e) {
+            log.debug("cannot close " + address, e);
+        }
+    }
+
+}
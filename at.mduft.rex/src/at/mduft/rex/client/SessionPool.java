@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+import org.apache.sshd.client.ServerKeyVerifier;
+import org.apache.sshd.client.future.AuthFuture;
+import org.apache.sshd.client.future.ConnectFuture;
+import org.apache.sshd.common.keyprovider.FileKeyPairProvider;
+import org.apache.sshd.common.util.KeyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.client.ExecSessionFactory.ExecSession;
+
+/**
+ * Fixed number of authenticated sessions to a REX server. Requests are spread round robin over
+ * the sessions, each session multiplexes any number of channels. Sessions that have been closed
+ * (fex. by the server's idle timeout or a network failure) are re-established on next use.
+ */
+public class SessionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionPool.class);
+
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final SshClient client;
+    private final String host;
+    private final int port;
+    private final String user;
+    private final KeyPair identity;
+    private final AtomicReferenceArray<ExecSession> sessions;
+    private final Object[] locks;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a new {@link SessionPool}. No connection is established until
+     * {@link #connectAll()} or {@link #acquire()} is called.
+     *
+     * @param host
+     *            the REX server
+     * @param port
+     *            the REX server's port
+     * @param user
+     *            the user to authenticate as
+     * @param identity
+     *            the key to authenticate with
+     * @param size
+     *            the number of sessions to keep.
+     * @param fingerprint
+     *            the MD5 fingerprint of the server's host key, any key is accepted if
+     *            <code>null</code>.
+     */
+    public SessionPool(String host, int port, String user, KeyPair identity, int size,
+            final String fingerprint) {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.identity = identity;
+        this.sessions = new AtomicReferenceArray<>(size);
+        this.locks = new Object[size];
+        for (int i = 0; i < size; ++i) {
+            locks[i] = new Object();
+        }
+
+        client = SshClient.setUpDefaultClient();
+        client.setSessionFactory(new ExecSessionFactory());
+        if (fingerprint != null) {
+            client.setServerKeyVerifier(new ServerKeyVerifier() {
+                @Override
+                public boolean verifyServerKey(ClientSession session, SocketAddress remote,
+                        PublicKey key) {
+                    String actual = KeyUtils.getFingerPrint(key);
+                    if (!fingerprint.equalsIgnoreCase(actual)) {
+                        log.error("host key of " + remote + " does not match: " + actual);
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        }
+        client.start();
+    }
+
+    /**
+     * Loads the key to authenticate with.
+     *
+     * @param keyFile
+     *            a private key file in PEM format.
+     * @return the loaded {@link KeyPair}.
+     */
+    public static KeyPair loadIdentity(File keyFile) {
+        if (!keyFile.isFile()) {
+            throw new IllegalArgumentException("argument not a file: " + keyFile);
+        }
+        Iterator<KeyPair> keys = new FileKeyPairProvider(
+                new String[] { keyFile.getAbsolutePath() }).loadKeys().iterator();
+        if (!keys.hasNext()) {
+            throw new IllegalArgumentException("cannot load private key from " + keyFile);
+        }
+        return keys.next();
+    }
+
+    /**
+     * Establishes all sessions up front, so the first requests don't pay for the handshake.
+     *
+     * @throws IOException
+     *             in case a session cannot be established.
+     */
+    public void connectAll() throws IOException {
+        for (int i = 0; i < sessions.length(); ++i) {
+            get(i);
+        }
+    }
+
+    /**
+     * @return an authenticated session to open channels on.
+     * @throws IOException
+     *             in case a new session is required but cannot be established.
+     */
+    public ExecSession acquire() throws IOException {
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % sessions.length();
+        return get(index);
+    }
+
+    private ExecSession get(int index) throws IOException {
+        ExecSession session = sessions.get(index);
+        if (session != null && !isClosed(session)) {
+            return session;
+        }
+        // only requests on this slot wait for the reconnect.
+        synchronized (locks[index]) {
+            session = sessions.get(index);
+            if (session == null || isClosed(session)) {
+                session = connect();
+                sessions.set(index, session);
+            }
+            return session;
+        }
+    }
+
+    private static boolean isClosed(ClientSession session) {
+        // does not block, authenticated sessions always satisfy the condition.
+        int state = session.waitFor(ClientSession.CLOSED | ClientSession.AUTHED, 0);
+        return (state & ClientSession.CLOSED) != 0;
+    }
+
+    private ExecSession connect() throws IOException {
+        long start = System.nanoTime();
+        ConnectFuture connect = client.connect(user, host, port);
+        if (!connect.awaitUninterruptibly(CONNECT_TIMEOUT) || !connect.isConnected()) {
+            throw new IOException("cannot connect to " + host + ":" + port,
+                    connect.getException());
+        }
+        ExecSession session = (ExecSession) connect.getSession();
+        session.addPublicKeyIdentity(identity);
+        AuthFuture auth = session.auth();
+        // the auth future is not completed if the session is closed during key exchange.
+        int state = session.waitFor(ClientSession.AUTHED | ClientSession.WAIT_AUTH
+                | ClientSession.CLOSED, CONNECT_TIMEOUT);
+        if ((state & ClientSession.AUTHED) == 0) {
+            session.close(true);
+            throw new IOException("authentication as " + user + " failed", auth.getException());
+        }
+        log.info("connected to " + host + ":" + port + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return session;
+    }
+
+    /**
+     * Closes all sessions.
+     */
+    public void close() {
+        for (int i = 0; i < sessions.length(); ++i) {
+            ExecSession session = sessions.getAndSet(i, null);
+            if (session != null) {
+                session.close(false);
+            }
+        }
+        client.stop();
+    }
+
+}
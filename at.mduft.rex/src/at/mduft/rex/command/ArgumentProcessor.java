@@ -8,7 +8,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -19,6 +21,8 @@ import org.apache.sshd.common.util.OsUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.mduft.rex.util.Trace;
+
 /**
  * The {@link ArgumentProcessor} is responsible for transforming a given command
  * from client form to server form, taking into account the
@@ -39,6 +43,12 @@ public class ArgumentProcessor {
 	 */
 	private final Map<String, String> rootMappings;
 
+	/** compiled patterns for {@link #transformPath(String, boolean)} by source root */
+	private final Map<String, Pattern> sourcePatterns = new HashMap<>();
+
+	/** translated response files in use by the command, see {@link ResponseFiles} */
+	private final List<String> responseFiles = new ArrayList<>();
+
 	/**
 	 * Creates a new {@link ArgumentProcessor} for the given client root and the
 	 * given environment.
@@ -50,6 +60,13 @@ public class ArgumentProcessor {
 		this.rootMappings = rootMappings;
 	}
 
+	/**
+	 * @return the mappings of client path (key) to server path (value).
+	 */
+	Map<String, String> getRootMappings() {
+		return rootMappings;
+	}
+
 	/**
 	 * @return whether the REX server is running on windows
 	 */
@@ -101,14 +118,20 @@ public class ArgumentProcessor {
 	 *            the target environment to copy processed variables to.
 	 * @return the transformed parts of the command line.
 	 */
+	@SuppressWarnings("try")
 	public String[] process(String[] original, String pwd,
 			Map<String, String> env, Map<String, String> targetEnv) {
-		processEnvironment(env, targetEnv);
+		try (Trace.Span span = Trace.span("env processing")) {
+			processEnvironment(env, targetEnv);
+		}
 
 		String[] cmds = new String[original.length];
 		for (int i = 0; i < cmds.length; i++) {
 			if ("$USER".equals(original[i])) {
 				cmds[i] = env.get("USER");
+			} else if (i > 0 && original[i].length() > 1
+					&& original[i].charAt(0) == '@') {
+				cmds[i] = processResponseFile(original[i], pwd);
 			} else {
 				cmds[i] = transformPath(original[i], true);
 			}
@@ -122,23 +145,81 @@ public class ArgumentProcessor {
 		}
 		
 		Path p = Paths.get(cmds[0]);
-		if(Files.isSymbolicLink(p)) {
-			try {
-				cmds[0] = Files.readSymbolicLink(p).toString();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		try (Trace.Span span = Trace.span("fs check", "symlink " + p)) {
+			if(Files.isSymbolicLink(p)) {
+				try {
+					cmds[0] = Files.readSymbolicLink(p).toString();
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
 			}
 		}
 		
 		File f = new File(cmds[0] + ".exe");
-		if(f.exists()) {
-			cmds[0] = f.toString();
+		try (Trace.Span span = Trace.span("fs check", "exists " + f)) {
+			if(f.exists()) {
+				cmds[0] = f.toString();
+			}
 		}
 		
 		return cmds;
 	}
 
+	/**
+	 * Translates the contents of a response file argument (
+	 * <code>@file</code>). The argument is replaced by a reference to a
+	 * translated server local copy, see {@link ResponseFiles}. Arguments that
+	 * do not name an existing file are translated like any other argument.
+	 * 
+	 * @param arg
+	 *            the argument, including the leading '@'.
+	 * @param pwd
+	 *            the current working directory, relative response files are
+	 *            resolved against it.
+	 * @return the transformed argument.
+	 */
+	@SuppressWarnings("try")
+	private String processResponseFile(String arg, String pwd) {
+		String client = arg.substring(1);
+		if (!isPathAbsolute(client)) {
+			client = pwd + "/" + client;
+		}
+		if (!isPathInJail(client)) {
+			return transformPath(arg, true);
+		}
+
+		File file = new File(transformPath(client, true));
+		try (Trace.Span span = Trace.span("fs check", "response file " + file)) {
+			if (!file.isFile()) {
+				return transformPath(arg, true);
+			}
+		}
+		try (Trace.Span span = Trace.span("response file", file.toString())) {
+			String translated = ResponseFiles.translate(this, file);
+			synchronized (responseFiles) {
+				responseFiles.add(translated);
+			}
+			return "@" + translated;
+		} catch (IOException e) {
+			log.warn("cannot translate response file " + file + ": " + e);
+			return transformPath(arg, true);
+		}
+	}
+
+	/**
+	 * Releases the translated response files of the processed command, once
+	 * the command no longer needs them.
+	 */
+	void releaseResponseFiles() {
+		synchronized (responseFiles) {
+			for (String translated : responseFiles) {
+				ResponseFiles.release(translated);
+			}
+			responseFiles.clear();
+		}
+	}
+
 	/**
 	 * Process the given environment, exchanging client side paths with server
 	 * side ones where applicable.
@@ -294,8 +375,15 @@ public class ArgumentProcessor {
 			String target = toServer ? mapping.getValue() + "/" : mapping
 					.getKey() + "/";
 
-			Pattern sourcePattern = Pattern.compile("(?<![/\\\\w\\d])"
-					+ Pattern.quote(source));
+			if (!arg.contains(source)) {
+				continue;
+			}
+			Pattern sourcePattern = sourcePatterns.get(source);
+			if (sourcePattern == null) {
+				sourcePattern = Pattern.compile("(?<![/\\\\w\\d])"
+						+ Pattern.quote(source));
+				sourcePatterns.put(source, sourcePattern);
+			}
 			Matcher matcher = sourcePattern.matcher(arg);
 			if (matcher.find()) {
 				String result = matcher.replaceFirst(Matcher
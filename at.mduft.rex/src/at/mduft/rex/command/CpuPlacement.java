@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.sshd.common.util.OsUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Pins spawned processes to CPUs on Linux, so parallel processes do not bounce between cores and
+ * NUMA nodes. A {@link Strategy} chooses the CPUs for each process based on how many processes
+ * are currently placed on each CPU. The occupancy is tracked here and released once the process
+ * exits, processes not started by REX are not taken into account.
+ * <p>
+ * Processes are started through <code>numactl</code> (when bound to a NUMA node and available)
+ * or <code>taskset</code>. Both exec the command, so the process keeps its pid. Placement is off
+ * by default, and disabled if neither tool is available.
+ */
+public final class CpuPlacement {
+
+    private static final Logger log = LoggerFactory.getLogger(CpuPlacement.class);
+
+    private static final File NODES = new File("/sys/devices/system/node");
+    private static final File STATUS = new File("/proc/self/status");
+
+    private static Strategy strategy;
+    private static List<List<Integer>> nodes = Collections.emptyList();
+    /** number of placed processes allowed to run on each CPU, indexed like {@link #cpus} */
+    private static int[] load;
+    private static int[] cpus;
+    private static String taskset;
+    private static String numactl;
+
+    private CpuPlacement() {
+    }
+
+    /**
+     * Chooses the CPUs for a new process.
+     */
+    public interface Strategy {
+
+        /**
+         * @param nodes
+         *            the CPUs of each NUMA node (a single node on machines without NUMA).
+         * @param load
+         *            number of running processes that may use each CPU, indexed by CPU number.
+         *            Must not be modified.
+         * @return the CPUs to pin the process to, <code>null</code> to not pin it.
+         */
+        Placement choose(List<List<Integer>> nodes, Map<Integer, Integer> load);
+    }
+
+    /**
+     * The CPUs a process is pinned to.
+     */
+    public static final class Placement {
+
+        private final int node;
+        private final List<Integer> cpus;
+
+        /**
+         * @param node
+         *            the NUMA node the process is bound to (memory is preferably allocated
+         *            there), -1 to only pin it to the given CPUs.
+         * @param cpus
+         *            the CPUs the process may run on.
+         */
+        public Placement(int node, List<Integer> cpus) {
+            this.node = node;
+            this.cpus = Collections.unmodifiableList(new ArrayList<>(cpus));
+        }
+
+        @Override
+        public String toString() {
+            return (node >= 0 ? "node " + node + " " : "") + "cpus " + cpuList(cpus);
+        }
+    }
+
+    /**
+     * Spreads processes over NUMA nodes: each process is bound to the node with the lowest load
+     * per CPU, and may use all of the node's CPUs.
+     */
+    public static final class NodeStrategy implements Strategy {
+
+        @Override
+        public Placement choose(List<List<Integer>> nodes, Map<Integer, Integer> load) {
+            int best = -1;
+            double bestLoad = Double.MAX_VALUE;
+            for (int i = 0; i < nodes.size(); ++i) {
+                List<Integer> node = nodes.get(i);
+                if (node.isEmpty()) {
+                    continue;
+                }
+                double nodeLoad = sum(node, load) / (double) node.size();
+                if (nodeLoad < bestLoad) {
+                    best = i;
+                    bestLoad = nodeLoad;
+                }
+            }
+            return best < 0 ? null : new Placement(nodes.size() > 1 ? best : -1, nodes.get(best));
+        }
+    }
+
+    /**
+     * Pins each process to a single CPU: the one with the lowest load, preferring CPUs on the
+     * node with the lowest load if equal. Child processes inherit the pinning, so all processes
+     * a command starts share that one CPU: parallel builds (fex. <code>make -jN</code>) run
+     * serialized. Use {@link NodeStrategy} for such commands.
+     */
+    public static final class CoreStrategy implements Strategy {
+
+        @Override
+        public Placement choose(List<List<Integer>> nodes, Map<Integer, Integer> load) {
+            int bestCpu = -1;
+            int bestNode = -1;
+            long bestLoad = Long.MAX_VALUE;
+            for (int i = 0; i < nodes.size(); ++i) {
+                List<Integer> node = nodes.get(i);
+                long nodeLoad = sum(node, load);
+                for (int cpu : node) {
+                    // cpu load decides, the node's load breaks ties.
+                    long cpuLoad = load.get(cpu) * 1000000L + nodeLoad * 1000 / node.size();
+                    if (cpuLoad < bestLoad) {
+                        bestCpu = cpu;
+                        bestNode = i;
+                        bestLoad = cpuLoad;
+                    }
+                }
+            }
+            return bestCpu < 0 ? null : new Placement(nodes.size() > 1 ? bestNode : -1,
+                    Arrays.asList(bestCpu));
+        }
+    }
+
+    private static long sum(List<Integer> cpus, Map<Integer, Integer> load) {
+        long sum = 0;
+        for (int cpu : cpus) {
+            sum += load.get(cpu);
+        }
+        return sum;
+    }
+
+    /**
+     * Configures placement of spawned processes.
+     *
+     * @param name
+     *            <code>off</code>, <code>node</code> (see {@link NodeStrategy}),
+     *            <code>core</code> (see {@link CoreStrategy}) or the class name of a
+     *            {@link Strategy} with a public no-argument constructor.
+     * @throws ReflectiveOperationException
+     *             if a custom strategy cannot be created.
+     */
+    public static synchronized void configure(String name) throws ReflectiveOperationException {
+        strategy = null;
+        if ("off".equals(name)) {
+            return;
+        }
+        if (!OsUtils.isUNIX() || !NODES.getParentFile().isDirectory()) {
+            log.info("CPU placement is supported on Linux only, disabled");
+            return;
+        }
+        taskset = findTool("taskset");
+        numactl = findTool("numactl");
+        if (taskset == null && numactl == null) {
+            log.warn("neither taskset nor numactl found, CPU placement disabled");
+            return;
+        }
+
+        Strategy chosen;
+        if ("node".equals(name)) {
+            chosen = new NodeStrategy();
+        } else if ("core".equals(name)) {
+            chosen = new CoreStrategy();
+        } else {
+            chosen = Class.forName(name).asSubclass(Strategy.class).getDeclaredConstructor()
+                    .newInstance();
+        }
+
+        nodes = readTopology();
+        List<Integer> all = new ArrayList<>();
+        for (List<Integer> node : nodes) {
+            all.addAll(node);
+        }
+        cpus = new int[all.size()];
+        for (int i = 0; i < cpus.length; ++i) {
+            cpus[i] = all.get(i);
+        }
+        // nodes may interleave (fex. 0-3,8-11 and 4-7,12-15), lookups need order.
+        Arrays.sort(cpus);
+        load = new int[cpus.length];
+        for (int i = 0; i < nodes.size(); ++i) {
+            final int node = i;
+            Metrics.gauge("placement.node" + node + ".load", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    synchronized (CpuPlacement.class) {
+                        long sum = 0;
+                        for (int cpu : nodes.get(node)) {
+                            sum += load[Arrays.binarySearch(cpus, cpu)];
+                        }
+                        return sum;
+                    }
+                }
+            });
+        }
+        strategy = chosen;
+        log.info("placing processes with " + name + " strategy on " + nodes.size()
+                + " node(s): " + nodes);
+    }
+
+    /**
+     * Chooses the CPUs for a new process and counts it as running there.
+     *
+     * @return the {@link Placement} to {@link #wrap(Placement, List) apply} and to
+     *         {@link #release(Placement) release} once the process exited. <code>null</code> if
+     *         the process is not to be pinned.
+     */
+    static synchronized Placement acquire() {
+        if (strategy == null) {
+            return null;
+        }
+        Map<Integer, Integer> snapshot = new TreeMap<>();
+        for (int i = 0; i < cpus.length; ++i) {
+            snapshot.put(cpus[i], load[i]);
+        }
+        Placement placement;
+        try {
+            placement = strategy.choose(nodes, Collections.unmodifiableMap(snapshot));
+        } catch (RuntimeException e) {
+            log.warn("CPU placement strategy failed: " + e);
+            placement = null;
+        }
+        if (placement == null || placement.cpus.isEmpty()) {
+            Metrics.counter("placement.unpinned").incrementAndGet();
+            return null;
+        }
+        for (int cpu : placement.cpus) {
+            int index = Arrays.binarySearch(cpus, cpu);
+            if (index < 0) {
+                log.warn("CPU placement strategy chose unknown CPU " + cpu);
+                Metrics.counter("placement.unpinned").incrementAndGet();
+                return null;
+            }
+        }
+        for (int cpu : placement.cpus) {
+            load[Arrays.binarySearch(cpus, cpu)]++;
+        }
+        Metrics.counter("placement.decisions").incrementAndGet();
+        if (placement.node >= 0) {
+            Metrics.counter("placement.node" + placement.node + ".decisions").incrementAndGet();
+        }
+        if (placement.cpus.size() == 1) {
+            Metrics.counter("placement.cpu" + placement.cpus.get(0) + ".decisions")
+                    .incrementAndGet();
+        }
+        return placement;
+    }
+
+    /**
+     * Releases the CPUs of an exited process.
+     *
+     * @param placement
+     *            the {@link Placement} returned by {@link #acquire()}, may be <code>null</code>.
+     */
+    static synchronized void release(Placement placement) {
+        if (placement == null) {
+            return;
+        }
+        for (int cpu : placement.cpus) {
+            int index = Arrays.binarySearch(cpus, cpu);
+            if (index >= 0 && load[index] > 0) {
+                load[index]--;
+            }
+        }
+    }
+
+    /**
+     * @param placement
+     *            the {@link Placement} to apply
+     * @param command
+     *            the command to start
+     * @return the command prefixed with numactl or taskset.
+     */
+    static List<String> wrap(Placement placement, List<String> command) {
+        List<String> wrapped = new ArrayList<>();
+        if (placement.node >= 0 && numactl != null) {
+            wrapped.addAll(Arrays.asList(numactl, "--physcpubind=" + cpuList(placement.cpus),
+                    "--preferred=" + placement.node, "--"));
+        } else if (taskset != null) {
+            // the cpu list is positional, so taskset stops parsing options there already.
+            wrapped.addAll(Arrays.asList(taskset, "-c", cpuList(placement.cpus)));
+        } else {
+            wrapped.addAll(Arrays.asList(numactl, "--physcpubind=" + cpuList(placement.cpus),
+                    "--"));
+        }
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    private static String findTool(String name) {
+        String path = System.getenv("PATH");
+        for (String dir : (path == null ? "/usr/bin:/bin" : path).split(File.pathSeparator)) {
+            File tool = new File(dir, name);
+            if (tool.canExecute()) {
+                return tool.getPath();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the CPUs of each NUMA node this process is allowed to use. A single node with all
+     *         allowed CPUs if the machine has no NUMA information.
+     */
+    private static List<List<Integer>> readTopology() {
+        List<Integer> allowed = null;
+        try {
+            for (String line : Files.readAllLines(STATUS.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    allowed = parseCpuList(line.substring(line.indexOf(':') + 1));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("cannot read allowed CPUs: " + e);
+        }
+        if (allowed == null) {
+            allowed = new ArrayList<>();
+            for (int i = 0; i < Runtime.getRuntime().availableProcessors(); ++i) {
+                allowed.add(i);
+            }
+        }
+
+        List<List<Integer>> result = new ArrayList<>();
+        for (int node = 0; new File(NODES, "node" + node).isDirectory(); ++node) {
+            List<Integer> cpuList;
+            try {
+                cpuList = parseCpuList(new String(Files.readAllBytes(new File(NODES, "node"
+                        + node + "/cpulist").toPath()), StandardCharsets.UTF_8));
+            } catch (IOException | RuntimeException e) {
+                log.debug("cannot read CPUs of node " + node + ": " + e);
+                cpuList = new ArrayList<>();
+            }
+            cpuList.retainAll(allowed);
+            result.add(cpuList);
+        }
+        if (result.isEmpty()) {
+            result.add(allowed);
+        }
+        return result;
+    }
+
+    /**
+     * Parses a Linux CPU list like <code>0-3,8-11</code>.
+     */
+    private static List<Integer> parseCpuList(String list) {
+        List<Integer> result = new ArrayList<>();
+        for (String part : list.trim().split(",")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            for (int cpu = from; cpu <= to; ++cpu) {
+                result.add(cpu);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static String cpuList(List<Integer> cpus) {
+        StringBuilder b = new StringBuilder();
+        for (int cpu : cpus) {
+            b.append(b.length() == 0 ? "" : ",").append(cpu);
+        }
+        return b.toString();
+    }
+
+}
@@ -3,65 +3,167 @@
  */
 package at.mduft.rex.command;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-
-import joptsimple.ArgumentAcceptingOptionSpec;
-import joptsimple.OptionParser;
-import joptsimple.OptionSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.sshd.common.util.OsUtils;
+import org.apache.sshd.server.ChannelSessionAware;
 import org.apache.sshd.server.Environment;
 import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.server.shell.InvertedShell;
 import org.apache.sshd.server.shell.InvertedShellWrapper;
 import org.apache.sshd.server.shell.ProcessShellFactory.TtyOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import at.mduft.rex.util.CrNlHelpFormatter;
+import at.mduft.rex.auth.RexUserAuthPublicKey;
+import at.mduft.rex.util.AdaptiveGzipOutputStream;
+import at.mduft.rex.util.BufferPool;
+import at.mduft.rex.util.DaemonThreads;
 import at.mduft.rex.util.HelpAppender;
+import at.mduft.rex.util.RequestParser;
+import at.mduft.rex.util.SpoolingOutputStream;
+import at.mduft.rex.util.Trace;
 
 /**
  * Command that allows execution of any command inside the shared file system on
  * the server. Extends {@link InvertedShellWrapper} to be able to sneak a custom
  * {@link InvertedShell} into it.
+ * <p>
+ * Data sent by the client is fed to the process by a {@link StdinPipeline}
+ * instead of the wrapper's stream pump, so a process that does not read its
+ * input can neither block the pump nor make the server buffer without limit.
+ * <p>
+ * Output is passed to the client through {@link SpoolingOutputStream}s, so a
+ * slow client does not block the process: it can exit as soon as it is done,
+ * the exit status is sent once the client received all output.
+ * <p>
+ * stdout and stderr are read by a thread each, blocking on the streams. The
+ * exit status is reported once the process exited, as signaled by its
+ * {@link ProcessLifecycle}, and both streams ended.
+ * <p>
+ * The process tree is torn down as soon as nobody waits for its output
+ * anymore: when the client's <code>--deadline</code> passed, or when the
+ * client closed the channel.
  */
-public class ExecCommand extends InvertedShellWrapper {
+public class ExecCommand extends InvertedShellWrapper implements
+		ChannelSessionAware {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(ExecCommand.class);
-	private static final OptionParser PARSER;
 	private static final EnumSet<TtyOptions> TTY_UNIX = EnumSet
 			.of(TtyOptions.ONlCr);
 	private static final EnumSet<TtyOptions> TTY_WIN32 = EnumSet.of(
 			TtyOptions.ICrNl, TtyOptions.ONlCr);
 
+	/** exit status reported if the command succeeded, but staging failed */
+	static final int STAGING_FAILED = 255;
+
+	/** exit status if the deadline passed, like timeout(1) */
+	static final int DEADLINE_EXCEEDED = 124;
+
+	/** reason passed to {@link ProcessExecutor#abandon(String)} */
+	static final String DEADLINE = "deadline";
+
+	private static final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(
+			1, DaemonThreads.named("Exec Deadline"));
+
+	static {
+		// finished commands must not be kept until their deadline.
+		deadlines.setRemoveOnCancelPolicy(true);
+	}
+
+	private static final ExecutorService stagers = Executors
+			.newCachedThreadPool(DaemonThreads.numbered("Exec Stage"));
+
+	/** pumps stderr and reports the exit status of commands */
+	private static final ExecutorService pumps = Executors
+			.newCachedThreadPool(DaemonThreads.numbered("Exec Pump"));
+
+	/**
+	 * milliseconds to wait for the end of the output once the process
+	 * exited. processes it started may keep the streams open.
+	 */
+	private static final long EOF_GRACE = 100;
+
+	private final ProcessExecutor executor;
+	/** the trace of the request, null if not traced */
+	private final Trace trace;
+	private final AtomicBoolean firstByte = new AtomicBoolean();
+	private StdinPipeline stdin;
+	private String keyFingerprint;
+	private final AtomicLong bytesOut = new AtomicLong();
 	private ExitCallback exit;
+	private OutputStream out;
 	private OutputStream err;
-	private static ArgumentAcceptingOptionSpec<String> OPT_ROOT;
-	private static ArgumentAcceptingOptionSpec<String> OPT_PWD;
+	private final boolean compress;
+	/** whether to run the command as a job, see {@link JobTable} */
+	private final boolean detach;
+	private final String commandLine;
+	/** milliseconds the command may run, 0 for no limit */
+	private final long deadlineMillis;
+	private volatile ScheduledFuture<?> deadline;
+	/** staging the inputs before the command starts, or null */
+	private Future<?> staging;
+	/** whether the channel has been closed */
+	private boolean destroyed;
+	private OutputStream channelOut;
+	private ExitCallback channelExit;
+	private SpoolingOutputStream spooledOut;
+	private SpoolingOutputStream spooledErr;
+	private AdaptiveGzipOutputStream compressedOut;
+	private AdaptiveGzipOutputStream compressedErr;
+	private final PathRewritingOutputStream.Automaton rewriter;
+	private static final RequestParser.Option OPT_ROOT = RequestParser
+			.list("mappings of server-paths to client-paths, each mapping sperated by ';', groups separated by ','",
+					"server-path;client-path,...", "roots").required();
+	private static final RequestParser.Option OPT_PWD = RequestParser
+			.value("path within mount point to set as current working directory",
+					"dir", "pwd").required();
+	private static final RequestParser.Option OPT_COMPRESS = RequestParser
+			.flag("gzip compress stdout and stderr, skipping incompressible data. decode with 'gzip -dcf'",
+					"compress");
+	private static final RequestParser.Option OPT_REWRITE = RequestParser
+			.flag("rewrite server paths in stdout and stderr to client paths",
+					"rewrite-paths");
+	private static final RequestParser.Option OPT_STAGE_IN = RequestParser
+			.list("files or directories to copy to server local scratch storage before running the command there",
+					"client-path,...", "stage-in");
+	private static final RequestParser.Option OPT_STAGE_OUT = RequestParser
+			.list("files or directories (with trailing separator) the command writes on scratch storage, copied back after it exited",
+					"client-path,...", "stage-out");
 
-	static {
-		PARSER = new OptionParser();
-		PARSER.formatHelpWith(CrNlHelpFormatter.INSTANCE);
+	private static final RequestParser.Option OPT_WORKER = RequestParser
+			.flag("pass the command to a persistent worker (started with '--persistent_worker', JSON worker protocol) instead of starting a process",
+					"worker");
+	private static final RequestParser.Option OPT_DETACH = RequestParser
+			.flag("start the command as a job and return at once, printing the job id. output is kept on the server, see 'job'",
+					"detach");
+	private static final RequestParser.Option OPT_DEADLINE = RequestParser
+			.value("terminate the command and all processes it started if still running after this time, exit status 124",
+					"millis", "deadline");
 
-		OPT_ROOT = PARSER
-				.accepts(
-						"roots",
-						"mappings of server-paths to client-paths, each mapping sperated by ';', groups separated by ','")
-				.withRequiredArg().describedAs("server-path;client-path,...")
-				.withValuesSeparatedBy(',').required();
-		OPT_PWD = PARSER
-				.accepts("pwd",
-						"path within mount point to set as current working directory")
-				.withRequiredArg().describedAs("dir").required();
-	}
+	/** immutable, shared by all sessions without locking */
+	private static final RequestParser PARSER = new RequestParser(OPT_ROOT,
+			OPT_PWD, OPT_COMPRESS, OPT_REWRITE, OPT_STAGE_IN, OPT_STAGE_OUT,
+			OPT_WORKER, OPT_DETACH, OPT_DEADLINE);
 
 	/**
 	 * Creates a new {@link ExecCommand}. This will create the
@@ -72,69 +174,546 @@ public class ExecCommand extends InvertedShellWrapper {
 	 *            the raw command line passed from the client.
 	 */
 	public ExecCommand(String[] command) {
-		super(createExecutor(command));
+		this(parse(command));
+	}
+
+	private ExecCommand(RequestParser.Result opts) {
+		this(opts, createExecutor(opts));
+	}
+
+	private ExecCommand(RequestParser.Result opts, ProcessExecutor executor) {
+		super(executor);
+		this.executor = executor;
+		this.trace = Trace.current();
+		this.compress = opts.has(OPT_COMPRESS);
+		this.rewriter = opts.has(OPT_REWRITE) ? PathRewritingOutputStream
+				.forRoots(executor.getArgumentProcessor().getRootMappings(),
+						OsUtils.isWin32()) : null;
+		this.detach = opts.has(OPT_DETACH);
+		if (detach && (compress || rewriter != null || opts.has(OPT_WORKER))) {
+			throw new IllegalArgumentException(
+					"--detach cannot be combined with --compress, --rewrite-paths or --worker");
+		}
+		StringBuilder line = new StringBuilder();
+		for (String arg : opts.nonOptions()) {
+			line.append(line.length() == 0 ? "" : " ").append(arg);
+		}
+		this.commandLine = line.toString();
+		this.deadlineMillis = opts.has(OPT_DEADLINE) ? Long.parseLong(opts
+				.valueOf(OPT_DEADLINE)) : 0;
+		if (deadlineMillis < 0) {
+			throw new IllegalArgumentException("--deadline must not be negative");
+		}
 	}
 
 	/**
-	 * Creates a {@link ProcessExecutor} that is capable of handling execution
-	 * of the given command.
+	 * Parses the given command line.
 	 * 
 	 * @param command
 	 *            the command as passed to the SSH server, split at argument
 	 *            boundaries.
-	 * @return the executor that is able to execute the given command.
+	 * @return the parsed options.
 	 */
-	private static ProcessExecutor createExecutor(String[] command) {
+	@SuppressWarnings("try")
+	private static RequestParser.Result parse(String[] command) {
 		// argument 0 == exec, otherwise we would not be here...
 		if (command.length < 1 || !"exec".equals(command[0])) {
 			throw new IllegalArgumentException(
 					"missing string 'exec' in first argument");
 		}
 
-		OptionSet opts;
-		synchronized (PARSER) {
-			opts = PARSER.parse(Arrays.copyOfRange(command, 1, command.length));
+		try (Trace.Span span = Trace.span("parse")) {
+			return PARSER.parse(command, 1);
 		}
+	}
 
-		Map<String, String> rootMappings = ArgumentProcessor
-				.getRootMappingsFromArgument(opts.valuesOf(OPT_ROOT));
-		List<?> nonOpts = opts.nonOptionArguments();
+	/**
+	 * Creates a {@link ProcessExecutor} that is capable of handling execution
+	 * of the given command.
+	 * 
+	 * @param opts
+	 *            the parsed command line.
+	 * @return the executor that is able to execute the given command.
+	 */
+	@SuppressWarnings("try")
+	private static ProcessExecutor createExecutor(RequestParser.Result opts) {
+		Map<String, String> rootMappings;
+		try (Trace.Span span = Trace.span("root parse")) {
+			rootMappings = ArgumentProcessor.getRootMappingsFromArgument(opts
+					.valuesOf(OPT_ROOT));
+		}
+		List<String> nonOpts = opts.nonOptions();
+		Staging staging = Staging.create(rootMappings, opts.valueOf(OPT_PWD),
+				opts.valuesOf(OPT_STAGE_IN), opts.valuesOf(OPT_STAGE_OUT));
 
 		return new ProcessExecutor(nonOpts.toArray(new String[nonOpts.size()]),
 				rootMappings, opts.valueOf(OPT_PWD),
-				OsUtils.isUNIX() ? TTY_UNIX : TTY_WIN32);
+				OsUtils.isUNIX() ? TTY_UNIX : TTY_WIN32, staging,
+				opts.has(OPT_WORKER));
+	}
+
+	@Override
+	public void setChannelSession(ChannelSession session) {
+		keyFingerprint = session.getSession().getAttribute(
+				RexUserAuthPublicKey.KEY_FINGERPRINT);
+		stdin = new StdinPipeline(session.getLocalWindow());
+		session.setDataReceiver(stdin);
+		// the wrapper's pump must never see input, the pipeline handles it.
+		super.setInputStream(new ByteArrayInputStream(new byte[0]));
+	}
+
+	@Override
+	public void setOutputStream(OutputStream out) {
+		channelOut = out;
+		spooledOut = new SpoolingOutputStream(out);
+		out = spooledOut;
+		if (compress) {
+			compressedOut = new AdaptiveGzipOutputStream(out);
+			out = compressedOut;
+		}
+		if (rewriter != null) {
+			out = new PathRewritingOutputStream(out, rewriter);
+		}
+		super.setOutputStream(out);
+		this.out = out;
 	}
 
 	@Override
 	public void setErrorStream(OutputStream err) {
+		spooledErr = new SpoolingOutputStream(err);
+		err = spooledErr;
+		if (compress) {
+			compressedErr = new AdaptiveGzipOutputStream(err);
+			err = compressedErr;
+		}
+		if (rewriter != null) {
+			err = new PathRewritingOutputStream(err, rewriter);
+		}
 		super.setErrorStream(err);
 		this.err = err;
 	}
 
 	@Override
-	public void setExitCallback(ExitCallback callback) {
-		super.setExitCallback(callback);
-		this.exit = callback;
+	public void setExitCallback(final ExitCallback callback) {
+		channelExit = callback;
+		ExitCallback wrapped = new ExitCallback() {
+			@Override
+			public void onExit(int exitValue) {
+				exitValue = finish(exitValue);
+				callback.onExit(exitValue);
+			}
+
+			@Override
+			public void onExit(int exitValue, String exitMessage) {
+				exitValue = finish(exitValue);
+				callback.onExit(exitValue, exitMessage);
+			}
+		};
+		super.setExitCallback(wrapped);
+		this.exit = wrapped;
+	}
+
+	/**
+	 * Called once the process has exited and all output has been passed on.
+	 * 
+	 * @return the exit status to report.
+	 */
+	@SuppressWarnings("try")
+	private int finish(int exitValue) {
+		cancelDeadline();
+		if (DEADLINE.equals(executor.getAbandonReason())) {
+			// written here, the streams must not be used concurrently with
+			// the pump.
+			try {
+				err.write(("rex: deadline of " + deadlineMillis
+						+ "ms exceeded, command terminated\r\n")
+						.getBytes(StandardCharsets.UTF_8));
+				err.flush();
+			} catch (IOException e) {
+				log.debug("cannot report deadline: " + e);
+			}
+			exitValue = DEADLINE_EXCEEDED;
+		}
+		try (Trace.Span span = Trace.span("stage-out")) {
+			exitValue = stageOut(exitValue);
+		}
+		ResourceAccounting.Usage usage = executor.getUsage();
+		if (usage != null) {
+			usage.finish(exitValue,
+					stdin == null ? 0 : stdin.getBytesWritten(), bytesOut.get());
+		}
+		try (Trace.Span span = Trace.span("flush")) {
+			if (compress) {
+				// the gzip trailers have to be written before the channel is
+				// closed.
+				finishCompression();
+			}
+			// the exit status must not overtake the output.
+			awaitSpooled();
+		}
+		return exitValue;
 	}
 
+	/**
+	 * Waits until the spooled output has been passed on to the client.
+	 */
+	private void awaitSpooled() {
+		try {
+			for (SpoolingOutputStream s : Arrays.asList(spooledOut, spooledErr)) {
+				if (s != null) {
+					s.awaitDrained();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Copies staged outputs back to the shared file system. A failure is
+	 * reported on stderr, and as exit status if the command itself succeeded.
+	 * 
+	 * @return the exit status to report.
+	 */
+	private int stageOut(int exitValue) {
+		Staging staging = executor.getStaging();
+		if (staging == null) {
+			return exitValue;
+		}
+		try {
+			staging.stageOut();
+			return exitValue;
+		} catch (IOException | RuntimeException e) {
+			log.warn("cannot stage out " + staging + ": " + e);
+			try {
+				err.write(("rex: cannot copy back staged outputs: " + e
+						.getMessage()).getBytes(StandardCharsets.UTF_8));
+				err.write(new byte[] { '\r', '\n' });
+				err.flush();
+			} catch (IOException ex) {
+				log.debug("cannot report staging failure: " + ex);
+			}
+			return exitValue == 0 ? STAGING_FAILED : exitValue;
+		}
+	}
+
+	/**
+	 * Writes the trailers of the compressed output streams.
+	 */
+	private void finishCompression() {
+		for (AdaptiveGzipOutputStream s : Arrays.asList(compressedOut,
+				compressedErr)) {
+			if (s == null) {
+				continue;
+			}
+			try {
+				s.finish();
+			} catch (IOException e) {
+				log.debug("cannot finish compressed stream: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Starts the command. Staging inputs may copy whole trees, so it runs on
+	 * a staging thread, and the command is started from there once done: the
+	 * calling I/O thread serves other sessions too.
+	 */
 	@Override
-	public synchronized void start(Environment env) throws IOException {
+	public synchronized void start(final Environment env) throws IOException {
+		if (executor.getStaging() == null) {
+			launch(env);
+			return;
+		}
+		staging = stagers.submit(new Runnable() {
+			@Override
+			public void run() {
+				Trace previous = Trace.attach(trace);
+				try {
+					stageAndLaunch(env);
+				} finally {
+					Trace.attach(previous);
+				}
+			}
+		});
+	}
+
+	private void stageAndLaunch(Environment env) {
+		Exception failure = null;
+		try {
+			executor.stageIn();
+		} catch (IOException | RuntimeException e) {
+			failure = e;
+		}
+		synchronized (this) {
+			if (destroyed) {
+				// the channel has been closed while staging. it waits for an
+				// exit status until it times out.
+				executor.getStaging().discard();
+				// releases the compressors, the output is discarded anyway.
+				finishCompression();
+				channelExit.onExit(executor.exitValue());
+				return;
+			}
+			try {
+				if (failure != null) {
+					fail(failure, env);
+				} else {
+					launch(env);
+				}
+			} catch (IOException e) {
+				log.warn("[" + Trace.currentId() + "] cannot report failure: "
+						+ e);
+			}
+		}
+	}
+
+	private void launch(Environment env) throws IOException {
 		try {
+			if (detach) {
+				startJob(env);
+				scheduleDeadline();
+				return;
+			}
+			// the usage is registered by the executor before the pump
+			// starts, a short process may finish right away.
+			executor.setKeyFingerprint(keyFingerprint);
 			super.start(env);
+			scheduleDeadline();
+			if (stdin != null) {
+				stdin.connect(executor.getInputStream());
+			}
 		} catch (Exception e) {
-			log.error("failed to execute", e);
-			DefaultCommand c = new DefaultCommand(e);
-			c.setErrorStream(err);
-			c.setExitCallback(exit);
-			c.start(env);
+			fail(e, env);
 		}
 	}
 
-	@HelpAppender
-	public static void appendHelp(StringBuilder builder) throws IOException {
-		try (StringWriter wr = new StringWriter()) {
-			PARSER.printHelpOn(wr);
-			builder.append(wr.toString());
+	/**
+	 * Reports a command that could not be started to the client.
+	 */
+	private void fail(Exception e, Environment env) throws IOException {
+		log.error("[" + Trace.currentId() + "] failed to execute", e);
+		if (stdin != null) {
+			stdin.abort();
+		}
+		DefaultCommand c = new DefaultCommand(e);
+		c.setErrorStream(err);
+		c.setExitCallback(exit);
+		c.start(env);
+	}
+
+	/**
+	 * Tears down the process tree once the client's deadline passed. A job
+	 * keeps its deadline after the channel is gone.
+	 */
+	private void scheduleDeadline() {
+		if (deadlineMillis == 0) {
+			return;
+		}
+		deadline = deadlines.schedule(new Runnable() {
+			@Override
+			public void run() {
+				executor.abandon(DEADLINE);
+			}
+		}, deadlineMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelDeadline() {
+		ScheduledFuture<?> d = deadline;
+		if (d != null) {
+			d.cancel(false);
+		}
+	}
+
+	/**
+	 * Starts the command as a job, prints its id and exits right away. The
+	 * job does not depend on this channel.
+	 */
+	private void startJob(Environment env) throws IOException {
+		JobTable.Job job = JobTable.start(executor, env.getEnv(), commandLine,
+				keyFingerprint);
+		log.info("[" + Trace.currentId() + "] started job " + job.getId());
+		if (stdin != null) {
+			stdin.abort();
+		}
+		// bypasses the spool, so the id is sent before the exit status.
+		channelOut.write((job.getId() + "\n").getBytes(StandardCharsets.UTF_8));
+		channelOut.flush();
+		channelExit.onExit(0);
+	}
+
+	/**
+	 * Replaces the base implementation, which polls all streams: stdin is
+	 * left to the {@link StdinPipeline}, stdout is pumped on this thread and
+	 * stderr on a thread of its own. The request's {@link Trace} is attached
+	 * to the pumping threads.
+	 */
+	@Override
+	protected void pumpStreams() {
+		Trace previous = Trace.attach(trace);
+		try {
+			pumpTraced();
+		} finally {
+			Trace.attach(previous);
 		}
 	}
+
+	private void pumpTraced() {
+		if (stdin == null) {
+			super.pumpStreams();
+			return;
+		}
+		final StreamPump stdoutPump = new StreamPump(
+				executor.getOutputStream(), out);
+		final StreamPump stderrPump = new StreamPump(
+				executor.getErrorStream(), err);
+		pumps.execute(new Runnable() {
+			@Override
+			public void run() {
+				Trace previous = Trace.attach(trace);
+				try {
+					stderrPump.run();
+				} finally {
+					Trace.attach(previous);
+				}
+			}
+		});
+		executor.getLifecycle().onExit(new Runnable() {
+			@Override
+			public void run() {
+				// listeners must not block, reporting waits for the output.
+				pumps.execute(new Runnable() {
+					@Override
+					public void run() {
+						Trace previous = Trace.attach(trace);
+						try {
+							complete(stdoutPump, stderrPump);
+						} finally {
+							Trace.attach(previous);
+						}
+					}
+				});
+			}
+		});
+		stdoutPump.run();
+	}
+
+	/**
+	 * Reports the exit status once the output of the exited process has been
+	 * passed on.
+	 */
+	private void complete(StreamPump... streams) {
+		long until = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(EOF_GRACE);
+		try {
+			for (StreamPump p : streams) {
+				p.stop(until);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		exit.onExit(executor.exitValue());
+	}
+
+	/**
+	 * Passes one output stream of the process on, blocking on reads.
+	 */
+	private final class StreamPump implements Runnable {
+
+		private final InputStream in;
+		private final OutputStream out;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private boolean stopped;
+
+		StreamPump(InputStream in, OutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = BufferPool.acquire(DEFAULT_BUFFER_SIZE);
+			try {
+				for (;;) {
+					int len = in.read(buffer, 0, DEFAULT_BUFFER_SIZE);
+					if (len < 0 || !write(buffer, len)) {
+						return;
+					}
+				}
+			} catch (IOException e) {
+				log.debug("[" + Trace.currentId() + "] cannot pass on output: "
+						+ e);
+				// nobody takes the output anymore.
+				executor.destroy();
+			} finally {
+				BufferPool.release(buffer);
+				done.countDown();
+			}
+		}
+
+		private synchronized boolean write(byte[] buffer, int len)
+				throws IOException {
+			if (stopped) {
+				return false;
+			}
+			if (trace != null && firstByte.compareAndSet(false, true)) {
+				trace.mark("first byte");
+			}
+			out.write(buffer, 0, len);
+			out.flush();
+			bytesOut.addAndGet(len);
+			return true;
+		}
+
+		/**
+		 * Waits for the end of the stream until the given time, and discards
+		 * anything read afterwards.
+		 * 
+		 * @param until
+		 *            the {@link System#nanoTime()} to wait until.
+		 */
+		void stop(long until) throws InterruptedException {
+			done.await(Math.max(0, until - System.nanoTime()),
+					TimeUnit.NANOSECONDS);
+			synchronized (this) {
+				stopped = true;
+			}
+		}
+	}
+
+	/**
+	 * Called once the channel is closed, right away if the client closed it
+	 * while the command is still running. Nobody reads the output anymore,
+	 * so the process tree is torn down. The channel may call this more than
+	 * once, only the first call has an effect.
+	 */
+	@Override
+	public synchronized void destroy() {
+		if (destroyed) {
+			return;
+		}
+		destroyed = true;
+		if (staging != null) {
+			staging.cancel(true);
+		}
+		if (stdin != null) {
+			stdin.abort();
+		}
+		for (SpoolingOutputStream s : Arrays.asList(spooledOut, spooledErr)) {
+			if (s != null) {
+				s.abort();
+			}
+		}
+		if (!detach) {
+			// a job outlives its channel.
+			cancelDeadline();
+			executor.abandon("closed");
+			super.destroy();
+		}
+	}
+
+	@HelpAppender
+	public static void appendHelp(StringBuilder builder) {
+		builder.append(PARSER.help());
+	}
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.HelpAppender;
+import at.mduft.rex.util.LatencyRecorder;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Command that prints the current load of the server as a single JSON line, for external load
+ * balancers and schedulers. The response is rendered once per {@link #REFRESH_MILLIS} by a
+ * background thread (started on the first request), so polling is as cheap as opening a channel.
+ * <p>
+ * Fields (format {@link #VERSION}; fields may be added, but are never changed or removed without
+ * increasing the version):
+ * <ul>
+ * <li><code>version</code>: the format version
+ * <li><code>time</code>: when the snapshot was taken, milliseconds since the epoch
+ * <li><code>active</code>: execs currently running
+ * <li><code>queued</code>: connections waiting for authentication (connected, not yet
+ * authenticated)
+ * <li><code>load</code>: system load average of the last minute. Where there is no load
+ * average (Windows), the current system CPU usage times the number of processors. -1 if unknown
+ * <li><code>cpus</code>: number of processors
+ * <li><code>mem_available_kb</code>: memory available for new processes, -1 if unknown
+ * <li><code>sessions</code>: open SSH sessions
+ * <li><code>exec_p99_us</code>: 99th percentile of the exec wall time during the last minute
+ * <li><code>execs_recent</code>: number of execs finished during the last minute
+ * </ul>
+ */
+public class HealthCommand extends SimpleCommand {
+
+    private static final Logger log = LoggerFactory.getLogger(HealthCommand.class);
+
+    /** version of the response format */
+    static final int VERSION = 2;
+
+    /** interval in which the response is rendered */
+    static final long REFRESH_MILLIS = 1000;
+
+    /** the exec latency is reported for this period */
+    private static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** resolution of the latency window, in refreshes */
+    private static final int WINDOW_STEP = 5;
+
+    private static final File MEMINFO = new File("/proc/meminfo");
+
+    private static volatile byte[] current;
+    private static ScheduledExecutorService refresher;
+
+    /** copies of the exec latency buckets, the oldest being about WINDOW_MILLIS old */
+    private static final ArrayDeque<long[]> window = new ArrayDeque<>();
+    private static int refreshes;
+
+    @Override
+    public Integer call() throws Exception {
+        out.write(snapshot());
+        out.flush();
+        return 0;
+    }
+
+    /**
+     * @return the latest rendered response, including the trailing newline.
+     */
+    static byte[] snapshot() {
+        byte[] snapshot = current;
+        if (snapshot == null) {
+            snapshot = startRefresher();
+        }
+        return snapshot;
+    }
+
+    private static synchronized byte[] startRefresher() {
+        if (refresher == null) {
+            refresh();
+            refresher = Executors.newSingleThreadScheduledExecutor(DaemonThreads
+                    .named("Health Refresher"));
+            refresher.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        log.warn("cannot refresh health snapshot", e);
+                    }
+                }
+            }, REFRESH_MILLIS, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return current;
+    }
+
+    private static synchronized void refresh() {
+        LatencyRecorder execs = Metrics.latency("exec.wall");
+        long[] buckets = execs.copyBuckets();
+        if (window.isEmpty() || refreshes++ % WINDOW_STEP == 0) {
+            window.addLast(buckets);
+            while (window.size() > WINDOW_MILLIS / REFRESH_MILLIS / WINDOW_STEP + 1) {
+                window.removeFirst();
+            }
+        }
+        long[] oldest = window.getFirst();
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"version\": ").append(VERSION);
+        json.append(", \"time\": ").append(System.currentTimeMillis());
+        json.append(", \"active\": ").append(Metrics.value("exec.active"));
+        json.append(", \"queued\": ").append(Metrics.value("auth.pending"));
+        json.append(", \"load\": ").append(String.format(Locale.ROOT, "%.2f", load(os)));
+        json.append(", \"cpus\": ").append(os.getAvailableProcessors());
+        json.append(", \"mem_available_kb\": ").append(availableMemoryKb(os));
+        json.append(", \"sessions\": ").append(Metrics.value("sessions.open"));
+        json.append(", \"exec_p99_us\": ").append(
+                Math.min(LatencyRecorder.percentile(oldest, buckets, 0.99), execs.max()));
+        json.append(", \"execs_recent\": ").append(LatencyRecorder.count(oldest, buckets));
+        json.append("}\n");
+        current = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the load average, or the equivalent of the current CPU usage where the platform has
+     *         no load average.
+     */
+    // getCpuLoad() replaces getSystemCpuLoad() only from Java 14 on.
+    @SuppressWarnings("deprecation")
+    private static double load(OperatingSystemMXBean os) {
+        double load = os.getSystemLoadAverage();
+        if (load < 0 && os instanceof com.sun.management.OperatingSystemMXBean) {
+            double cpu = ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+            load = cpu < 0 ? -1 : cpu * os.getAvailableProcessors();
+        }
+        return load;
+    }
+
+    /**
+     * @return the memory available for new processes. On Linux, this includes caches that can be
+     *         dropped.
+     */
+    // getFreeMemorySize() replaces getFreePhysicalMemorySize() only from Java 14 on.
+    @SuppressWarnings("deprecation")
+    private static long availableMemoryKb(OperatingSystemMXBean os) {
+        if (MEMINFO.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(MEMINFO), StandardCharsets.US_ASCII))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("MemAvailable:")) {
+                        return Long.parseLong(line.substring(13).replace("kB", "").trim());
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                log.debug("cannot read " + MEMINFO + ": " + e);
+            }
+        }
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os)
+                    .getFreePhysicalMemorySize() / 1024;
+        }
+        return -1;
+    }
+
+    @HelpAppender
+    public static void appendHelp(StringBuilder builder) {
+        builder.append("\t  prints the current load of the server as a single JSON line. takes no arguments.\r\n");
+    }
+
+}
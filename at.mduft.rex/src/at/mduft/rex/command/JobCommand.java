@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import at.mduft.rex.util.BufferPool;
+import at.mduft.rex.util.HelpAppender;
+import at.mduft.rex.util.RequestParser;
+
+/**
+ * Command that queries jobs started by <code>exec --detach</code>, see {@link JobTable}.
+ */
+public class JobCommand extends SimpleCommand {
+
+    /** exit status if the job is unknown (or already expired) */
+    private static final int UNKNOWN_JOB = 1;
+
+    private static final RequestParser.Option OPT_STATUS = RequestParser.value(
+            "print the state of the job as JSON object", "job-id", "status");
+    private static final RequestParser.Option OPT_TAIL = RequestParser.value(
+            "print the output of the job written so far, starting at --offset", "job-id", "tail");
+    private static final RequestParser.Option OPT_OFFSET = RequestParser.value(
+            "number of bytes of output to skip for --tail, fex. the bytes received so far",
+            "bytes", "offset");
+    private static final RequestParser.Option OPT_STDERR = RequestParser.flag(
+            "print stderr instead of stdout of the job for --tail", "stderr");
+    private static final RequestParser.Option OPT_EXIT = RequestParser.value(
+            "print the exit status of the job, or 'running'", "job-id", "exit");
+
+    /** immutable, shared by all sessions without locking */
+    private static final RequestParser PARSER = new RequestParser(OPT_STATUS, OPT_TAIL,
+            OPT_OFFSET, OPT_STDERR, OPT_EXIT);
+
+    private final RequestParser.Result opts;
+    private final long offset;
+
+    /**
+     * Creates a new {@link JobCommand} with the given raw arguments from the client.
+     *
+     * @param arguments
+     *            the raw arguments containing the operation to perform.
+     */
+    public JobCommand(String[] arguments) {
+        // argument 0 is the command name.
+        this.opts = PARSER.parse(arguments, 1);
+        int operations = (opts.has(OPT_STATUS) ? 1 : 0) + (opts.has(OPT_TAIL) ? 1 : 0)
+                + (opts.has(OPT_EXIT) ? 1 : 0);
+        if (operations != 1) {
+            throw new IllegalArgumentException("exactly one of --status, --tail or --exit required");
+        }
+        this.offset = opts.has(OPT_OFFSET) ? Long.parseLong(opts.valueOf(OPT_OFFSET)) : 0;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        String id = opts.valueOf(opts.has(OPT_STATUS) ? OPT_STATUS : opts.has(OPT_TAIL) ? OPT_TAIL
+                : OPT_EXIT);
+        JobTable.Job job = JobTable.get(id);
+        if (job == null) {
+            err.write(("rex: no such job: " + id + "\r\n").getBytes(StandardCharsets.UTF_8));
+            err.flush();
+            return UNKNOWN_JOB;
+        }
+
+        if (opts.has(OPT_TAIL)) {
+            tail(job, opts.has(OPT_STDERR));
+            return 0;
+        }
+        try (PrintWriter wr = new PrintWriter(out)) {
+            if (opts.has(OPT_STATUS)) {
+                wr.print(job.toJson());
+            } else {
+                Integer status = job.getStatus();
+                wr.print(status == null ? "running" : status.toString());
+            }
+            wr.print('\n');
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the output of the job from --offset up to its current end.
+     */
+    private void tail(JobTable.Job job, boolean stderr) throws IOException {
+        byte[] buffer = BufferPool.acquire(BufferPool.MAX_SIZE);
+        try (FileInputStream is = new FileInputStream(job.getOutput(stderr))) {
+            FileChannel channel = is.getChannel();
+            long end = channel.size();
+            long pos = offset;
+            while (pos < end) {
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - pos));
+                int n = channel.read(bb, pos);
+                if (n <= 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                pos += n;
+            }
+            out.flush();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    @HelpAppender
+    public static void appendHelp(StringBuilder builder) {
+        builder.append(PARSER.help());
+    }
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.Json;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Jobs started by <code>exec --detach</code>. A job's process writes its output directly to files
+ * in the job directory, so it does not depend on a channel and survives the client disconnecting.
+ * Clients poll the job with the {@link JobCommand}.
+ * <p>
+ * The table is bounded: if it is full, the oldest finished job is forgotten, and new jobs are
+ * rejected while all jobs are still running. Finished jobs are forgotten (and their output
+ * deleted) once they have been finished for the configured time to live.
+ */
+public final class JobTable {
+
+    private static final Logger log = LoggerFactory.getLogger(JobTable.class);
+
+    /** insertion ordered, so the oldest jobs come first */
+    private static final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    private static File dir = new File(System.getProperty("java.io.tmpdir"), "rex-jobs");
+    private static int maxJobs = 256;
+    private static long ttlMillis = TimeUnit.HOURS.toMillis(24);
+    private static ScheduledExecutorService reaper;
+
+    /** finishes exited jobs, which may copy back staged outputs */
+    private static final ExecutorService finishers = Executors
+            .newCachedThreadPool(DaemonThreads.numbered("Job Finisher"));
+
+    static {
+        Metrics.gauge("jobs.running", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long running = 0;
+                synchronized (JobTable.class) {
+                    for (Job job : jobs.values()) {
+                        if (!job.hasExited()) {
+                            running++;
+                        }
+                    }
+                }
+                return running;
+            }
+        });
+    }
+
+    private JobTable() {
+    }
+
+    /**
+     * Configures the job table and starts expiring finished jobs. Output files left over by a
+     * previous server are deleted, as their jobs are unknown.
+     *
+     * @param jobDir
+     *            the directory to keep the output of jobs in.
+     * @param max
+     *            maximum number of jobs in the table.
+     * @param ttl
+     *            time in milliseconds a finished job is kept.
+     */
+    public static synchronized void configure(File jobDir, int max, long ttl) {
+        dir = jobDir;
+        maxJobs = max;
+        ttlMillis = ttl;
+        File[] leftovers = dir.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                if (file.getName().endsWith(".out") || file.getName().endsWith(".err")) {
+                    file.delete();
+                }
+            }
+        }
+        if (reaper != null) {
+            reaper.shutdown();
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("Job Reaper"));
+        long period = Math.max(1000, Math.min(ttl, TimeUnit.MINUTES.toMillis(1)));
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the given executor as a job.
+     *
+     * @param executor
+     *            the {@link ProcessExecutor} of the job, not yet started.
+     * @param env
+     *            the environment sent by the client.
+     * @param command
+     *            the command as given by the client, for status output.
+     * @param key
+     *            fingerprint of the client's key, <code>null</code> if unknown.
+     * @return the started {@link Job}.
+     * @throws IOException
+     *             if the job cannot be started.
+     * @throws IllegalStateException
+     *             if the table is full of running jobs.
+     */
+    static Job start(ProcessExecutor executor, Map<String, String> env, String command,
+            String key) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create job directory " + dir);
+        }
+        final Job job = new Job(String.format("%016x", ThreadLocalRandom.current().nextLong()),
+                command);
+        synchronized (JobTable.class) {
+            makeRoom();
+            jobs.put(job.id, job);
+        }
+        try {
+            executor.redirect(job.out, job.err);
+            executor.setKeyFingerprint(key);
+            executor.start(env);
+        } catch (IOException | RuntimeException e) {
+            forget(job);
+            if (executor.getStaging() != null) {
+                executor.getStaging().discard();
+            }
+            throw e;
+        }
+        // nothing to read, the client is not connected to the job.
+        executor.getInputStream().close();
+
+        job.executor = executor;
+        job.usage = executor.getUsage();
+        executor.getLifecycle().onExit(new Runnable() {
+            @Override
+            public void run() {
+                finishers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        job.finish();
+                    }
+                });
+            }
+        });
+        Metrics.counter("jobs.started").incrementAndGet();
+        return job;
+    }
+
+    /**
+     * Removes expired jobs, then the oldest finished job if the table is still full.
+     */
+    private static void makeRoom() {
+        if (jobs.size() < maxJobs) {
+            return;
+        }
+        expire();
+        for (Iterator<Job> it = jobs.values().iterator(); it.hasNext()
+                && jobs.size() >= maxJobs;) {
+            Job job = it.next();
+            if (job.hasExited()) {
+                it.remove();
+                job.delete();
+            }
+        }
+        if (jobs.size() >= maxJobs) {
+            Metrics.counter("jobs.rejected").incrementAndGet();
+            throw new IllegalStateException("too many jobs running (" + maxJobs + ")");
+        }
+    }
+
+    private static synchronized void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Job> it = jobs.values().iterator(); it.hasNext();) {
+            Job job = it.next();
+            if (job.hasExited() && now - job.endMillis >= ttlMillis) {
+                it.remove();
+                job.delete();
+                Metrics.counter("jobs.expired").incrementAndGet();
+            }
+        }
+    }
+
+    private static synchronized void forget(Job job) {
+        jobs.remove(job.id);
+        job.delete();
+    }
+
+    /**
+     * @param id
+     *            the id of the job
+     * @return the {@link Job} with the given id, <code>null</code> if unknown or expired.
+     */
+    static synchronized Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * A process started by <code>exec --detach</code>.
+     */
+    static final class Job {
+
+        private final String id;
+        private final String command;
+        private final long startMillis = System.currentTimeMillis();
+        private final File out;
+        private final File err;
+        private volatile ProcessExecutor executor;
+        private volatile ResourceAccounting.Usage usage;
+        /** exit status once finished, including staging */
+        private volatile Integer status;
+        private volatile long endMillis;
+
+        private Job(String id, String command) {
+            this.id = id;
+            this.command = command;
+            this.out = new File(dir, id + ".out");
+            this.err = new File(dir, id + ".err");
+        }
+
+        /**
+         * Copies back staged outputs and records the exit status.
+         */
+        private void finish() {
+            int exitValue = executor.exitValue();
+            if (ExecCommand.DEADLINE.equals(executor.getAbandonReason())) {
+                exitValue = ExecCommand.DEADLINE_EXCEEDED;
+            }
+            Staging staging = executor.getStaging();
+            if (staging != null) {
+                try {
+                    staging.stageOut();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("cannot stage out " + staging + " of job " + id + ": " + e);
+                    try (OutputStream os = new FileOutputStream(err, true)) {
+                        os.write(("rex: cannot copy back staged outputs: " + e.getMessage() + "\n")
+                                .getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException ex) {
+                        log.debug("cannot report staging failure: " + ex);
+                    }
+                    if (exitValue == 0) {
+                        exitValue = ExecCommand.STAGING_FAILED;
+                    }
+                }
+            }
+            usage.finish(exitValue, 0, out.length() + err.length());
+            endMillis = System.currentTimeMillis();
+            status = exitValue;
+            log.info("job " + id + " done, status=" + exitValue);
+        }
+
+        private boolean hasExited() {
+            return status != null;
+        }
+
+        private void delete() {
+            if (executor != null && !hasExited()) {
+                executor.destroy();
+            }
+            out.delete();
+            err.delete();
+        }
+
+        /**
+         * @return the id of the job.
+         */
+        String getId() {
+            return id;
+        }
+
+        /**
+         * @return the exit status of the job, <code>null</code> while still running.
+         */
+        Integer getStatus() {
+            return status;
+        }
+
+        /**
+         * @param stderr
+         *            whether to return the file of stderr instead of stdout.
+         * @return the file the job's output is written to.
+         */
+        File getOutput(boolean stderr) {
+            return stderr ? err : out;
+        }
+
+        /**
+         * @return the state of the job as JSON object.
+         */
+        String toJson() {
+            Integer exit = status;
+            long end = exit == null ? System.currentTimeMillis() : endMillis;
+            return "{\"id\": \"" + id + "\", \"command\": \"" + Json.escape(command)
+                    + "\", \"state\": \"" + (exit == null ? "running" : "exited")
+                    + "\", \"exit\": " + exit + ", \"started\": \""
+                    + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(
+                            startMillis)) + "\", \"wall_ms\": " + (end - startMillis)
+                    + ", \"stdout_bytes\": " + out.length() + ", \"stderr_bytes\": "
+                    + err.length() + "}";
+        }
+    }
+
+}
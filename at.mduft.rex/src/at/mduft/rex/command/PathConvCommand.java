@@ -4,20 +4,14 @@
 package at.mduft.rex.command;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import joptsimple.ArgumentAcceptingOptionSpec;
-import joptsimple.OptionParser;
-import joptsimple.OptionSet;
-import joptsimple.OptionSpecBuilder;
-import at.mduft.rex.util.CrNlHelpFormatter;
 import at.mduft.rex.util.HelpAppender;
+import at.mduft.rex.util.RequestParser;
+import at.mduft.rex.util.Trace;
 
 /**
  * Command that will convert paths from client to server format and vice versa.
@@ -25,37 +19,23 @@ import at.mduft.rex.util.HelpAppender;
 public class PathConvCommand extends SimpleCommand {
 
 	private static final Logger log = LoggerFactory.getLogger(PathConvCommand.class);
-	private static final OptionParser PARSER;
-	private final OptionSet opts;
-	private static final ArgumentAcceptingOptionSpec<String> OPT_ROOTS;
-	private static final ArgumentAcceptingOptionSpec<String> OPT_TOSERVER;
-	private static final ArgumentAcceptingOptionSpec<String> OPT_TOCLIENT;
-	private static final OptionSpecBuilder OPT_CHECKSERVER;
+	private final RequestParser.Result opts;
+	private static final RequestParser.Option OPT_ROOTS = RequestParser
+			.list("mappings of server-paths to client-paths, each mapping sperated by ';', groups separated by ','",
+					"server-path;client-path,...", "roots").required();
+	private static final RequestParser.Option OPT_TOSERVER = RequestParser
+			.list("paths to be converted to server format", "client-path,...",
+					"to-server", "s");
+	private static final RequestParser.Option OPT_CHECKSERVER = RequestParser
+			.flag("check whether the path on the server exists. prefixes result with '!' if not.",
+					"check-exists", "e");
+	private static final RequestParser.Option OPT_TOCLIENT = RequestParser
+			.list("paths to be converted to client format", "server-path,...",
+					"to-client", "c");
 
-	static {
-		PARSER = new OptionParser();
-		PARSER.formatHelpWith(CrNlHelpFormatter.INSTANCE);
-
-		OPT_ROOTS = PARSER
-				.accepts(
-						"roots",
-						"mappings of server-paths to client-paths, each mapping sperated by ';', groups separated by ','")
-				.withRequiredArg().describedAs("server-path;client-path,...")
-				.withValuesSeparatedBy(',').required();
-		OPT_TOSERVER = PARSER
-				.acceptsAll(Arrays.asList("to-server", "s"),
-						"paths to be converted to server format")
-				.withRequiredArg().describedAs("client-path,...")
-				.withValuesSeparatedBy(',');
-		OPT_CHECKSERVER = PARSER
-				.acceptsAll(Arrays.asList("check-exists", "e"),
-						"check whether the path on the server exists. prefixes result with '!' if not.");
-		OPT_TOCLIENT = PARSER
-				.acceptsAll(Arrays.asList("to-client", "c"),
-						"paths to be converted to client format")
-				.withRequiredArg().describedAs("server-path,...")
-				.withValuesSeparatedBy(',');
-	}
+	/** immutable, shared by all sessions without locking */
+	private static final RequestParser PARSER = new RequestParser(OPT_ROOTS,
+			OPT_TOSERVER, OPT_CHECKSERVER, OPT_TOCLIENT);
 
 	/**
 	 * Creates a new {@link PathConvCommand} with the given raw arguments from
@@ -65,12 +45,12 @@ public class PathConvCommand extends SimpleCommand {
 	 *            the raw arguments containing the operation to perform.
 	 */
 	public PathConvCommand(String[] arguments) {
-		synchronized (PARSER) {
-			this.opts = PARSER.parse(arguments);
-		}
+		// argument 0 is the command name.
+		this.opts = PARSER.parse(arguments, 1);
 	}
 
 	@Override
+	@SuppressWarnings("try")
 	public Integer call() throws Exception {
 		ArgumentProcessor proc = new ArgumentProcessor(
 				ArgumentProcessor.getRootMappingsFromArgument(opts
@@ -81,8 +61,11 @@ public class PathConvCommand extends SimpleCommand {
 				log.info("convert path: " + x + " -> " + path);
 				if (opts.has(OPT_CHECKSERVER)) {
 					File f = new File(path);
-					if (!f.exists()) {
-						wr.print('!');
+					try (Trace.Span span = Trace.span("fs check", "exists "
+							+ f)) {
+						if (!f.exists()) {
+							wr.print('!');
+						}
 					}
 				}
 				wr.print(path);
@@ -98,11 +81,8 @@ public class PathConvCommand extends SimpleCommand {
 	}
 
 	@HelpAppender
-	public static void appendHelp(StringBuilder builder) throws IOException {
-		try (StringWriter wr = new StringWriter()) {
-			PARSER.printHelpOn(wr);
-			builder.append(wr.toString());
-		}
+	public static void appendHelp(StringBuilder builder) {
+		builder.append(PARSER.help());
 	}
 
 }
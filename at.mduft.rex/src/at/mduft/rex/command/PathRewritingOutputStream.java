@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import at.mduft.rex.util.BufferPool;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * {@link OutputStream} that rewrites server paths in process output to client paths, fex. in
+ * compiler diagnostics, the streaming counterpart of
+ * {@link ArgumentProcessor#transformPath(String, boolean)}. All server roots are matched at once
+ * by a single {@link Automaton}, so each byte is looked at once, no matter how many roots are
+ * mapped. Path separators following a rewritten root are converted to the client's style, up to
+ * the end of the path (whitespace, quotes, parentheses, colons and the like).
+ * <p>
+ * A root is only rewritten if it does not directly follow a letter, digit or path separator, and
+ * is not directly followed by a letter, digit, '_', '-' or '.'.
+ * Bytes that may be the beginning of a root are held back until the match is decided, also across
+ * {@link #flush()}, so matches split between writes are found. At most the length of the longest
+ * root is held back, and released on {@link #close()}.
+ * <p>
+ * The output is treated as ASCII compatible bytes.
+ */
+public class PathRewritingOutputStream extends FilterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** automatons by root mappings, as most execs use the same mappings */
+    private static final ConcurrentMap<String, Automaton> automatons = new ConcurrentHashMap<>();
+    private static final int MAX_AUTOMATONS = 64;
+
+    private final Automaton automaton;
+    private byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+    private int buffered;
+
+    /** bytes that might be the beginning of a root, as many as the depth of the state */
+    private final byte[] held;
+    private int heldLen;
+    private int state;
+
+    /** length of a complete root at the start of held, waiting for a possibly longer one */
+    private int matchLen;
+    private byte[] matchReplacement;
+
+    /** length of a root ending with the last held byte, valid if not followed by a name */
+    private int candidateLen;
+    private byte[] candidateReplacement;
+
+    /** the last input byte before the held bytes, -1 at the beginning */
+    private int last = -1;
+    private boolean inPath;
+    private boolean lastWasSep;
+    private byte separator;
+
+    /**
+     * @param out
+     *            the stream to write rewritten output to
+     * @param automaton
+     *            the {@link Automaton} matching the server roots, see {@link #forRoots(Map, boolean)}.
+     */
+    public PathRewritingOutputStream(OutputStream out, Automaton automaton) {
+        super(out);
+        this.automaton = automaton;
+        this.held = new byte[automaton.maxDepth + 1];
+    }
+
+    /**
+     * @param rootMappings
+     *            mappings of client path (key) to server path (value)
+     * @param foldCase
+     *            whether server roots are matched case insensitive (Windows servers).
+     * @return an {@link Automaton} rewriting the server roots to the client roots, shared with
+     *         other execs using the same mappings.
+     */
+    public static Automaton forRoots(Map<String, String> rootMappings, boolean foldCase) {
+        String key = foldCase + ":" + rootMappings;
+        Automaton automaton = automatons.get(key);
+        if (automaton == null) {
+            if (automatons.size() >= MAX_AUTOMATONS) {
+                automatons.clear();
+            }
+            automaton = new Automaton(rootMappings, foldCase);
+            automatons.put(key, automaton);
+        }
+        return automaton;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (state == 0 && !inPath && candidateLen == 0) {
+                // fast path: copy everything that cannot start a root as is.
+                int start = i;
+                while (i < end && !automaton.starts[b[i] & 0xff]) {
+                    i++;
+                }
+                if (i > start) {
+                    put(b, start, i - start);
+                    last = b[i - 1] & 0xff;
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+            feed(b[i++]);
+        }
+        drainBuffer();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        drainBuffer();
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        if (candidateLen > 0) {
+            matchLen = candidateLen;
+            matchReplacement = candidateReplacement;
+        }
+        byte[] rest = matchLen > 0 ? commit() : Arrays.copyOf(held, heldLen);
+        heldLen = 0;
+        state = 0;
+        for (byte r : rest) {
+            emit(r);
+        }
+        try {
+            flush();
+        } finally {
+            BufferPool.release(buffer);
+            buffer = null;
+            out.close();
+        }
+    }
+
+    private void feed(byte b) throws IOException {
+        if (candidateLen > 0) {
+            // a root only matches if it is not followed by more of a name.
+            if (!continuesName(b)) {
+                matchLen = candidateLen;
+                matchReplacement = candidateReplacement;
+            }
+            candidateLen = 0;
+            candidateReplacement = null;
+        }
+
+        int next = automaton.delta[state * automaton.classCount
+                + automaton.classes[b & 0xff]];
+        int drop = heldLen + 1 - automaton.depth[next];
+
+        if (matchLen > 0 && drop > 0) {
+            // the longer root did not match, use the complete one.
+            byte[] rest = commit();
+            for (byte r : rest) {
+                feed(r);
+            }
+            feed(b);
+            return;
+        }
+
+        if (drop > 0) {
+            int fromHeld = Math.min(drop, heldLen);
+            for (int i = 0; i < fromHeld; ++i) {
+                emit(held[i]);
+            }
+            System.arraycopy(held, fromHeld, held, 0, heldLen - fromHeld);
+            heldLen -= fromHeld;
+            if (drop > fromHeld) {
+                // back at the root, b cannot be part of a root either.
+                emit(b);
+                state = next;
+                return;
+            }
+        }
+        held[heldLen++] = b;
+        state = next;
+
+        byte[] replacement = automaton.replacement[state];
+        if (replacement != null && isBoundary(last)) {
+            candidateLen = heldLen;
+            candidateReplacement = replacement;
+        }
+    }
+
+    /**
+     * Writes the replacement for the pending match.
+     *
+     * @return the held bytes following the match, to be fed again.
+     */
+    private byte[] commit() throws IOException {
+        for (byte r : matchReplacement) {
+            put(r);
+        }
+        Metrics.counter("exec.rewrite.paths").incrementAndGet();
+        byte[] rest = Arrays.copyOfRange(held, matchLen, heldLen);
+        last = held[matchLen - 1] & 0xff;
+        separator = matchReplacement[matchReplacement.length - 1];
+        inPath = true;
+        lastWasSep = true;
+        heldLen = 0;
+        state = 0;
+        matchLen = 0;
+        matchReplacement = null;
+        return rest;
+    }
+
+    /**
+     * Writes a byte that is not part of a root, converting path separators if it belongs to a
+     * rewritten path.
+     */
+    private void emit(byte b) throws IOException {
+        last = b & 0xff;
+        if (inPath) {
+            if (b == '/' || b == '\\') {
+                if (!lastWasSep) {
+                    put(separator);
+                }
+                lastWasSep = true;
+                return;
+            }
+            if (isTerminator(b)) {
+                inPath = false;
+            }
+            lastWasSep = false;
+        }
+        put(b);
+    }
+
+    private void put(byte b) throws IOException {
+        if (buffered == buffer.length) {
+            drainBuffer();
+        }
+        buffer[buffered++] = b;
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        if (buffered + len > buffer.length) {
+            drainBuffer();
+            if (len >= buffer.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buffer, buffered, len);
+        buffered += len;
+    }
+
+    private void drainBuffer() throws IOException {
+        if (buffered > 0) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    private static boolean isBoundary(int c) {
+        return c == -1
+                || !(c == '/' || c == '\\' || c >= 0x80 || Character.isLetterOrDigit(c));
+    }
+
+    private static boolean continuesName(byte b) {
+        return b < 0 || b == '_' || b == '-' || b == '.' || Character.isLetterOrDigit(b);
+    }
+
+    private static boolean isTerminator(byte b) {
+        switch (b) {
+            case '"':
+            case '\'':
+            case '`':
+            case '(':
+            case ')':
+            case '[':
+            case ']':
+            case '{':
+            case '}':
+            case '<':
+            case '>':
+            case '|':
+            case ',':
+            case ';':
+            case ':':
+            case '=':
+                return true;
+            default:
+                return b >= 0 && b <= ' ';
+        }
+    }
+
+    /**
+     * Deterministic Aho-Corasick automaton over all server roots. To keep the transition table
+     * small, bytes are mapped to classes first: one per distinct byte occurring in a root, and
+     * class 0 for all others. '/' and '\' are the same class, as are upper and lower case letters
+     * if case is folded.
+     */
+    public static final class Automaton {
+
+        final byte[] classes = new byte[256];
+        final int classCount;
+        /** next state by state * classCount + class */
+        final int[] delta;
+        final int[] depth;
+        /** the client root (with separator) for states that complete a server root */
+        final byte[][] replacement;
+        /** bytes that may start a root */
+        final boolean[] starts = new boolean[256];
+        final int maxDepth;
+
+        Automaton(Map<String, String> rootMappings, boolean foldCase) {
+            List<byte[]> roots = new ArrayList<>();
+            List<byte[]> replacements = new ArrayList<>();
+            int classCount = 1;
+            int totalLength = 1;
+            for (Map.Entry<String, String> mapping : rootMappings.entrySet()) {
+                byte[] root = canonical(mapping.getValue(), foldCase);
+                if (root.length == 0) {
+                    continue;
+                }
+                for (byte b : root) {
+                    if (classes[b & 0xff] == 0) {
+                        byte cls = (byte) classCount++;
+                        classes[b & 0xff] = cls;
+                        if (b == '/') {
+                            classes['\\'] = cls;
+                        } else if (foldCase && Character.isLetter(b)) {
+                            classes[Character.toUpperCase(b)] = cls;
+                        }
+                    }
+                }
+                roots.add(root);
+                String client = mapping.getKey().replaceAll("[/\\\\]+$", "");
+                String sep = mapping.getKey().contains("\\") ? "\\" : "/";
+                replacements.add((client + sep).getBytes(StandardCharsets.UTF_8));
+                totalLength += root.length;
+            }
+            if (classCount > 127) {
+                throw new IllegalArgumentException("too many distinct characters in roots");
+            }
+            this.classCount = classCount;
+
+            // trie
+            int[] trie = new int[totalLength * classCount];
+            int[] depth = new int[totalLength];
+            byte[][] replacement = new byte[totalLength][];
+            int states = 1;
+            int maxDepth = 0;
+            for (int r = 0; r < roots.size(); ++r) {
+                int s = 0;
+                for (byte b : roots.get(r)) {
+                    int idx = s * classCount + classes[b & 0xff];
+                    if (trie[idx] == 0) {
+                        trie[idx] = states;
+                        depth[states] = depth[s] + 1;
+                        states++;
+                    }
+                    s = trie[idx];
+                }
+                replacement[s] = replacements.get(r);
+                maxDepth = Math.max(maxDepth, depth[s]);
+            }
+            for (int b = 0; b < 256; ++b) {
+                starts[b] = trie[classes[b]] != 0;
+            }
+
+            // breadth first: missing transitions follow the failure link.
+            int[] delta = Arrays.copyOf(trie, states * classCount);
+            int[] fail = new int[states];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int c = 1; c < classCount; ++c) {
+                if (delta[c] != 0) {
+                    queue.add(delta[c]);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int s = queue.poll();
+                for (int c = 1; c < classCount; ++c) {
+                    int idx = s * classCount + c;
+                    int t = trie[idx];
+                    if (t != 0) {
+                        fail[t] = delta[fail[s] * classCount + c];
+                        queue.add(t);
+                    } else {
+                        delta[idx] = delta[fail[s] * classCount + c];
+                    }
+                }
+            }
+
+            this.delta = delta;
+            this.depth = Arrays.copyOf(depth, states);
+            this.replacement = Arrays.copyOf(replacement, states);
+            this.maxDepth = maxDepth;
+        }
+
+        private static byte[] canonical(String root, boolean foldCase) {
+            String canonical = root.replace('\\', '/').replaceAll("/+$", "");
+            if (foldCase) {
+                canonical = canonical.toLowerCase();
+            }
+            return canonical.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+}
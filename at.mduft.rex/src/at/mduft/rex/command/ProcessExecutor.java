@@ -11,8 +11,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.EnumSet;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.sshd.common.util.Buffer;
 import org.apache.sshd.server.shell.InvertedShell;
 import org.apache.sshd.server.shell.ProcessShellFactory;
 import org.apache.sshd.server.shell.ProcessShellFactory.ProcessShell;
@@ -20,6 +20,10 @@ import org.apache.sshd.server.shell.ProcessShellFactory.TtyOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.mduft.rex.util.BufferPool;
+import at.mduft.rex.util.Metrics;
+import at.mduft.rex.util.Trace;
+
 /**
  * Can execute arbitrary commands. Basically an adapted copy of
  * {@link ProcessShell}, to get rid of its binding to
@@ -38,6 +42,9 @@ public class ProcessExecutor implements InvertedShell {
 	/** the process or null if not yet executing */
 	private Process process;
 
+	/** tracks exit of {@link #process} */
+	private ProcessLifecycle lifecycle;
+
 	/** servers input side, connected to process' stdout */
 	private TtyFilterOutputStream in;
 
@@ -58,6 +65,28 @@ public class ProcessExecutor implements InvertedShell {
 
 	private final ArgumentProcessor proc;
 
+	/** files to stage to scratch storage, or null */
+	private final Staging staging;
+
+	/** whether to pass the command to a persistent worker */
+	private final boolean worker;
+
+	/** why the request has been abandoned, or null */
+	private final AtomicReference<String> abandoned = new AtomicReference<>();
+
+	/** fingerprint of the client's key for {@link ResourceAccounting}, or null */
+	private String keyFingerprint;
+
+	/** resource usage of the process, set before any stream is read */
+	private volatile ResourceAccounting.Usage usage;
+
+	/** correlation id of the request, see {@link Trace} */
+	private String requestId = "-";
+
+	/** files stdout and stderr are redirected to, or null */
+	private File redirectOut;
+	private File redirectErr;
+
 	/**
 	 * Creates a new {@link ProcessExecutor}.
 	 * 
@@ -74,29 +103,174 @@ public class ProcessExecutor implements InvertedShell {
 	 */
 	public ProcessExecutor(String[] command, Map<String, String> rootMappings,
 			String clientPwd, EnumSet<TtyOptions> options) {
+		this(command, rootMappings, clientPwd, options, null, false);
+	}
+
+	/**
+	 * Creates a new {@link ProcessExecutor} running the command on staged
+	 * copies of some files, or in a persistent worker.
+	 * 
+	 * @param command
+	 *            the command to execute. has to be at least of length 1
+	 * @param rootMappings
+	 *            the (absolute!) paths mapped to each other, client path is
+	 *            key, server is value.
+	 * @param clientPwd
+	 *            the (client) current working directory. must be within the
+	 *            shared filesystem
+	 * @param options
+	 *            the {@link TtyOptions} to be used for streams.
+	 * @param staging
+	 *            the {@link Staging} of the command's files, may be
+	 *            <code>null</code>.
+	 * @param worker
+	 *            whether to pass the command to a persistent worker from the
+	 *            {@link WorkerPool} instead of starting a process.
+	 */
+	ProcessExecutor(String[] command, Map<String, String> rootMappings,
+			String clientPwd, EnumSet<TtyOptions> options, Staging staging,
+			boolean worker) {
 		this.command = command;
 		this.ttyOptions = options;
 		this.clientPwd = clientPwd;
-		this.proc = new ArgumentProcessor(rootMappings);
+		this.staging = staging;
+		this.worker = worker;
+		this.proc = staging == null ? new ArgumentProcessor(rootMappings)
+				: staging.getProcessor();
 	}
 
 	@Override
 	public void start(Map<String, String> env) throws IOException {
+		final Trace trace = Trace.current();
+		final String id = Trace.currentId();
+		requestId = id;
 		checkSetup(proc);
+		long start = System.currentTimeMillis();
+		try {
+			spawn(env, trace, id);
+		} finally {
+			if (lifecycle == null) {
+				proc.releaseResponseFiles();
+			}
+		}
+		usage = ResourceAccounting.start(command[0], keyFingerprint, lifecycle);
+		final long spawned = System.nanoTime();
+		lifecycle.onExit(new Runnable() {
+			@Override
+			public void run() {
+				proc.releaseResponseFiles();
+				if (trace != null) {
+					trace.record("run", spawned, System.nanoTime());
+					trace.mark("exit");
+					trace.annotate("exit", exitValue());
+				}
+				log.info("[" + id + "] " + command[0] + " done, status="
+						+ exitValue());
+			}
+		});
+		log.debug("start took " + (System.currentTimeMillis() - start) + "ms.");
+	}
 
+	/**
+	 * Copies the staged inputs to scratch storage, see {@link Staging}. Must
+	 * be called before {@link #start(Map)} if there is a {@link Staging}.
+	 * 
+	 * @throws IOException
+	 *             if an input cannot be copied.
+	 */
+	@SuppressWarnings("try")
+	void stageIn() throws IOException {
+		try (Trace.Span span = Trace.span("stage-in")) {
+			staging.stageIn();
+		}
+	}
+
+	/**
+	 * Transforms the command and starts it, in a new process or a worker.
+	 */
+	@SuppressWarnings("try")
+	private void spawn(Map<String, String> env, Trace trace, String id)
+			throws IOException {
 		ProcessBuilder builder = new ProcessBuilder();
 		String[] cmds = proc.process(command, clientPwd, env,
 				builder.environment());
 		builder.command(cmds);
 		builder.directory(new File(proc.transformPath(clientPwd, true)));
 
-		log.info("starting '{}'", builder.command());
-		long start = System.currentTimeMillis();
-		process = builder.start();
-		out = new TtyFilterInputStream(process.getInputStream());
-		err = new TtyFilterInputStream(process.getErrorStream());
-		in = new TtyFilterOutputStream(process.getOutputStream(), err);
-		System.out.println("start took " + (System.currentTimeMillis() - start) + "ms.");
+		log.info("[{}] starting '{}'", id, builder.command());
+		try (Trace.Span span = Trace.span("spawn")) {
+			WorkerPool.Request request = worker ? WorkerPool.submit(builder)
+					: null;
+			if (request != null) {
+				lifecycle = request.getLifecycle();
+				out = new TtyFilterInputStream(request.getOutputStream());
+				err = new TtyFilterInputStream(request.getErrorStream());
+				in = new TtyFilterOutputStream(request.getInputStream(), err);
+			} else {
+				if (trace != null) {
+					builder.environment().put(Trace.ENV_REQUEST_ID, id);
+				}
+				if (redirectOut != null) {
+					builder.redirectOutput(redirectOut);
+					builder.redirectError(redirectErr);
+				}
+				final CpuPlacement.Placement placement = CpuPlacement.acquire();
+				if (placement != null) {
+					builder.command(CpuPlacement.wrap(placement,
+							builder.command()));
+					log.debug("[{}] placed on {}", id, placement);
+				}
+				try {
+					process = builder.start();
+				} catch (IOException | RuntimeException e) {
+					CpuPlacement.release(placement);
+					throw e;
+				}
+				lifecycle = ProcessLifecycle.watch(process);
+				lifecycle.onExit(new Runnable() {
+					@Override
+					public void run() {
+						CpuPlacement.release(placement);
+					}
+				});
+				out = new TtyFilterInputStream(process.getInputStream());
+				err = new TtyFilterInputStream(process.getErrorStream());
+				in = new TtyFilterOutputStream(process.getOutputStream(), err);
+			}
+		}
+	}
+
+	/**
+	 * Sets the key the process' resource usage is accounted to. Must be
+	 * called before {@link #start(Map)}.
+	 * 
+	 * @param keyFingerprint
+	 *            the fingerprint of the client's key, may be <code>null</code>.
+	 */
+	void setKeyFingerprint(String keyFingerprint) {
+		this.keyFingerprint = keyFingerprint;
+	}
+
+	/**
+	 * @return the resource usage of the process, registered when it is
+	 *         started. <code>null</code> if not started.
+	 */
+	ResourceAccounting.Usage getUsage() {
+		return usage;
+	}
+
+	/**
+	 * Lets the process write its output to files instead of pipes. Must be
+	 * called before {@link #start(Map)}, not supported for workers.
+	 * 
+	 * @param out
+	 *            the file to write stdout to.
+	 * @param err
+	 *            the file to write stderr to.
+	 */
+	void redirect(File out, File err) {
+		this.redirectOut = out;
+		this.redirectErr = err;
 	}
 
 	/**
@@ -137,86 +311,188 @@ public class ProcessExecutor implements InvertedShell {
 		return err;
 	}
 
+	/**
+	 * @return the executable as given by the client.
+	 */
+	public String getExecutable() {
+		return command[0];
+	}
+
+	/**
+	 * @return the {@link ArgumentProcessor} transforming the command.
+	 */
+	ArgumentProcessor getArgumentProcessor() {
+		return proc;
+	}
+
+	/**
+	 * @return the {@link Staging} of the command's files, or
+	 *         <code>null</code> if nothing is staged.
+	 */
+	Staging getStaging() {
+		return staging;
+	}
+
+	/**
+	 * @return the {@link ProcessLifecycle} of the started process, or
+	 *         <code>null</code> if not yet started.
+	 */
+	public ProcessLifecycle getLifecycle() {
+		return lifecycle;
+	}
+
 	@Override
 	public boolean isAlive() {
-		log.trace("check alive");
-		if (process == null) {
-			return false;
-		}
-
-		try {
-			process.exitValue();
-			log.trace("no");
-			return false;
-		} catch (IllegalThreadStateException e) {
-			log.trace("yes");
-			return true;
-		}
+		return lifecycle != null && !lifecycle.hasExited();
 	}
 
 	@Override
 	public int exitValue() {
-		log.trace("get exit value");
-		if (process == null) {
+		if (lifecycle == null) {
 			return -1;
 		}
 		try {
-			int status = process.waitFor();
-			log.info(command[0] + " done, status=" + status);
-			return status;
+			return lifecycle.awaitExit();
 		} catch (InterruptedException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Terminates the process and all processes it started.
+	 */
 	@Override
 	public void destroy() {
-		if (process != null) {
-			process.destroy();
+		if (lifecycle != null) {
+			lifecycle.destroyTree();
 		}
 	}
 
 	/**
-	 * Copy of {@link ProcessShell}s {@code TtyFilterInputStream}.
+	 * Terminates the process tree of a request nobody waits for anymore, fex.
+	 * because its deadline passed or the client went away. Counts the CPU
+	 * time the tree had used, which is no longer spent on work nobody reads.
+	 * Does nothing once the process has exited, or if it has been abandoned
+	 * already: the first reason is kept.
+	 * 
+	 * @param reason
+	 *            why the request is abandoned, for metrics and logging.
+	 */
+	void abandon(String reason) {
+		if (!isAlive() || !abandoned.compareAndSet(null, reason)) {
+			return;
+		}
+		long cpu = 0;
+		for (long millis : lifecycle.sampleCpu().values()) {
+			cpu += Math.max(0, millis);
+		}
+		log.info("[" + requestId + "] " + command[0] + " abandoned ("
+				+ reason + "), terminating after " + cpu + "ms CPU");
+		Metrics.counter("exec.abandoned." + reason).incrementAndGet();
+		Metrics.counter("exec.reclaimed.cpu_ms").addAndGet(cpu);
+		lifecycle.destroyTree();
+	}
+
+	/**
+	 * @return the reason passed to {@link #abandon(String)} if the process
+	 *         tree has been torn down because of it, <code>null</code>
+	 *         otherwise.
+	 */
+	String getAbandonReason() {
+		return abandoned.get();
+	}
+
+	/**
+	 * Based on {@link ProcessShell}s {@code TtyFilterInputStream}. Pending
+	 * (echoed or not yet returned) data is kept in a buffer from the
+	 * {@link BufferPool}, which is returned to the pool as soon as all pending
+	 * data has been read.
 	 */
 	protected class TtyFilterInputStream extends FilterInputStream {
-		private Buffer buffer;
+		private byte[] buffer;
+		private int rpos;
+		private int wpos;
+		/** a '\n' has to be returned next, after an inserted '\r' */
+		private boolean pendingNl;
 		private int lastChar;
 
 		public TtyFilterInputStream(InputStream in) {
 			super(in);
-			buffer = new Buffer(32);
 		}
 
 		synchronized void write(int c) {
-			buffer.putByte((byte) c);
+			ensureCapacity(1);
+			buffer[wpos++] = (byte) c;
 		}
 
 		synchronized void write(byte[] buf, int off, int len) {
-			buffer.putBytes(buf, off, len);
+			ensureCapacity(len);
+			System.arraycopy(buf, off, buffer, wpos, len);
+			wpos += len;
+		}
+
+		private void ensureCapacity(int len) {
+			if (buffer == null) {
+				buffer = BufferPool.acquire(len);
+			} else if (wpos + len > buffer.length) {
+				int pending = wpos - rpos;
+				byte[] grown = buffer;
+				if (pending + len > buffer.length) {
+					grown = BufferPool.acquire(Math.max(pending + len,
+							buffer.length * 2));
+				}
+				System.arraycopy(buffer, rpos, grown, 0, pending);
+				if (grown != buffer) {
+					BufferPool.release(buffer);
+					buffer = grown;
+				}
+				rpos = 0;
+				wpos = pending;
+			}
+		}
+
+		private int pending() {
+			return wpos - rpos + (pendingNl ? 1 : 0);
+		}
+
+		private void releaseIfDrained() {
+			if (buffer != null && rpos == wpos) {
+				BufferPool.release(buffer);
+				buffer = null;
+				rpos = 0;
+				wpos = 0;
+			}
 		}
 
 		@Override
 		public int available() throws IOException {
-			return super.available() + buffer.available();
+			int pending;
+			synchronized (this) {
+				pending = pending();
+			}
+			return super.available() + pending;
 		}
 
 		@Override
 		public synchronized int read() throws IOException {
 			int c;
-			if (buffer.available() > 0) {
-				c = buffer.getByte();
-				buffer.compact();
+			if (pendingNl) {
+				pendingNl = false;
+				c = '\n';
+			} else if (rpos < wpos) {
+				c = buffer[rpos++] & 0xff;
+				releaseIfDrained();
 			} else {
 				c = super.read();
 			}
+			return translate(c);
+		}
+
+		private int translate(int c) {
 			if (c == '\n' && ttyOptions.contains(TtyOptions.ONlCr)
 					&& lastChar != '\r') {
 				c = '\r';
-				Buffer buf = new Buffer();
-				buf.putByte((byte) '\n');
-				buf.putBuffer(buffer);
-				buffer = buf;
+				pendingNl = true;
 			} else if (c == '\r' && ttyOptions.contains(TtyOptions.OCrNl)) {
 				c = '\n';
 			}
@@ -227,16 +503,44 @@ public class ProcessExecutor implements InvertedShell {
 		@Override
 		public synchronized int read(byte[] b, int off, int len)
 				throws IOException {
-			if (buffer.available() == 0) {
-				int nb = super.read(b, off, len);
-				buffer.putRawBytes(b, off, nb);
+			if (len == 0) {
+				return 0;
+			}
+			if (pending() == 0) {
+				if (!ttyOptions.contains(TtyOptions.ONlCr)
+						&& !ttyOptions.contains(TtyOptions.OCrNl)) {
+					// nothing to translate.
+					return super.read(b, off, len);
+				}
+				// read raw data into the pending buffer, translation might
+				// not fit into the caller's buffer.
+				int chunk = Math.min(len, BufferPool.MAX_SIZE);
+				ensureCapacity(chunk);
+				int nb = super.read(buffer, wpos, chunk);
+				if (nb <= 0) {
+					releaseIfDrained();
+					return nb;
+				}
+				wpos += nb;
 			}
 			int nb = 0;
-			while (nb < len && buffer.available() > 0) {
+			while (nb < len && pending() > 0) {
 				b[off + nb++] = (byte) read();
 			}
 			return nb;
 		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				BufferPool.release(buffer);
+				buffer = null;
+				rpos = 0;
+				wpos = 0;
+			}
+		}
 	}
 
 	/**
@@ -265,8 +569,26 @@ public class ProcessExecutor implements InvertedShell {
 
 		@Override
 		public void write(byte[] b, int off, int len) throws IOException {
-			for (int i = off; i < len; i++) {
-				write(b[i]);
+			// translate a copy and pass it on in one go, instead of byte by
+			// byte.
+			byte[] copy = BufferPool.acquire(len);
+			try {
+				for (int i = 0; i < len; i++) {
+					byte c = b[off + i];
+					if (c == '\n' && ttyOptions.contains(TtyOptions.INlCr)) {
+						c = '\r';
+					} else if (c == '\r'
+							&& ttyOptions.contains(TtyOptions.ICrNl)) {
+						c = '\n';
+					}
+					copy[i] = c;
+				}
+				out.write(copy, 0, len);
+				if (ttyOptions.contains(TtyOptions.Echo)) {
+					echo.write(copy, 0, len);
+				}
+			} finally {
+				BufferPool.release(copy);
 			}
 		}
 	}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Tracks the lifetime of a started {@link Process}. Exit is signaled by an event instead of
+ * polling {@link Process#exitValue()}: on Java 9 and newer, <code>Process.onExit()</code> is used
+ * (via reflection, the code base is Java 7), otherwise a shared reaper thread waits for the
+ * process.
+ * <p>
+ * {@link #destroyTree()} also terminates all descendants of the process on Java 9 and newer, so
+ * commands that spawned further processes do not leave them running. Processes that are still
+ * alive after a grace period are killed forcibly (Java 8 and newer).
+ */
+public abstract class ProcessLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessLifecycle.class);
+
+    private static final Method TO_HANDLE;
+    private static final Method ON_EXIT;
+    private static final Method THEN_RUN;
+    private static final Method DESCENDANTS;
+    private static final Method TO_ARRAY;
+    private static final Method DESTROY_HANDLE;
+    private static final Method DESTROY_HANDLE_FORCIBLY;
+    private static final Method IS_ALIVE;
+    private static final Method DESTROY_FORCIBLY;
+    private static final Method PID;
+    private static final Method INFO;
+    private static final Method TOTAL_CPU;
+    private static final Method OR_ELSE;
+    private static final Method TO_MILLIS;
+
+    private static final ExecutorService REAPERS = Executors
+            .newCachedThreadPool(DaemonThreads.numbered("Process Reaper"));
+
+    /** kills processes that did not exit in time after being asked to */
+    private static final ScheduledExecutorService KILLER = Executors
+            .newSingleThreadScheduledExecutor(DaemonThreads.named("Process Killer"));
+
+    private static volatile long graceMillis = 5000;
+
+    private static final boolean HAS_PROC = new File("/proc/self/stat").isFile();
+
+    static {
+        Method toHandle = null;
+        Method onExit = null;
+        Method thenRun = null;
+        Method descendants = null;
+        Method toArray = null;
+        Method destroy = null;
+        Method destroyForcibly = null;
+        Method isAlive = null;
+        Method pid = null;
+        Method info = null;
+        Method totalCpu = null;
+        Method orElse = null;
+        Method toMillis = null;
+        try {
+            Class<?> handle = Class.forName("java.lang.ProcessHandle");
+            toHandle = Process.class.getMethod("toHandle");
+            onExit = Process.class.getMethod("onExit");
+            thenRun = Class.forName("java.util.concurrent.CompletableFuture").getMethod(
+                    "thenRun", Runnable.class);
+            descendants = handle.getMethod("descendants");
+            toArray = Class.forName("java.util.stream.Stream").getMethod("toArray");
+            destroy = handle.getMethod("destroy");
+            destroyForcibly = handle.getMethod("destroyForcibly");
+            isAlive = handle.getMethod("isAlive");
+            pid = handle.getMethod("pid");
+            info = handle.getMethod("info");
+            totalCpu = Class.forName("java.lang.ProcessHandle$Info").getMethod(
+                    "totalCpuDuration");
+            orElse = Class.forName("java.util.Optional").getMethod("orElse", Object.class);
+            toMillis = Class.forName("java.time.Duration").getMethod("toMillis");
+        } catch (ReflectiveOperationException e) {
+            log.info("no ProcessHandle support, using reaper threads: " + e);
+            toHandle = null;
+        }
+        TO_HANDLE = toHandle;
+        ON_EXIT = onExit;
+        THEN_RUN = thenRun;
+        DESCENDANTS = descendants;
+        TO_ARRAY = toArray;
+        DESTROY_HANDLE = destroy;
+        DESTROY_HANDLE_FORCIBLY = destroyForcibly;
+        IS_ALIVE = isAlive;
+        Method forcibly = null;
+        try {
+            forcibly = Process.class.getMethod("destroyForcibly");
+        } catch (ReflectiveOperationException e) {
+            log.info("no forcible process termination available: " + e);
+        }
+        DESTROY_FORCIBLY = forcibly;
+        PID = pid;
+        INFO = info;
+        TOTAL_CPU = totalCpu;
+        OR_ELSE = orElse;
+        TO_MILLIS = toMillis;
+    }
+
+    protected final Process process;
+    private final CountDownLatch exited = new CountDownLatch(1);
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean destroyed = new AtomicBoolean();
+    private volatile int exitValue;
+
+    private ProcessLifecycle(Process process) {
+        this.process = process;
+    }
+
+    /**
+     * Configures how processes are terminated.
+     *
+     * @param grace
+     *            time in milliseconds processes get to exit after being asked to by
+     *            {@link #destroyTree()}, before they are killed forcibly.
+     */
+    public static void configure(long grace) {
+        graceMillis = grace;
+    }
+
+    /**
+     * Starts watching the given process.
+     *
+     * @param process
+     *            the freshly started process.
+     * @return the {@link ProcessLifecycle} tracking the process.
+     */
+    public static ProcessLifecycle watch(Process process) {
+        ProcessLifecycle lifecycle;
+        if (TO_HANDLE != null) {
+            lifecycle = new HandleLifecycle(process);
+        } else {
+            lifecycle = new ReaperLifecycle(process);
+        }
+        lifecycle.startWatching();
+        return lifecycle;
+    }
+
+    /**
+     * Creates a {@link ProcessLifecycle} for a single request handled by a long running process
+     * (a persistent worker). Its exit is signaled by calling {@link #exited(int)} once the
+     * response has been received.
+     *
+     * @param worker
+     *            the process handling the request.
+     * @param cancel
+     *            called by {@link #destroyTree()} to abort the request.
+     * @return the {@link ProcessLifecycle} tracking the request.
+     */
+    static ProcessLifecycle forRequest(Process worker, final Runnable cancel) {
+        return new ProcessLifecycle(worker) {
+            @Override
+            protected void startWatching() {
+                // exit is signaled by the worker pool.
+            }
+
+            @Override
+            protected void terminate() {
+                cancel.run();
+            }
+
+            @Override
+            public Map<Long, Long> sampleCpu() {
+                // the worker's CPU time is not attributable to a single request.
+                return Collections.emptyMap();
+            }
+        };
+    }
+
+    protected abstract void startWatching();
+
+    /**
+     * Terminates the process and, where supported, all of its descendants. Processes still alive
+     * after the grace period are killed forcibly. Only the first call has an effect.
+     */
+    public void destroyTree() {
+        if (destroyed.compareAndSet(false, true)) {
+            terminate();
+        }
+    }
+
+    /**
+     * Asks the process and its descendants to exit, and schedules killing them with
+     * {@link #escalate(Runnable)}.
+     */
+    protected abstract void terminate();
+
+    /**
+     * Runs the given task once the grace period has passed.
+     */
+    private static void escalate(Runnable kill) {
+        KILLER.schedule(kill, graceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Samples the CPU time used so far by the process and its live descendants.
+     *
+     * @return the CPU time in milliseconds by process id, -1 where unknown. Empty if not
+     *         supported by the JVM or once the process has exited.
+     */
+    public abstract Map<Long, Long> sampleCpu();
+
+    /**
+     * @return whether the process has exited. Never blocks.
+     */
+    public boolean hasExited() {
+        return exited.getCount() == 0;
+    }
+
+    /**
+     * Waits for the process to exit.
+     *
+     * @return the exit value of the process.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public int awaitExit() throws InterruptedException {
+        exited.await();
+        return exitValue;
+    }
+
+    /**
+     * Registers a listener called once the process has exited, right away if it already has.
+     * Listeners are called on the thread noticing the exit and must not block.
+     *
+     * @param listener
+     *            the listener to call.
+     */
+    public void onExit(Runnable listener) {
+        listeners.add(listener);
+        if (hasExited() && listeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Called once the process has exited.
+     */
+    protected void exited() {
+        exited(process.exitValue());
+    }
+
+    /**
+     * Called once the process has exited, or the request has been handled.
+     *
+     * @param status
+     *            the exit value to report.
+     */
+    protected void exited(int status) {
+        synchronized (this) {
+            if (hasExited()) {
+                return;
+            }
+            exitValue = status;
+            exited.countDown();
+        }
+        for (Runnable listener : listeners) {
+            if (listeners.remove(listener)) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    log.warn("process exit listener failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Uses the Java 9 <code>ProcessHandle</code> API.
+     */
+    private static final class HandleLifecycle extends ProcessLifecycle {
+
+        HandleLifecycle(Process process) {
+            super(process);
+        }
+
+        @Override
+        protected void startWatching() {
+            try {
+                THEN_RUN.invoke(ON_EXIT.invoke(process), new Runnable() {
+                    @Override
+                    public void run() {
+                        exited();
+                    }
+                });
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("cannot watch process", e);
+            }
+        }
+
+        @Override
+        public Map<Long, Long> sampleCpu() {
+            if (hasExited()) {
+                return Collections.emptyMap();
+            }
+            Map<Long, Long> result = new LinkedHashMap<>();
+            try {
+                Object handle = TO_HANDLE.invoke(process);
+                sampleCpu(handle, result);
+                for (Object descendant : descendants()) {
+                    sampleCpu(descendant, result);
+                }
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.debug("cannot sample process: " + e);
+            }
+            return result;
+        }
+
+        private void sampleCpu(Object handle, Map<Long, Long> result)
+                throws IllegalAccessException, InvocationTargetException {
+            Object duration = OR_ELSE.invoke(TOTAL_CPU.invoke(INFO.invoke(handle)), (Object) null);
+            long millis = duration == null ? -1 : (Long) TO_MILLIS.invoke(duration);
+            result.put((Long) PID.invoke(handle), millis);
+        }
+
+        private Object[] descendants() {
+            try {
+                return (Object[]) TO_ARRAY.invoke(DESCENDANTS.invoke(TO_HANDLE.invoke(process)));
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.debug("cannot determine descendants: " + e);
+                return new Object[0];
+            }
+        }
+
+        @Override
+        protected void terminate() {
+            // collect descendants first, they are re-parented once the process is gone.
+            final Object[] descendants = descendants();
+            process.destroy();
+            invoke(DESTROY_HANDLE, descendants);
+            Metrics.counter("exec.destroy.descendants").addAndGet(descendants.length);
+            escalate(new Runnable() {
+                @Override
+                public void run() {
+                    // descendants started while terminating are only known while the process
+                    // lives.
+                    Object[] late = hasExited() ? new Object[0] : descendants();
+                    boolean alive = !hasExited() || late.length > 0;
+                    for (Object handle : descendants) {
+                        alive |= isRunning(handle);
+                    }
+                    if (!alive) {
+                        return;
+                    }
+                    Metrics.counter("exec.destroy.killed").incrementAndGet();
+                    try {
+                        invoke(DESTROY_HANDLE_FORCIBLY, TO_HANDLE.invoke(process));
+                    } catch (IllegalAccessException | InvocationTargetException e) {
+                        log.debug("cannot kill process: " + e);
+                    }
+                    invoke(DESTROY_HANDLE_FORCIBLY, descendants);
+                    invoke(DESTROY_HANDLE_FORCIBLY, late);
+                }
+            });
+        }
+
+        /**
+         * @return whether the process is alive and not a zombie. Exited descendants stay zombies
+         *         until their new parent reaps them.
+         */
+        private static boolean isRunning(Object handle) {
+            if (!Boolean.TRUE.equals(invoke(IS_ALIVE, handle))) {
+                return false;
+            }
+            if (!HAS_PROC) {
+                return true;
+            }
+            try {
+                String stat = new String(Files.readAllBytes(Paths.get("/proc",
+                        String.valueOf(invoke(PID, handle)), "stat")), StandardCharsets.UTF_8);
+                // the state follows the command name, which may contain anything.
+                return stat.charAt(stat.lastIndexOf(')') + 2) != 'Z';
+            } catch (IOException | RuntimeException e) {
+                // gone in the meantime.
+                return false;
+            }
+        }
+
+        private static void invoke(Method method, Object[] handles) {
+            for (Object handle : handles) {
+                invoke(method, handle);
+            }
+        }
+
+        private static Object invoke(Method method, Object handle) {
+            try {
+                return method.invoke(handle);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.debug("cannot signal process: " + e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Fallback for older JVMs, blocks a pooled thread per running process.
+     */
+    private static final class ReaperLifecycle extends ProcessLifecycle {
+
+        ReaperLifecycle(Process process) {
+            super(process);
+        }
+
+        @Override
+        protected void startWatching() {
+            REAPERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean interrupted = false;
+                    for (;;) {
+                        try {
+                            process.waitFor();
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    exited();
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public Map<Long, Long> sampleCpu() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        protected void terminate() {
+            // descendants cannot be determined without ProcessHandle.
+            process.destroy();
+            if (DESTROY_FORCIBLY == null) {
+                return;
+            }
+            escalate(new Runnable() {
+                @Override
+                public void run() {
+                    if (hasExited()) {
+                        return;
+                    }
+                    Metrics.counter("exec.destroy.killed").incrementAndGet();
+                    try {
+                        DESTROY_FORCIBLY.invoke(process);
+                    } catch (IllegalAccessException | InvocationTargetException e) {
+                        log.debug("cannot kill process: " + e);
+                    }
+                }
+            });
+        }
+    }
+
+}
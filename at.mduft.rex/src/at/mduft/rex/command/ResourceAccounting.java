@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.Json;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Collects the resources used by executed commands: wall time, CPU time and peak memory of the
+ * whole process tree, and the bytes passed to and from it. Usage is aggregated per command name
+ * and per client key into bounded tables, of which the most expensive entries can be printed
+ * using the <code>usage</code> command. Each finished exec is also appended as a JSON line to a
+ * size limited log file, if configured.
+ * <p>
+ * CPU time and memory are sampled periodically (CPU requires Java 9, memory Linux'
+ * <code>/proc</code>). Processes living shorter than the sample interval, as well as the last
+ * interval of every process, are therefore not accounted for. Peak memory is the sum of the
+ * peak resident sizes of all processes in the tree.
+ */
+public final class ResourceAccounting {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceAccounting.class);
+
+    /** maximum number of distinct commands and keys remembered */
+    private static final int MAX_AGGREGATES = 1024;
+
+    /** size of the usage log before it is rolled over */
+    private static final long MAX_LOG_SIZE = 10 * 1024 * 1024;
+
+    private static final boolean HAS_PROC = new File("/proc/self/status").isFile();
+
+    private static final Comparator<Aggregate> BY_CPU = new Comparator<Aggregate>() {
+        @Override
+        public int compare(Aggregate o1, Aggregate o2) {
+            int c = Long.compare(o1.cpuMillis, o2.cpuMillis);
+            return c != 0 ? c : Long.compare(o1.wallMillis, o2.wallMillis);
+        }
+    };
+
+    private static final Set<Usage> active = Collections
+            .newSetFromMap(new ConcurrentHashMap<Usage, Boolean>());
+    private static final Map<String, Aggregate> byCommand = new HashMap<>();
+    private static final Map<String, Aggregate> byKey = new HashMap<>();
+    private static PriorityQueue<Aggregate> topExecs = new PriorityQueue<>(20, BY_CPU);
+    private static int topN = 20;
+
+    private static ScheduledExecutorService sampler;
+    private static ExecutorService logWriter;
+    private static File logFile;
+    private static Writer logOut;
+
+    static {
+        Metrics.gauge("exec.active", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return active.size();
+            }
+        });
+    }
+
+    private ResourceAccounting() {
+    }
+
+    /**
+     * Configures accounting and starts sampling. Must be called before any command is executed.
+     *
+     * @param sampleMillis
+     *            interval in which CPU time and memory are sampled
+     * @param top
+     *            number of entries to keep/print per table
+     * @param usageLog
+     *            file to append each finished exec to, <code>null</code> to disable.
+     */
+    public static synchronized void configure(long sampleMillis, int top, File usageLog) {
+        topN = top;
+        topExecs = new PriorityQueue<>(Math.max(1, top), BY_CPU);
+        logFile = usageLog;
+        if (logFile != null && logWriter == null) {
+            logWriter = Executors.newSingleThreadExecutor(DaemonThreads.named("Usage Log"));
+        }
+        if (sampler != null) {
+            sampler.shutdown();
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("Usage Sampler"));
+        sampler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Usage usage : active) {
+                    usage.sample();
+                }
+            }
+        }, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Starts accounting for a freshly started process.
+     *
+     * @param command
+     *            the command that has been executed, only the file name is used.
+     * @param key
+     *            fingerprint of the client's key, <code>null</code> if unknown.
+     * @param lifecycle
+     *            the lifecycle of the started process.
+     * @return the {@link Usage} to finish once all output has been passed to the client.
+     */
+    public static Usage start(String command, String key, ProcessLifecycle lifecycle) {
+        String name = command.substring(Math.max(command.lastIndexOf('/'),
+                command.lastIndexOf('\\')) + 1);
+        final Usage usage = new Usage(name, key == null ? "unknown" : key, lifecycle);
+        active.add(usage);
+        lifecycle.onExit(new Runnable() {
+            @Override
+            public void run() {
+                usage.exited();
+            }
+        });
+        return usage;
+    }
+
+    private static synchronized void record(Usage usage) {
+        aggregate(byCommand, usage.command, usage);
+        aggregate(byKey, usage.key, usage);
+
+        Aggregate exec = new Aggregate(usage.toString());
+        exec.add(usage);
+        topExecs.add(exec);
+        if (topExecs.size() > topN) {
+            topExecs.poll();
+        }
+
+        Metrics.counter("exec.usage.cpu_ms").addAndGet(usage.cpuMillis());
+        Metrics.counter("exec.usage.wall_ms").addAndGet(usage.wallMillis());
+        Metrics.latency("exec.wall").record(
+                TimeUnit.NANOSECONDS.toMicros(usage.endNanos - usage.startNanos));
+
+        if (logFile != null) {
+            final String line = usage.toJson();
+            logWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    appendLog(line);
+                }
+            });
+        }
+    }
+
+    private static void aggregate(Map<String, Aggregate> table, String name, Usage usage) {
+        Aggregate aggregate = table.get(name);
+        if (aggregate == null) {
+            if (table.size() >= MAX_AGGREGATES) {
+                // forget the cheapest entry to stay bounded.
+                table.remove(Collections.min(table.values(), BY_CPU).name);
+            }
+            aggregate = new Aggregate(name);
+            table.put(name, aggregate);
+        }
+        aggregate.add(usage);
+    }
+
+    /**
+     * Called on the log writer thread only.
+     */
+    private static void appendLog(String line) {
+        try {
+            if (logOut != null && logFile.length() > MAX_LOG_SIZE) {
+                logOut.close();
+                logOut = null;
+                Path path = logFile.toPath();
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (logOut == null) {
+                logOut = new OutputStreamWriter(new FileOutputStream(logFile, true),
+                        StandardCharsets.UTF_8);
+            }
+            logOut.write(line);
+            logOut.write('\n');
+            logOut.flush();
+        } catch (IOException e) {
+            log.warn("cannot write usage log " + logFile + ": " + e);
+        }
+    }
+
+    /**
+     * Prints the most expensive commands, keys and single execs.
+     *
+     * @param wr
+     *            the {@link PrintWriter} to print to.
+     */
+    public static void print(PrintWriter wr) {
+        List<Aggregate> commands;
+        List<Aggregate> keys;
+        List<Aggregate> execs;
+        synchronized (ResourceAccounting.class) {
+            commands = top(byCommand.values());
+            keys = top(byKey.values());
+            execs = top(topExecs);
+        }
+        print(wr, "commands", commands, true);
+        print(wr, "keys", keys, true);
+        print(wr, "execs", execs, false);
+    }
+
+    private static List<Aggregate> top(Iterable<Aggregate> all) {
+        List<Aggregate> result = new ArrayList<>();
+        for (Aggregate a : all) {
+            result.add(a.copy());
+        }
+        Collections.sort(result, Collections.reverseOrder(BY_CPU));
+        return result.subList(0, Math.min(topN, result.size()));
+    }
+
+    private static void print(PrintWriter wr, String title, List<Aggregate> entries,
+            boolean withCount) {
+        wr.print(title + ":\n");
+        for (Aggregate a : entries) {
+            wr.print("  " + a.name);
+            if (withCount) {
+                wr.print(" count=" + a.count);
+            }
+            wr.print(" cpu_ms=" + a.cpuMillis + " wall_ms=" + a.wallMillis + " peak_rss_kb="
+                    + a.peakRssKb + " bytes_in=" + a.bytesIn + " bytes_out=" + a.bytesOut + "\n");
+        }
+    }
+
+    /**
+     * Resources used by a single exec.
+     */
+    public static final class Usage {
+
+        private final String command;
+        private final String key;
+        private final ProcessLifecycle lifecycle;
+        private final long start = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+        private final Map<Long, Long> cpuByPid = new HashMap<>();
+        private final Map<Long, Long> rssByPid = new HashMap<>();
+        private long bytesIn;
+        private long bytesOut;
+        private int exitStatus;
+
+        private Usage(String command, String key, ProcessLifecycle lifecycle) {
+            this.command = command;
+            this.key = key;
+            this.lifecycle = lifecycle;
+        }
+
+        /**
+         * Called periodically by the sampler thread.
+         */
+        void sample() {
+            Map<Long, Long> cpu = lifecycle.sampleCpu();
+            Map<Long, Long> rss = new HashMap<>();
+            if (HAS_PROC) {
+                for (Long pid : cpu.keySet()) {
+                    long peak = readPeakRss(pid);
+                    if (peak >= 0) {
+                        rss.put(pid, peak);
+                    }
+                }
+            }
+            synchronized (this) {
+                maxInto(cpuByPid, cpu);
+                maxInto(rssByPid, rss);
+            }
+        }
+
+        private static void maxInto(Map<Long, Long> target, Map<Long, Long> sample) {
+            for (Map.Entry<Long, Long> e : sample.entrySet()) {
+                Long old = target.get(e.getKey());
+                if (old == null || old < e.getValue()) {
+                    target.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        private static long readPeakRss(long pid) {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid),
+                        "status"), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // process already gone.
+            }
+            return -1;
+        }
+
+        void exited() {
+            endNanos = System.nanoTime();
+        }
+
+        /**
+         * Finishes accounting once all output has been passed on.
+         *
+         * @param status
+         *            the exit status of the process
+         * @param in
+         *            number of bytes passed to the process
+         * @param out
+         *            number of bytes passed from the process to the client.
+         */
+        public void finish(int status, long in, long out) {
+            if (!active.remove(this)) {
+                return;
+            }
+            if (endNanos == 0) {
+                endNanos = System.nanoTime();
+            }
+            synchronized (this) {
+                exitStatus = status;
+                bytesIn = in;
+                bytesOut = out;
+            }
+            record(this);
+        }
+
+        synchronized long cpuMillis() {
+            long total = 0;
+            for (long cpu : cpuByPid.values()) {
+                total += Math.max(0, cpu);
+            }
+            return total;
+        }
+
+        synchronized long peakRssKb() {
+            if (rssByPid.isEmpty()) {
+                return -1;
+            }
+            long total = 0;
+            for (long rss : rssByPid.values()) {
+                total += rss;
+            }
+            return total;
+        }
+
+        long wallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+        }
+
+        synchronized String toJson() {
+            return "{\"time\": \"" + timestamp() + "\", \"command\": \"" + Json.escape(command)
+                    + "\", \"key\": \"" + key + "\", \"exit\": " + exitStatus
+                    + ", \"wall_ms\": " + wallMillis() + ", \"cpu_ms\": " + cpuMillis()
+                    + ", \"peak_rss_kb\": " + peakRssKb() + ", \"bytes_in\": " + bytesIn
+                    + ", \"bytes_out\": " + bytesOut + "}";
+        }
+
+        private String timestamp() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(start));
+        }
+
+
+        @Override
+        public String toString() {
+            return timestamp() + " " + command + " key=" + key + " exit=" + exitStatus;
+        }
+    }
+
+    /**
+     * Accumulated usage of a command, key or single exec.
+     */
+    private static final class Aggregate {
+
+        final String name;
+        long count;
+        long cpuMillis;
+        long wallMillis;
+        long peakRssKb = -1;
+        long bytesIn;
+        long bytesOut;
+
+        Aggregate(String name) {
+            this.name = name;
+        }
+
+        void add(Usage usage) {
+            count++;
+            cpuMillis += usage.cpuMillis();
+            wallMillis += usage.wallMillis();
+            peakRssKb = Math.max(peakRssKb, usage.peakRssKb());
+            synchronized (usage) {
+                bytesIn += usage.bytesIn;
+                bytesOut += usage.bytesOut;
+            }
+        }
+
+        Aggregate copy() {
+            Aggregate c = new Aggregate(name);
+            c.count = count;
+            c.cpuMillis = cpuMillis;
+            c.wallMillis = wallMillis;
+            c.peakRssKb = peakRssKb;
+            c.bytesIn = bytesIn;
+            c.bytesOut = bytesOut;
+            return c;
+        }
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Translates client paths inside response files (<code>@file.rsp</code> arguments), which build
+ * tools use to keep long command lines below the OS limit. Each whitespace separated (and
+ * optionally double quoted) token of the file is translated like a command line argument using
+ * {@link ArgumentProcessor#transformPath(String, boolean)}, and the result is written to a server
+ * local copy. Nested response files are not followed.
+ * <p>
+ * Files are processed in a single streaming pass, large ones are memory mapped. Translated copies
+ * are cached by a hash of the file's content and the root mappings, so unchanged response files
+ * (the common case in incremental builds) are translated only once, also when several commands
+ * need the same file at the same time. A copy is never replaced once written, as a running
+ * process might have it open. The cache is bounded to {@link #MAX_CACHED} files, evicting the
+ * least recently used one no command uses anymore, see {@link #release(String)}.
+ * <p>
+ * Files starting with a UTF-16LE byte order mark (as written by MSBuild) are processed as such,
+ * all other files byte-transparently as ISO-8859-1, so any ASCII compatible encoding survives
+ * unchanged.
+ */
+final class ResponseFiles {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseFiles.class);
+
+    /** files larger than this are memory mapped instead of being read */
+    private static final long MAP_THRESHOLD = 256 * 1024;
+
+    /** maximum number of translated copies kept while not in use */
+    private static final int MAX_CACHED = 512;
+
+    private static final int CHUNK = 8192;
+
+    private static final String SUFFIX = ".rsp";
+
+    /** translated copies by hash, in access order. guarded by the class lock */
+    private static final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static Path cacheDir;
+
+    private ResponseFiles() {
+    }
+
+    /**
+     * Provides a translated copy of the given response file. The copy is in use until passed to
+     * {@link #release(String)}.
+     *
+     * @param proc
+     *            the {@link ArgumentProcessor} to translate paths with
+     * @param file
+     *            the response file (server path)
+     * @return the path of the translated copy.
+     * @throws IOException
+     *             if the file cannot be read or the copy cannot be written.
+     */
+    static String translate(ArgumentProcessor proc, File file) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer content = read(channel);
+            String hash = hash(proc, content.duplicate());
+
+            Entry entry;
+            boolean owner = false;
+            synchronized (ResponseFiles.class) {
+                if (cacheDir == null) {
+                    cacheDir = Files.createTempDirectory("rex-rsp");
+                }
+                entry = cache.get(hash);
+                if (entry == null) {
+                    entry = new Entry(cacheDir.resolve(hash + SUFFIX));
+                    cache.put(hash, entry);
+                    owner = true;
+                }
+                entry.users++;
+                evict();
+            }
+
+            try {
+                if (!owner) {
+                    // wait for a translation of the same content in progress.
+                    entry.await();
+                }
+                if (!owner && Files.isRegularFile(entry.path)) {
+                    Metrics.counter("exec.rsp.cache_hit").incrementAndGet();
+                    return entry.path.toString();
+                }
+                try {
+                    write(proc, content, entry.path);
+                } finally {
+                    entry.done.countDown();
+                }
+            } catch (IOException | RuntimeException e) {
+                release(entry.path.toString());
+                throw e;
+            }
+
+            Metrics.counter("exec.rsp.translated").incrementAndGet();
+            Metrics.counter("exec.rsp.bytes").addAndGet(channel.size());
+            Metrics.latency("exec.rsp.translate").recordSince(start);
+            log.debug("translated " + file + " to " + entry.path);
+            return entry.path.toString();
+        }
+    }
+
+    /**
+     * Marks a copy returned by {@link #translate(ArgumentProcessor, File)} as no longer used by
+     * the command it was translated for, making it eligible for eviction.
+     *
+     * @param translated
+     *            the path of the translated copy
+     */
+    static void release(String translated) {
+        String name = Paths.get(translated).getFileName().toString();
+        String hash = name.substring(0, name.length() - SUFFIX.length());
+        synchronized (ResponseFiles.class) {
+            Entry entry = cache.get(hash);
+            if (entry != null && entry.users > 0) {
+                entry.users--;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used copies not in use until the cache fits
+     * {@link #MAX_CACHED}. Called with the class lock held.
+     */
+    private static void evict() {
+        Iterator<Entry> entries = cache.values().iterator();
+        while (cache.size() > MAX_CACHED && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.users == 0) {
+                entries.remove();
+                deleteQuietly(entry.path);
+            }
+        }
+    }
+
+    /**
+     * Writes the translated copy unless it exists already. Copies are named by the hash of their
+     * source, so an existing one has the same content and is kept: on Windows it cannot be
+     * replaced while a process has it open.
+     */
+    private static void write(ArgumentProcessor proc, ByteBuffer content, Path target)
+            throws IOException {
+        if (Files.isRegularFile(target)) {
+            return;
+        }
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(),
+                ".tmp");
+        try {
+            Charset charset = detectCharset(content);
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    Files.newOutputStream(temp), charset), CHUNK)) {
+                new Translator(proc, out).translate(content, charset);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            log.debug("keeping existing " + target);
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // read fully.
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String hash(ArgumentProcessor proc, ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(proc.getRootMappings().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(content);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                        Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Charset detectCharset(ByteBuffer content) {
+        if (content.remaining() >= 2 && (content.get(0) & 0xff) == 0xff
+                && (content.get(1) & 0xff) == 0xfe) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return StandardCharsets.ISO_8859_1;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.debug("cannot delete " + path + ": " + e);
+        }
+    }
+
+    /**
+     * A translated copy and the number of commands using it.
+     */
+    private static final class Entry {
+
+        final Path path;
+
+        /** released once the copy has been written (or writing failed) */
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /** guarded by the class lock */
+        int users;
+
+        Entry(Path path) {
+            this.path = path;
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for " + path);
+            }
+        }
+    }
+
+    /**
+     * Splits the decoded content into tokens, passing separators through unchanged and
+     * translating each token.
+     */
+    private static final class Translator {
+
+        private final ArgumentProcessor proc;
+        private final Writer out;
+        private final StringBuilder token = new StringBuilder();
+        private boolean quoted;
+
+        Translator(ArgumentProcessor proc, Writer out) {
+            this.proc = proc;
+            this.out = out;
+        }
+
+        void translate(ByteBuffer content, Charset charset) throws IOException {
+            CharsetDecoder decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate(CHUNK);
+            CoderResult result;
+            do {
+                result = decoder.decode(content, chars, true);
+                process(chars);
+            } while (result.isOverflow());
+            while (decoder.flush(chars).isOverflow()) {
+                process(chars);
+            }
+            process(chars);
+            flushToken();
+        }
+
+        private void process(CharBuffer chars) throws IOException {
+            chars.flip();
+            while (chars.hasRemaining()) {
+                char c = chars.get();
+                if (c == '"') {
+                    quoted = !quoted;
+                    token.append(c);
+                } else if (!quoted && Character.isWhitespace(c)) {
+                    flushToken();
+                    out.write(c);
+                } else {
+                    token.append(c);
+                }
+            }
+            chars.clear();
+        }
+
+        private void flushToken() throws IOException {
+            if (token.length() > 0) {
+                out.write(proc.transformPath(token.toString(), true));
+                token.setLength(0);
+            }
+        }
+    }
+
+}
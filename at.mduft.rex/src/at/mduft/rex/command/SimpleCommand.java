@@ -6,7 +6,17 @@ package at.mduft.rex.command;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.sshd.server.Command;
 import org.apache.sshd.server.Environment;
@@ -14,18 +24,69 @@ import org.apache.sshd.server.ExitCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.Metrics;
+import at.mduft.rex.util.Trace;
+
 /**
  * Simple base class for commands that can be represented as a {@link Callable}.
+ * <p>
+ * {@link #call()} is not run on the thread calling {@link #start(Environment)}, which is one of
+ * sshd's I/O threads, but on a separate pool. So a slow command (fex. file checks on a CIFS share)
+ * cannot delay unrelated sessions. The exit status is reported once {@link #call()} returned, or
+ * once the command exceeded its {@link #getTimeoutMillis() timeout}.
  */
 public abstract class SimpleCommand implements Command, Callable<Integer> {
 
     private static final Logger log = LoggerFactory.getLogger(SimpleCommand.class);
 
+    /** exit status if the command did not finish in time, like timeout(1) */
+    private static final int TIMED_OUT = 124;
+
+    /** exit status if there is no thread to run the command */
+    private static final int REJECTED = 125;
+
+    private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1,
+            DaemonThreads.numbered("Simple Command Timeout"));
+
+    static {
+        // finished commands must not be kept until their timeout.
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    private static volatile ThreadPoolExecutor executor = createExecutor(64);
+    private static volatile long timeoutMillis = 30000;
+
     protected InputStream in;
     protected OutputStream out;
     protected OutputStream err;
     protected Environment env;
     private ExitCallback exit;
+    private final AtomicBoolean exited = new AtomicBoolean();
+    private volatile Future<?> running;
+    private volatile ScheduledFuture<?> deadline;
+
+    /**
+     * Configures the pool running all simple commands.
+     *
+     * @param threads
+     *            maximum number of commands running at once, more are rejected. Idle threads are
+     *            stopped after a minute.
+     * @param timeout
+     *            time after which a command is interrupted and reported as failed, unless the
+     *            command defines its own {@link #getTimeoutMillis() timeout}.
+     */
+    public static synchronized void configure(int threads, long timeout) {
+        executor.shutdown();
+        executor = createExecutor(threads);
+        timeoutMillis = timeout;
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+        return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), DaemonThreads.numbered("Simple Command"));
+    }
+
 
     @Override
     public void setInputStream(InputStream in) {
@@ -47,23 +108,113 @@ public abstract class SimpleCommand implements Command, Callable<Integer> {
         this.exit = callback;
     }
 
+    /**
+     * @return the time after which the command is interrupted and reported as failed, 0 for no
+     *         limit. Defaults to the configured timeout.
+     */
+    protected long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return the name of the command in metrics, fex. <code>path</code> for the
+     *         {@link PathConvCommand}.
+     */
+    private String getName() {
+        return getClass().getSimpleName().replaceFirst("(Conv)?Command$", "").toLowerCase(Locale.ROOT);
+    }
+
     @Override
+    @SuppressWarnings("try")
     public void start(Environment env) throws IOException {
         this.env = env;
-        int status = 127;
+        final Trace trace = Trace.current();
+        final long queued = System.nanoTime();
+        final String name = getName();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                Metrics.latency("command.queue").recordSince(queued);
+                long start = System.nanoTime();
+                Trace previous = Trace.attach(trace);
+                int status = 127;
+                try (Trace.Span span = Trace.span("call")) {
+                    status = call();
+                } catch (Exception e) {
+                    if (exited.get()) {
+                        // interrupted because of the timeout or destroy.
+                        log.debug("simple command aborted: " + e);
+                    } else {
+                        log.warn("exception in simple command", e);
+                    }
+                    status = 255;
+                } finally {
+                    Trace.attach(previous);
+                    Metrics.latency("command." + name).recordSince(start);
+                    finish(status);
+                }
+            }
+        };
+
         try {
-            status = call();
-        } catch (Exception e) {
-            log.warn("exception in simple command", e);
-            status = 255;
-        } finally {
+            running = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            Metrics.counter("command.rejected").incrementAndGet();
+            report("rex: too many commands running, try again later");
+            finish(REJECTED);
+            return;
+        }
+
+        final long limit = getTimeoutMillis();
+        if (limit > 0) {
+            deadline = timeouts.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (exited.get()) {
+                        return;
+                    }
+                    Metrics.counter("command.timeouts").incrementAndGet();
+                    log.warn("[" + (trace == null ? "-" : trace.getId()) + "] " + name
+                            + " timed out after " + limit + "ms");
+                    report("rex: " + name + " timed out after " + limit + "ms");
+                    finish(TIMED_OUT);
+                    running.cancel(true);
+                }
+            }, limit, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reports the exit status, only the first call has an effect.
+     */
+    private void finish(int status) {
+        if (exited.compareAndSet(false, true)) {
+            ScheduledFuture<?> timeout = deadline;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
             exit.onExit(status);
         }
     }
 
+    private void report(String message) {
+        try {
+            err.write((message + "\r\n").getBytes(StandardCharsets.UTF_8));
+            err.flush();
+        } catch (IOException e) {
+            log.debug("cannot report to client: " + e);
+        }
+    }
+
+    /**
+     * Interrupts the command if still running, fex. because the channel has been closed.
+     */
     @Override
     public void destroy() {
-        // nothing
+        Future<?> future = running;
+        if (future != null && exited.compareAndSet(false, true)) {
+            future.cancel(true);
+        }
     }
 
 }
@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Stages files of an exec to server local scratch storage, so tools doing many small reads and
+ * writes do not pay the round trip to the shared file system for each of them.
+ * <p>
+ * Declared inputs (files or directories) are copied from the shared root to the scratch directory
+ * before the process starts, declared outputs are copied back after it exited. The process sees
+ * the scratch copies: the {@link ArgumentProcessor} returned by {@link #getProcessor()} maps the
+ * client paths of all staged items (and paths below them) to their scratch location, everything
+ * else is still accessed on the shared root.
+ * <p>
+ * The scratch directory mirrors each server root and is kept between execs, so it acts as a
+ * cache: files are only copied if size or modification time differ, and files with the same size
+ * but a different modification time are compared by content hash first. Before each exec, files
+ * no longer present on the shared root are removed from the staged inputs' mirror. Outputs that
+ * are not below an input are written to a fresh directory of the exec instead of the mirror, so
+ * only what the command wrote is copied back. Outputs below an input are written to the mirror;
+ * from stage-in until stage-out, other execs staging the same input neither prune nor overwrite
+ * them. Copies use
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, are run in
+ * parallel by a shared pool of {@link #configure(File, int) configurable} size, and replace the
+ * target atomically, so concurrent execs staging the same files never see partial copies. Files
+ * deleted by the process are not deleted on the shared root.
+ */
+public final class Staging {
+
+    private static final Logger log = LoggerFactory.getLogger(Staging.class);
+
+    /** files larger than this are memory mapped to compute their hash */
+    private static final long MAP_THRESHOLD = 256 * 1024;
+
+    private static final int CHUNK = 64 * 1024;
+
+    private static File scratch = new File(System.getProperty("java.io.tmpdir"), "rex-scratch");
+    private static ExecutorService copiers;
+
+    /** longest client paths first, so nested items are mapped to the right copy */
+    private static final Comparator<String> LONGEST_FIRST = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.length() != o2.length() ? o2.length() - o1.length() : o1.compareTo(o2);
+        }
+    };
+
+    /** mirror paths of outputs of execs between stage-in and stage-out, by number of execs */
+    private static final Map<Path, Integer> liveOutputs = new HashMap<>();
+
+    private final Map<Path, Path> inputs = new LinkedHashMap<>();
+    private final Map<Path, Path> outputs = new LinkedHashMap<>();
+    private final Set<Path> outputDirs = new HashSet<>();
+    private final ArgumentProcessor processor;
+
+    /** directory of the outputs not below an input, removed after stage-out */
+    private final Path execDir;
+    /** outputs written to the mirror, see {@link #liveOutputs} */
+    private final List<Path> mirrored = new ArrayList<>();
+    private volatile boolean stagedIn;
+    /** whether {@link #mirrored} is registered in {@link #liveOutputs} */
+    private boolean live;
+
+    /**
+     * Sets the scratch directory and the number of files copied in parallel. Must be called
+     * before the first exec is staged.
+     *
+     * @param dir
+     *            the server local directory to stage files to.
+     * @param threads
+     *            the number of parallel copies.
+     */
+    public static synchronized void configure(File dir, int threads) {
+        scratch = dir;
+        if (copiers != null) {
+            copiers.shutdown();
+        }
+        copiers = createCopiers(threads);
+    }
+
+    private static synchronized ExecutorService getCopiers() {
+        if (copiers == null) {
+            copiers = createCopiers(Runtime.getRuntime().availableProcessors());
+        }
+        return copiers;
+    }
+
+    private static ExecutorService createCopiers(int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads),
+                DaemonThreads.numbered("Stage Copy"));
+    }
+
+    /**
+     * Creates the {@link Staging} for an exec.
+     *
+     * @param rootMappings
+     *            the mappings of client path (key) to server path (value).
+     * @param clientPwd
+     *            the (client) working directory, relative items are resolved against it.
+     * @param in
+     *            client paths of files or directories to stage before the process starts.
+     * @param out
+     *            client paths of files or directories to copy back after the process exited.
+     *            Paths ending in a separator are directories.
+     * @return the {@link Staging}, or <code>null</code> if nothing is to be staged.
+     */
+    static Staging create(Map<String, String> rootMappings, String clientPwd, List<String> in,
+            List<String> out) {
+        if (in.isEmpty() && out.isEmpty()) {
+            return null;
+        }
+        return new Staging(rootMappings, clientPwd, in, out);
+    }
+
+    private Staging(Map<String, String> rootMappings, String clientPwd, List<String> in,
+            List<String> out) {
+        ArgumentProcessor roots = new ArgumentProcessor(rootMappings);
+        Map<String, String> staged = new TreeMap<>(LONGEST_FIRST);
+        Path mirror = scratch.toPath();
+        for (String item : in) {
+            String client = resolve(roots, clientPwd, item);
+            Path server = Paths.get(roots.transformPath(client, true)).normalize();
+            Path local = map(rootMappings, server, mirror);
+            staged.put(client, local.toString());
+            inputs.put(server, local);
+        }
+        this.execDir = mirror.resolve("exec").resolve(
+                String.format("%016x", ThreadLocalRandom.current().nextLong()));
+        for (String item : out) {
+            String client = resolve(roots, clientPwd, item);
+            Path server = Paths.get(roots.transformPath(client, true)).normalize();
+            boolean below = isInput(server);
+            Path local = map(rootMappings, server, below ? mirror : execDir);
+            if (below) {
+                mirrored.add(local);
+            }
+            staged.put(client, local.toString());
+            outputs.put(server, local);
+            if (item.endsWith("/") || item.endsWith("\\")) {
+                outputDirs.add(local);
+            }
+        }
+        this.processor = new StagingProcessor(rootMappings, staged);
+    }
+
+    private static String resolve(ArgumentProcessor roots, String pwd, String item) {
+        String client = ArgumentProcessor.isPathAbsolute(item) ? item : pwd + "/" + item;
+        if (!roots.isPathInJail(client)) {
+            throw new IllegalArgumentException(
+                    "it is not allowed to escape prison (staged path (" + item
+                            + ") must be within one of the mapped paths)!");
+        }
+        while (client.length() > 1 && (client.endsWith("/") || client.endsWith("\\"))) {
+            client = client.substring(0, client.length() - 1);
+        }
+        return client;
+    }
+
+    /**
+     * @return whether the given server path is a staged input or below one.
+     */
+    private boolean isInput(Path server) {
+        for (Path input : inputs.keySet()) {
+            if (server.startsWith(input)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the location of a staged item below the given scratch directory.
+     */
+    private static Path map(Map<String, String> rootMappings, Path server, Path dir) {
+        for (String serverRoot : rootMappings.values()) {
+            Path root = Paths.get(serverRoot);
+            if (server.startsWith(root)) {
+                return dir.resolve(workspace(serverRoot))
+                        .resolve(root.relativize(server).toString());
+            }
+        }
+        throw new IllegalArgumentException(
+                "it is not allowed to escape prison (staged path (" + server
+                        + ") must be within one of the mapped paths)!");
+    }
+
+    /**
+     * @return the name of the scratch directory mirroring the given server root.
+     */
+    private static String workspace(String serverRoot) {
+        return hex(sha256().digest(serverRoot.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+    }
+
+    /**
+     * @return the {@link ArgumentProcessor} to transform the command with, mapping staged items
+     *         to their scratch copies.
+     */
+    ArgumentProcessor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * Copies all changed inputs to the scratch directory, removes files no longer present on the
+     * shared root from their copies, and creates the directories outputs will be written to.
+     *
+     * @throws IOException
+     *             if an input cannot be copied.
+     */
+    void stageIn() throws IOException {
+        long start = System.nanoTime();
+        List<Path> keep = register();
+        List<Future<Long>> copies = new ArrayList<>();
+        for (Map.Entry<Path, Path> input : inputs.entrySet()) {
+            if (!Files.exists(input.getKey())) {
+                throw new IOException("staged input does not exist: " + input.getKey());
+            }
+            prune(input.getKey(), input.getValue(), keep);
+            copyTree(input.getKey(), input.getValue(), copies, keep);
+        }
+        for (Map.Entry<Path, Path> output : outputs.entrySet()) {
+            if (outputDirs.contains(output.getValue()) || Files.isDirectory(output.getKey())) {
+                Files.createDirectories(output.getValue());
+            } else {
+                Files.createDirectories(output.getValue().getParent());
+            }
+        }
+        long bytes = await(copies);
+        stagedIn = true;
+        Metrics.latency("stage.in").recordSince(start);
+        log.debug("staged " + inputs.keySet() + " in (" + bytes + " bytes copied)");
+    }
+
+    /**
+     * Copies all changed outputs back to the shared root, then removes the exec's output
+     * directory. Copies nothing if the inputs were never staged (the process did not run).
+     *
+     * @throws IOException
+     *             if an output cannot be copied.
+     */
+    void stageOut() throws IOException {
+        if (!stagedIn) {
+            discard();
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            List<Future<Long>> copies = new ArrayList<>();
+            for (Map.Entry<Path, Path> output : outputs.entrySet()) {
+                if (Files.exists(output.getValue())) {
+                    copyTree(output.getValue(), output.getKey(), copies,
+                            Collections.<Path> emptyList());
+                }
+            }
+            long bytes = await(copies);
+            Metrics.latency("stage.out").recordSince(start);
+            log.debug("staged " + outputs.keySet() + " out (" + bytes + " bytes copied)");
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Removes the exec's output directory without copying anything back, fex. if the process
+     * could not be started.
+     */
+    void discard() {
+        unregister();
+        try {
+            delete(execDir);
+        } catch (IOException e) {
+            log.warn("cannot remove scratch outputs " + execDir + ": " + e);
+        }
+    }
+
+    /**
+     * Marks the outputs this exec writes to the mirror as live.
+     *
+     * @return the live outputs of other execs, to be left alone while staging in.
+     */
+    private List<Path> register() {
+        synchronized (liveOutputs) {
+            List<Path> others = new ArrayList<>(liveOutputs.keySet());
+            if (!live) {
+                live = true;
+                for (Path output : mirrored) {
+                    Integer count = liveOutputs.get(output);
+                    liveOutputs.put(output, count == null ? 1 : count + 1);
+                }
+            }
+            return others;
+        }
+    }
+
+    private void unregister() {
+        synchronized (liveOutputs) {
+            if (!live) {
+                return;
+            }
+            live = false;
+            for (Path output : mirrored) {
+                Integer count = liveOutputs.remove(output);
+                if (count != null && count > 1) {
+                    liveOutputs.put(output, count - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the given path is one of the given outputs or below one.
+     */
+    private static boolean isKept(Path path, List<Path> keep) {
+        for (Path output : keep) {
+            if (path.startsWith(output)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether one of the given outputs is below the given directory.
+     */
+    private static boolean containsKept(Path dir, List<Path> keep) {
+        for (Path output : keep) {
+            if (output.startsWith(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes everything below the scratch copy <code>to</code> that does not exist (with the
+     * same type) below <code>from</code> on the shared root. Copies of other execs in progress
+     * and live outputs of other execs are left alone.
+     */
+    private static void prune(final Path from, final Path to, final List<Path> keep)
+            throws IOException {
+        if (!Files.exists(to) || isKept(to, keep)) {
+            return;
+        }
+        if (Files.isDirectory(from) != Files.isDirectory(to)) {
+            if (!containsKept(to, keep)) {
+                delete(to);
+            }
+            return;
+        }
+        Files.walkFileTree(to, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                if (isKept(dir, keep)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!dir.equals(to) && !Files.isDirectory(source(dir))
+                        && !containsKept(dir, keep)) {
+                    delete(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                String name = file.getFileName().toString();
+                boolean temp = name.startsWith(".") && name.endsWith(".rex");
+                if (!temp && !isKept(file, keep) && !Files.isRegularFile(source(file))) {
+                    Files.deleteIfExists(file);
+                    Metrics.counter("stage.pruned").incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private Path source(Path path) {
+                return path.equals(to) ? from : from.resolve(to.relativize(path).toString());
+            }
+        });
+    }
+
+    /**
+     * Deletes the given file or directory tree, if it exists.
+     */
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Walks the given file or directory, creating directories right away and submitting a copy
+     * for each file. Targets below one of the outputs to keep are not touched.
+     */
+    private static void copyTree(final Path from, final Path to, final List<Future<Long>> copies,
+            final List<Path> keep) throws IOException {
+        final ExecutorService pool = getCopiers();
+        if (!Files.isDirectory(from)) {
+            Files.createDirectories(to.getParent());
+        }
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+                    throws IOException {
+                final Path target = file.equals(from) ? to : to.resolve(from.relativize(file)
+                        .toString());
+                if (isKept(target, keep)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                copies.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        return copy(file, attrs, target);
+                    }
+                }));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Waits for all copies, cancelling the remaining ones if one fails.
+     *
+     * @return the number of bytes copied.
+     */
+    private static long await(List<Future<Long>> copies) throws IOException {
+        long bytes = 0;
+        try {
+            for (Future<Long> copy : copies) {
+                bytes += copy.get();
+            }
+            return bytes;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("cannot stage files", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while staging files", e);
+        } finally {
+            for (Future<Long> copy : copies) {
+                copy.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Copies a single file unless the target is up to date. The target gets the modification
+     * time of the source.
+     *
+     * @return the number of bytes copied.
+     */
+    private static long copy(Path from, BasicFileAttributes attrs, Path to) throws IOException {
+        if (Files.exists(to)) {
+            BasicFileAttributes existing = Files.readAttributes(to, BasicFileAttributes.class);
+            if (existing.isRegularFile() && existing.size() == attrs.size()) {
+                if (existing.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                    Metrics.counter("stage.skipped").incrementAndGet();
+                    return 0;
+                }
+                if (Arrays.equals(hash(from), hash(to))) {
+                    Files.setLastModifiedTime(to, attrs.lastModifiedTime());
+                    Metrics.counter("stage.skipped").incrementAndGet();
+                    return 0;
+                }
+            }
+        }
+
+        Path temp = Files.createTempFile(to.getParent(), "." + to.getFileName(), ".rex");
+        try {
+            long size;
+            try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                size = in.size();
+                long pos = 0;
+                while (pos < size) {
+                    pos += in.transferTo(pos, size - pos, out);
+                }
+            }
+            copyPermissions(from, temp);
+            Files.setLastModifiedTime(temp, attrs.lastModifiedTime());
+            try {
+                Files.move(temp, to, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, to, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Metrics.counter("stage.copied").incrementAndGet();
+            Metrics.counter("stage.bytes").addAndGet(size);
+            return size;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Temporary files are only accessible by the owner, copies get the permissions (fex. the
+     * executable bit) of the source.
+     */
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, the defaults apply.
+        }
+    }
+
+    private static byte[] hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                    Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "in=" + inputs.keySet() + ", out=" + outputs.keySet();
+    }
+
+    /**
+     * {@link ArgumentProcessor} mapping staged items to their scratch copies. Unlike root
+     * mappings, a staged item only matches as a whole path (or as parent of a path), so staging
+     * <code>a.h</code> does not affect <code>a.hpp</code>.
+     */
+    private static final class StagingProcessor extends ArgumentProcessor {
+
+        private final Map<String, String> staged;
+        private final Map<String, String> mappings;
+
+        StagingProcessor(Map<String, String> rootMappings, Map<String, String> staged) {
+            super(rootMappings);
+            this.staged = staged;
+            this.mappings = new LinkedHashMap<>(staged);
+            this.mappings.putAll(rootMappings);
+        }
+
+        /**
+         * @return the staged items and the root mappings, as used by
+         *         {@link #transformPath(String, boolean)}.
+         */
+        @Override
+        Map<String, String> getRootMappings() {
+            return mappings;
+        }
+
+        @Override
+        public String transformPath(String arg, boolean toServer) {
+            if (toServer) {
+                for (Map.Entry<String, String> item : staged.entrySet()) {
+                    String client = item.getKey();
+                    for (int at = arg.indexOf(client); at >= 0; at = arg.indexOf(client, at + 1)) {
+                        int end = at + client.length();
+                        if ((at == 0 || !isPathChar(arg.charAt(at - 1)))
+                                && (end == arg.length() || isSeparator(arg.charAt(end)))) {
+                            return arg.substring(0, at) + item.getValue()
+                                    + fixSeparators(arg.substring(end), item.getValue());
+                        }
+                    }
+                }
+            }
+            return super.transformPath(arg, toServer);
+        }
+
+        private static boolean isSeparator(char c) {
+            return c == '/' || c == '\\';
+        }
+
+        private static boolean isPathChar(char c) {
+            return isSeparator(c) || Character.isLetterOrDigit(c);
+        }
+
+        private static String fixSeparators(String rest, String target) {
+            char style = target.contains("\\") ? '\\' : '/';
+            return rest.replace(style == '/' ? '\\' : '/', style);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+import at.mduft.rex.util.HelpAppender;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Command that prints all current {@link Metrics} of the server, one "name value" pair per line.
+ */
+public class StatsCommand extends SimpleCommand {
+
+    @Override
+    public Integer call() throws Exception {
+        try (PrintWriter wr = new PrintWriter(out)) {
+            for (Map.Entry<String, Long> entry : Metrics.snapshot().entrySet()) {
+                wr.print(entry.getKey());
+                wr.print(' ');
+                wr.print(entry.getValue());
+                wr.print('\n');
+            }
+        }
+        return 0;
+    }
+
+    @HelpAppender
+    public static void appendHelp(StringBuilder builder) {
+        builder.append("\t  prints server metrics as 'name value' lines. takes no arguments.\r\n");
+    }
+
+}
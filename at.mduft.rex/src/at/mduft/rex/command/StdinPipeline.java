@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.IOException;
+
+import org.apache.sshd.common.channel.Window;
+import org.apache.sshd.server.channel.ChannelDataReceiver;
+import org.apache.sshd.server.channel.ChannelSession;
+
+import at.mduft.rex.util.Metrics;
+import at.mduft.rex.util.WindowedPipe;
+
+/**
+ * Feeds data received on the SSH channel into a process' stdin. The channel window is only
+ * re-opened for data the process has actually consumed, so a client sending faster than the
+ * process reads is throttled by the SSH flow control (see {@link WindowedPipe}).
+ */
+public class StdinPipeline extends WindowedPipe implements ChannelDataReceiver {
+
+    static {
+        Metrics.gauge("exec.stdin.queued_bytes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return Metrics.counter("exec.stdin.queued").get();
+            }
+        });
+    }
+
+    /**
+     * @param window
+     *            the local window of the channel data is received on.
+     */
+    public StdinPipeline(Window window) {
+        super(window, "exec.stdin");
+    }
+
+    @Override
+    public int data(ChannelSession channel, byte[] buf, int start, int len) throws IOException {
+        return offer(buf, start, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.PrintWriter;
+
+import at.mduft.rex.util.HelpAppender;
+
+/**
+ * Command that prints the most expensive commands, client keys and single execs collected by
+ * {@link ResourceAccounting}.
+ */
+public class UsageCommand extends SimpleCommand {
+
+    @Override
+    public Integer call() throws Exception {
+        try (PrintWriter wr = new PrintWriter(out)) {
+            ResourceAccounting.print(wr);
+        }
+        return 0;
+    }
+
+    @HelpAppender
+    public static void appendHelp(StringBuilder builder) {
+        builder.append("\t  prints the commands, keys and execs that used the most CPU time. takes no arguments.\r\n");
+    }
+
+}
@@ -0,0 +1,660 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.command;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.Json;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * Pool of persistent workers for tools supporting a request/response worker protocol, avoiding
+ * a process start per exec. The protocol is the JSON variant of Bazel's persistent workers: the
+ * tool is started once with an additional <code>--persistent_worker</code> argument, and each
+ * request is written to its stdin as a single line
+ * <code>{"arguments": [...], "requestId": 0}</code>. The worker answers on stdout with a single
+ * line <code>{"exitCode": 0, "output": "..."}</code>, the output being passed to the exec's
+ * stderr. Whatever the worker writes to its own stderr is logged.
+ * <p>
+ * Workers are keyed by executable, translated environment and working directory, and handle one
+ * request at a time. The pool is bounded to {@link #configure(int, long, int, long) a maximum}
+ * number of workers: if none is idle and the maximum is reached, the least recently used idle
+ * worker of another key is retired, or, if all are busy, the exec falls back to starting a
+ * process. Workers are retired after being idle for too long, after a number of requests, when
+ * their resident memory grew too much since their first request (Linux, Java 9 or newer only),
+ * and whenever a request fails.
+ */
+public final class WorkerPool {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkerPool.class);
+
+    /** argument telling a tool to run as persistent worker */
+    static final String WORKER_ARG = "--persistent_worker";
+
+    private static int maxWorkers = Runtime.getRuntime().availableProcessors();
+    private static long idleMillis = TimeUnit.MINUTES.toMillis(5);
+    private static int maxRequests = 1000;
+    private static long maxGrowthKb = 512 * 1024;
+
+    /** idle workers by key, most recently used last */
+    private static final Map<String, Deque<Worker>> idle = new HashMap<>();
+    private static int workers;
+    private static ScheduledExecutorService reaper;
+
+    private static final ExecutorService THREADS = Executors
+            .newCachedThreadPool(DaemonThreads.numbered("Worker"));
+
+    static {
+        Metrics.gauge("worker.count", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                synchronized (WorkerPool.class) {
+                    return workers;
+                }
+            }
+        });
+    }
+
+    private WorkerPool() {
+    }
+
+    /**
+     * Sets the limits of the pool.
+     *
+     * @param max
+     *            the maximum number of workers.
+     * @param idleTimeout
+     *            milliseconds after which an idle worker is retired.
+     * @param requests
+     *            number of requests after which a worker is retired.
+     * @param growthKb
+     *            growth of the resident memory since the first request after which a worker is
+     *            retired, 0 to disable.
+     */
+    public static synchronized void configure(int max, long idleTimeout, int requests,
+            long growthKb) {
+        maxWorkers = Math.max(1, max);
+        idleMillis = idleTimeout;
+        maxRequests = Math.max(1, requests);
+        maxGrowthKb = growthKb;
+    }
+
+    /**
+     * Sends a command to a worker.
+     *
+     * @param builder
+     *            the fully set up {@link ProcessBuilder} that would start the command. The
+     *            worker is started from it (if needed), and its arguments are sent as request.
+     * @return the {@link Request}, or <code>null</code> if all workers are busy and no further
+     *         one may be started.
+     * @throws IOException
+     *             if a worker cannot be started.
+     */
+    static Request submit(ProcessBuilder builder) throws IOException {
+        List<String> command = builder.command();
+        String key = key(builder);
+        Worker worker = acquire(key);
+        if (worker == null) {
+            Metrics.counter("worker.fallback").incrementAndGet();
+            return null;
+        }
+        if (worker.process == null) {
+            try {
+                worker.start(builder);
+            } catch (IOException | RuntimeException e) {
+                retire(worker);
+                throw e;
+            }
+        }
+        Request request = new Request(worker, command.subList(1, command.size()));
+        THREADS.execute(request);
+        return request;
+    }
+
+    private static String key(ProcessBuilder builder) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Map.Entry<String, String> var : new TreeMap<>(builder.environment()).entrySet()) {
+                digest.update((var.getKey() + "=" + var.getValue() + "\0")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder hex = new StringBuilder(16);
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 8; ++i) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(
+                        Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return builder.command().get(0) + "|" + hex + "|" + builder.directory();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return an idle worker for the given key, a new (not yet started) one, or
+     *         <code>null</code> if the pool is exhausted.
+     */
+    private static synchronized Worker acquire(String key) {
+        startReaper();
+        Deque<Worker> candidates = idle.get(key);
+        while (candidates != null && !candidates.isEmpty()) {
+            Worker worker = candidates.pollLast();
+            if (worker.lifecycle.hasExited()) {
+                log.info("worker " + key + " exited while idle");
+                workers--;
+                continue;
+            }
+            Metrics.counter("worker.reused").incrementAndGet();
+            return worker;
+        }
+        if (workers >= maxWorkers) {
+            Worker victim = leastRecentlyUsed();
+            if (victim == null) {
+                return null;
+            }
+            idle.get(victim.key).remove(victim);
+            victim.destroy("making room for " + key);
+            workers--;
+        }
+        workers++;
+        return new Worker(key);
+    }
+
+    private static Worker leastRecentlyUsed() {
+        Worker oldest = null;
+        for (Deque<Worker> candidates : idle.values()) {
+            Worker first = candidates.peekFirst();
+            if (first != null && (oldest == null || first.lastUsed < oldest.lastUsed)) {
+                oldest = first;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Returns a worker after a successful request, unless it should be recycled.
+     */
+    private static void release(Worker worker) {
+        String reason = null;
+        if (worker.requests >= maxRequests) {
+            reason = "handled " + worker.requests + " requests";
+        } else if (maxGrowthKb > 0) {
+            long rss = worker.residentKb();
+            if (worker.baselineKb < 0) {
+                worker.baselineKb = rss;
+            } else if (rss >= 0 && rss - worker.baselineKb > maxGrowthKb) {
+                reason = "memory grew from " + worker.baselineKb + "kB to " + rss + "kB";
+            }
+        }
+        if (reason != null) {
+            worker.destroy(reason);
+            synchronized (WorkerPool.class) {
+                workers--;
+            }
+            return;
+        }
+
+        worker.lastUsed = System.currentTimeMillis();
+        synchronized (WorkerPool.class) {
+            Deque<Worker> candidates = idle.get(worker.key);
+            if (candidates == null) {
+                candidates = new ArrayDeque<>();
+                idle.put(worker.key, candidates);
+            }
+            candidates.addLast(worker);
+        }
+    }
+
+    /**
+     * Removes a broken worker from the pool.
+     */
+    private static void retire(Worker worker) {
+        worker.destroy("failed");
+        synchronized (WorkerPool.class) {
+            workers--;
+        }
+    }
+
+    private static void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("Worker Reaper"));
+        long interval = Math.max(1000, idleMillis / 4);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reapIdle();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static void reapIdle() {
+        List<Worker> expired = new ArrayList<>();
+        long limit = System.currentTimeMillis() - idleMillis;
+        synchronized (WorkerPool.class) {
+            for (Iterator<Deque<Worker>> it = idle.values().iterator(); it.hasNext();) {
+                Deque<Worker> candidates = it.next();
+                while (!candidates.isEmpty() && candidates.peekFirst().lastUsed < limit) {
+                    expired.add(candidates.pollFirst());
+                    workers--;
+                }
+                if (candidates.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        for (Worker worker : expired) {
+            worker.destroy("idle");
+        }
+    }
+
+    /**
+     * A single persistent worker process.
+     */
+    private static final class Worker {
+
+        final String key;
+        Process process;
+        ProcessLifecycle lifecycle;
+        Writer stdin;
+        BufferedReader stdout;
+        int requests;
+        long baselineKb = -1;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Worker(String key) {
+            this.key = key;
+        }
+
+        void start(ProcessBuilder builder) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(builder.command().get(0));
+            command.add(WORKER_ARG);
+            ProcessBuilder worker = new ProcessBuilder(command);
+            worker.environment().clear();
+            worker.environment().putAll(builder.environment());
+            worker.directory(builder.directory());
+
+            process = worker.start();
+            lifecycle = ProcessLifecycle.watch(process);
+            stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            stdout = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                    StandardCharsets.UTF_8));
+            final InputStream stderr = process.getErrorStream();
+            THREADS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            stderr, StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            log.debug("worker " + key + ": " + line);
+                        }
+                    } catch (IOException e) {
+                        // worker gone.
+                    }
+                }
+            });
+            Metrics.counter("worker.started").incrementAndGet();
+            log.info("started worker " + command + " in " + builder.directory());
+        }
+
+        /**
+         * Sends a request and waits for the response.
+         */
+        Response run(List<String> arguments) throws IOException {
+            StringBuilder json = new StringBuilder("{\"arguments\": [");
+            for (int i = 0; i < arguments.size(); ++i) {
+                if (i > 0) {
+                    json.append(", ");
+                }
+                Json.quote(json, arguments.get(i));
+            }
+            json.append("], \"requestId\": 0}\n");
+            stdin.write(json.toString());
+            stdin.flush();
+
+            String line = stdout.readLine();
+            if (line == null) {
+                throw new IOException("worker exited without response");
+            }
+            requests++;
+            return Response.parse(line);
+        }
+
+        /**
+         * @return the resident memory of the worker and its children in kB, -1 if unknown.
+         */
+        long residentKb() {
+            long total = -1;
+            for (Long pid : lifecycle.sampleCpu().keySet()) {
+                try {
+                    for (String line : Files.readAllLines(Paths.get("/proc", pid.toString(),
+                            "status"), StandardCharsets.UTF_8)) {
+                        if (line.startsWith("VmRSS:")) {
+                            total = Math.max(total, 0)
+                                    + Long.parseLong(line.substring(6).replace("kB", "").trim());
+                        }
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    // not on Linux, or the process is gone.
+                }
+            }
+            return total;
+        }
+
+        void destroy(String reason) {
+            if (lifecycle != null) {
+                log.info("retiring worker " + key + ": " + reason);
+                lifecycle.destroyTree();
+                Metrics.counter("worker.retired").incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The response of a worker. Only <code>exitCode</code> and <code>output</code> are used,
+     * all other fields are skipped.
+     */
+    private static final class Response {
+
+        int exitCode;
+        String output = "";
+
+        private final String json;
+        private int pos;
+
+        private Response(String json) {
+            this.json = json;
+        }
+
+        static Response parse(String json) throws IOException {
+            Response response = new Response(json);
+            try {
+                response.parseObject();
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IOException("invalid worker response: " + json);
+            }
+            return response;
+        }
+
+        private void parseObject() throws IOException {
+            expect('{');
+            if (consume('}')) {
+                return;
+            }
+            do {
+                String name = parseString();
+                expect(':');
+                if ("exitCode".equals(name)) {
+                    exitCode = (int) Double.parseDouble(parseLiteral());
+                } else if ("output".equals(name)) {
+                    output = parseString();
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+
+        private String parseString() throws IOException {
+            expect('"');
+            StringBuilder result = new StringBuilder();
+            for (;;) {
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return result.toString();
+                }
+                if (c != '\\') {
+                    result.append(c);
+                    continue;
+                }
+                c = json.charAt(pos++);
+                switch (c) {
+                case 'n':
+                    result.append('\n');
+                    break;
+                case 'r':
+                    result.append('\r');
+                    break;
+                case 't':
+                    result.append('\t');
+                    break;
+                case 'b':
+                    result.append('\b');
+                    break;
+                case 'f':
+                    result.append('\f');
+                    break;
+                case 'u':
+                    result.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    result.append(c);
+                }
+            }
+        }
+
+        private String parseLiteral() {
+            skipWhitespace();
+            int start = pos;
+            while (pos < json.length() && ",}] \t".indexOf(json.charAt(pos)) < 0) {
+                pos++;
+            }
+            return json.substring(start, pos);
+        }
+
+        private void skipValue() throws IOException {
+            skipWhitespace();
+            char c = json.charAt(pos);
+            if (c == '"') {
+                parseString();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                do {
+                    c = json.charAt(pos);
+                    if (c == '"') {
+                        parseString();
+                        continue;
+                    }
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    pos++;
+                } while (depth > 0);
+            } else {
+                parseLiteral();
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (pos < json.length() && json.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) throws IOException {
+            if (!consume(c)) {
+                throw new IOException("invalid worker response, expected '" + c + "' at " + pos
+                        + ": " + json);
+            }
+        }
+    }
+
+    /**
+     * A single exec handled by a worker. Provides the streams and the {@link ProcessLifecycle}
+     * the {@link ProcessExecutor} would otherwise get from a started process.
+     */
+    static final class Request implements Runnable {
+
+        private final Worker worker;
+        private final List<String> arguments;
+        private final ResponseStream stdout = new ResponseStream();
+        private final ResponseStream stderr = new ResponseStream();
+        private final ProcessLifecycle lifecycle;
+        private volatile boolean cancelled;
+
+        Request(final Worker worker, List<String> arguments) {
+            this.worker = worker;
+            this.arguments = arguments;
+            this.lifecycle = ProcessLifecycle.forRequest(worker.process, new Runnable() {
+                @Override
+                public void run() {
+                    // the protocol cannot abort a request, the worker is killed instead.
+                    if (!Request.this.lifecycle.hasExited()) {
+                        cancelled = true;
+                        worker.lifecycle.destroyTree();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            int status;
+            try {
+                Response response = worker.run(arguments);
+                stderr.set(response.output.getBytes(StandardCharsets.UTF_8));
+                status = response.exitCode;
+                Metrics.latency("worker.request").recordSince(start);
+                release(worker);
+            } catch (IOException | RuntimeException e) {
+                if (!cancelled) {
+                    log.warn("worker request failed: " + e);
+                }
+                stderr.set(("rex: persistent worker failed: " + e.getMessage() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                status = -1;
+                retire(worker);
+            }
+            stdout.set(new byte[0]);
+            lifecycle.exited(status);
+        }
+
+        InputStream getOutputStream() {
+            return stdout;
+        }
+
+        InputStream getErrorStream() {
+            return stderr;
+        }
+
+        /**
+         * @return a stream discarding everything, the worker's stdin is used by the protocol.
+         */
+        OutputStream getInputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    // discard.
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    // discard.
+                }
+            };
+        }
+
+        ProcessLifecycle getLifecycle() {
+            return lifecycle;
+        }
+    }
+
+    /**
+     * Stream that has nothing available until the response is set. Reads block until then.
+     */
+    private static final class ResponseStream extends InputStream {
+
+        private volatile byte[] data;
+        private int pos;
+
+        synchronized void set(byte[] data) {
+            this.data = data;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int available() {
+            byte[] d = data;
+            return d == null ? 0 : d.length - pos;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] d = await();
+            return pos >= d.length ? -1 : d[pos++] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            byte[] d = await();
+            if (pos >= d.length) {
+                return -1;
+            }
+            int n = Math.min(len, d.length - pos);
+            System.arraycopy(d, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * Blocks until the response has been received.
+         */
+        private byte[] await() throws IOException {
+            try {
+                while (data == null) {
+                    wait();
+                }
+                return data;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.router;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.client.future.OpenFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.client.EnvExecChannel;
+import at.mduft.rex.client.SessionPool;
+import at.mduft.rex.util.Metrics;
+
+/**
+ * A REX server requests are forwarded to. Keeps a {@link SessionPool} to the server and counts
+ * the requests currently running on it. A backend that failed to open a channel is considered
+ * unhealthy for {@link #RETRY_MILLIS}.
+ */
+public class Backend {
+
+    private static final Logger log = LoggerFactory.getLogger(Backend.class);
+
+    /** time a failed backend is skipped */
+    static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final long OPEN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final String name;
+    private final SessionPool pool;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile long failedUntil;
+
+    /**
+     * @param address
+     *            <code>host:port</code>, optionally followed by <code>=fingerprint</code> of
+     *            the server's host key
+     * @param user
+     *            the user to authenticate as
+     * @param identity
+     *            the key to authenticate with
+     * @param sessions
+     *            the number of sessions to keep to the server.
+     */
+    public Backend(String address, String user, KeyPair identity, int sessions) {
+        String fingerprint = null;
+        int eq = address.indexOf('=');
+        if (eq > 0) {
+            fingerprint = address.substring(eq + 1);
+            address = address.substring(0, eq);
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("backend must be host:port: " + address);
+        }
+        this.name = address;
+        this.pool = new SessionPool(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)), user, identity, sessions,
+                fingerprint);
+
+        Metrics.gauge("router.backend." + name + ".active", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return active.get();
+            }
+        });
+        Metrics.gauge("router.backend." + name + ".healthy", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return isHealthy() ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * @return <code>host:port</code> of the backend.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of requests currently running on the backend.
+     */
+    public int getLoad() {
+        return active.get();
+    }
+
+    /**
+     * @return whether requests should be sent to this backend.
+     */
+    public boolean isHealthy() {
+        return System.currentTimeMillis() >= failedUntil;
+    }
+
+    /**
+     * Opens the given channel on the backend. The channel is counted as running until
+     * {@link #done()} is called, also if opening fails.
+     *
+     * @param channel
+     *            the channel to open.
+     * @throws IOException
+     *             if the channel cannot be opened. The backend is marked unhealthy.
+     */
+    public void open(EnvExecChannel channel) throws IOException {
+        active.incrementAndGet();
+        try {
+            pool.acquire().register(channel);
+            OpenFuture open = channel.open();
+            if (!open.awaitUninterruptibly(OPEN_TIMEOUT) || !open.isOpened()) {
+                throw new IOException("cannot open channel on " + name, open.getException());
+            }
+        } catch (IOException | RuntimeException e) {
+            failedUntil = System.currentTimeMillis() + RETRY_MILLIS;
+            Metrics.counter("router.backend." + name + ".failed").incrementAndGet();
+            log.warn("backend " + name + " failed, skipping it for " + RETRY_MILLIS + "ms: " + e);
+            throw e;
+        }
+        failedUntil = 0;
+    }
+
+    /**
+     * Called once a request is done.
+     */
+    public void done() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Closes all sessions to the backend.
+     */
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.router;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses the {@link Backend} a request is forwarded to. Requests with an affinity key (the
+ * working directory) are placed using consistent hashing, so requests for the same directory go
+ * to the same backend, keeping its file system caches warm, and adding or removing a backend only
+ * moves a small part of the directories. To avoid overloading a backend with a few busy
+ * directories, a backend is skipped if it runs more than {@link #LOAD_FACTOR} times the average
+ * number of requests; the next one on the ring is used instead. Requests without affinity go to
+ * the least loaded backend.
+ * <p>
+ * Unhealthy backends are skipped in both cases.
+ */
+public class BackendRouter {
+
+    /** number of points each backend has on the hash ring */
+    private static final int VIRTUAL_NODES = 64;
+
+    /** maximum load of a backend relative to the average before affinity is ignored */
+    private static final double LOAD_FACTOR = 1.25;
+
+    private final List<Backend> backends;
+    private final TreeMap<Integer, Backend> ring = new TreeMap<>();
+
+    /**
+     * @param backends
+     *            the backends to route to.
+     */
+    public BackendRouter(List<Backend> backends) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("no backends given");
+        }
+        this.backends = new ArrayList<>(backends);
+        for (Backend backend : backends) {
+            for (int i = 0; i < VIRTUAL_NODES; ++i) {
+                ring.put(hash(backend.getName() + "#" + i), backend);
+            }
+        }
+    }
+
+    /**
+     * @return all backends.
+     */
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * Selects the backend for a request.
+     *
+     * @param affinity
+     *            the affinity key of the request, <code>null</code> if none.
+     * @param exclude
+     *            a backend not to use (fex. because it just failed), may be <code>null</code>.
+     * @return the {@link Backend} to use.
+     * @throws IOException
+     *             if no healthy backend is available.
+     */
+    public Backend select(String affinity, Backend exclude) throws IOException {
+        if (affinity != null) {
+            int total = 0;
+            int healthy = 0;
+            for (Backend backend : backends) {
+                if (backend.isHealthy() && backend != exclude) {
+                    total += backend.getLoad();
+                    healthy++;
+                }
+            }
+            if (healthy > 0) {
+                double limit = Math.ceil((total + 1) * LOAD_FACTOR / healthy);
+                int start = hash(affinity);
+                for (Map<Integer, Backend> part : ring(start)) {
+                    for (Backend backend : part.values()) {
+                        if (backend.isHealthy() && backend != exclude
+                                && backend.getLoad() + 1 <= limit) {
+                            return backend;
+                        }
+                    }
+                }
+            }
+        }
+        return leastLoaded(exclude);
+    }
+
+    /**
+     * @return the ring in order, starting at the given hash.
+     */
+    private List<Map<Integer, Backend>> ring(int start) {
+        List<Map<Integer, Backend>> parts = new ArrayList<>(2);
+        parts.add(ring.tailMap(start));
+        parts.add(ring.headMap(start));
+        return parts;
+    }
+
+    private Backend leastLoaded(Backend exclude) throws IOException {
+        Backend best = null;
+        for (Backend backend : backends) {
+            if (backend.isHealthy() && backend != exclude
+                    && (best == null || backend.getLoad() < best.getLoad())) {
+                best = backend;
+            }
+        }
+        if (best == null) {
+            throw new IOException("no healthy backend available");
+        }
+        return best;
+    }
+
+    private static int hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8
+                    | (digest[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Closes the sessions to all backends.
+     */
+    public void close() {
+        for (Backend backend : backends) {
+            backend.close();
+        }
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.router;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.util.CloseableUtils;
+import org.apache.sshd.server.ChannelSessionAware;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import at.mduft.rex.client.EnvExecChannel;
+import at.mduft.rex.command.StdinPipeline;
+import at.mduft.rex.util.DaemonThreads;
+import at.mduft.rex.util.Metrics;
+import at.mduft.rex.util.WindowedPipe;
+
+/**
+ * Forwards a command unchanged to a backend chosen by the {@link BackendRouter}. Environment,
+ * stdin, stdout, stderr and the exit status are passed through. Data is streamed in both
+ * directions using {@link WindowedPipe}s, so a slow client throttles the backend through the SSH
+ * flow control instead of blocking the backend session shared with other requests.
+ */
+public class ForwardCommand implements Command, ChannelSessionAware {
+
+    private static final Logger log = LoggerFactory.getLogger(ForwardCommand.class);
+
+    /** exit status reported if the request could not be forwarded */
+    private static final int FAILED = 255;
+
+    /** opening a channel may need a new session, which must not block the I/O threads */
+    private static final ExecutorService OPENERS = Executors
+            .newCachedThreadPool(DaemonThreads.numbered("Router Open"));
+
+    private final BackendRouter router;
+    private final String command;
+    private final String affinity;
+    private OutputStream out;
+    private OutputStream err;
+    private ExitCallback exit;
+    private StdinPipeline stdin;
+    private volatile ForwardChannel channel;
+    private volatile Backend backend;
+    private volatile boolean destroyed;
+
+    /**
+     * @param router
+     *            the router choosing the backend
+     * @param command
+     *            the command line as received from the client
+     * @param args
+     *            the parsed command line, the working directory (<code>--pwd</code>) is used for
+     *            backend affinity.
+     */
+    public ForwardCommand(BackendRouter router, String command, String[] args) {
+        this.router = router;
+        this.command = command;
+        this.affinity = findPwd(args);
+    }
+
+    private static String findPwd(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            if ("--".equals(args[i])) {
+                break;
+            }
+            if (args[i].startsWith("--pwd=")) {
+                return args[i].substring(6);
+            }
+            if ("--pwd".equals(args[i]) && i + 1 < args.length) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void setChannelSession(ChannelSession session) {
+        stdin = new StdinPipeline(session.getLocalWindow());
+        session.setDataReceiver(stdin);
+    }
+
+    @Override
+    public void setInputStream(InputStream in) {
+        // stdin is received through the pipeline.
+    }
+
+    @Override
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    @Override
+    public void setExitCallback(ExitCallback callback) {
+        this.exit = callback;
+    }
+
+    @Override
+    public void start(final Environment env) throws IOException {
+        final long start = System.nanoTime();
+        OPENERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forward(env.getEnv());
+                    Metrics.latency("router.open").recordSince(start);
+                    Metrics.counter("router.forwarded").incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    Metrics.counter("router.failed").incrementAndGet();
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the channel on a backend, trying a second one if the first fails.
+     */
+    private void forward(Map<String, String> env) throws IOException {
+        Backend failed = null;
+        for (;;) {
+            Backend selected = router.select(affinity, failed);
+            ForwardChannel ch = new ForwardChannel(env, new Release(selected));
+            try {
+                selected.open(ch);
+            } catch (IOException e) {
+                ch.close(true);
+                ch.release.run();
+                if (failed != null) {
+                    throw e;
+                }
+                failed = selected;
+                continue;
+            }
+            backend = selected;
+            channel = ch;
+            break;
+        }
+        log.debug("forwarded to " + backend + ": " + command);
+        if (destroyed) {
+            channel.close(false);
+            return;
+        }
+        final ForwardChannel ch = channel;
+        stdin.connect(new FilterOutputStream(ch.getInvertedIn()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                ch.sendEof();
+            }
+        });
+        ch.stdout.connect(out);
+        ch.stderr.connect(err);
+    }
+
+    private void fail(Exception e) {
+        log.info("cannot forward request: " + e);
+        stdin.abort();
+        try {
+            err.write(("rex router: " + e.getMessage() + "\r\n").getBytes(StandardCharsets.UTF_8));
+            err.flush();
+        } catch (IOException ex) {
+            log.debug("cannot report failure: " + ex);
+        }
+        exit.onExit(FAILED);
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        stdin.abort();
+        ForwardChannel ch = channel;
+        if (ch != null) {
+            ch.stdout.abort();
+            ch.stderr.abort();
+            // graceful, so the backend is told to terminate the command.
+            ch.close(false);
+        }
+    }
+
+    /**
+     * Tells the backend that a request is done, exactly once, no matter whether the channel was
+     * closed or could not be opened at all.
+     */
+    private static final class Release implements Runnable {
+
+        private final Backend backend;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Release(Backend backend) {
+            this.backend = backend;
+        }
+
+        @Override
+        public void run() {
+            if (done.compareAndSet(false, true)) {
+                backend.done();
+            }
+        }
+    }
+
+    /**
+     * Backend channel passing output on through {@link WindowedPipe}s instead of writing it on
+     * the backend session's I/O thread.
+     */
+    private final class ForwardChannel extends EnvExecChannel {
+
+        final WindowedPipe stdout = new WindowedPipe(getLocalWindow(), "router.stdout");
+        final WindowedPipe stderr = new WindowedPipe(getLocalWindow(), "router.stderr");
+
+        final Release release;
+
+        ForwardChannel(Map<String, String> env, Release release) {
+            super(command, env, release);
+            this.release = release;
+
+            // the exit status is reported once all output has been passed on.
+            final AtomicInteger open = new AtomicInteger(2);
+            Runnable closed = new Runnable() {
+                @Override
+                public void run() {
+                    if (open.decrementAndGet() == 0 && !destroyed) {
+                        Integer status = getExitStatus();
+                        exit.onExit(status == null ? FAILED : status);
+                    }
+                }
+            };
+            stdout.setOnClosed(closed);
+            stderr.setOnClosed(closed);
+        }
+
+        @Override
+        protected void doWriteData(byte[] data, int off, int len) throws IOException {
+            if (state.get() != CloseableUtils.AbstractCloseable.OPENED) {
+                return;
+            }
+            consume(stdout.offer(data, off, len));
+        }
+
+        @Override
+        protected void doWriteExtendedData(byte[] data, int off, int len) throws IOException {
+            consume(stderr.offer(data, off, len));
+        }
+
+        private void consume(int len) throws IOException {
+            if (len > 0) {
+                localWindow.consumeAndCheck(len);
+            }
+        }
+
+        @Override
+        protected void postClose() {
+            super.postClose();
+            stdout.finish();
+            stderr.finish();
+        }
+    }
+
+}
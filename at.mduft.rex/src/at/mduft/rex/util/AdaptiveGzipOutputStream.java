@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * {@link OutputStream} that writes a GZIP stream, so that any client can decode it using standard
+ * tools (fex. {@code gzip -dc}). Each {@link #flush()} performs a deflate sync flush, so
+ * interactive output is not held back.
+ * <p>
+ * Compression is adaptive: the first {@link #PROBE_BYTES} of each window are compressed using the
+ * fastest deflate level. If that sample did not compress to at least {@link #MIN_RATIO}, the rest
+ * of the window is written as stored (uncompressed) deflate blocks, which is a plain copy.
+ */
+public class AdaptiveGzipOutputStream extends FilterOutputStream {
+
+    /** amount of data sampled to decide whether compression is worth it */
+    private static final int PROBE_BYTES = 64 * 1024;
+
+    /** amount of data written uncompressed before sampling again */
+    private static final int STORE_BYTES = 1024 * 1024;
+
+    /** compressed/uncompressed ratio below which compression is considered worth it */
+    private static final double MIN_RATIO = 0.9;
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+            0, 0, (byte) 0xff };
+
+    static {
+        Metrics.gauge("exec.compress.ratio_pct", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long in = Metrics.counter("exec.compress.in_bytes").get();
+                return in == 0 ? 100 : Metrics.counter("exec.compress.out_bytes").get() * 100 / in;
+            }
+        });
+    }
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = BufferPool.acquire(16 * 1024);
+
+    private boolean headerWritten;
+    private boolean finished;
+    private boolean storing;
+    private long windowIn;
+    private long windowOut;
+
+    /**
+     * @param out
+     *            the stream to write compressed data to.
+     */
+    public AdaptiveGzipOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("stream already finished");
+        }
+        if (len == 0) {
+            return;
+        }
+        writeHeader();
+        crc.update(b, off, len);
+        windowIn += len;
+        Metrics.counter("exec.compress.in_bytes").addAndGet(len);
+        if (storing) {
+            Metrics.counter("exec.compress.stored_bytes").addAndGet(len);
+        }
+
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!finished && headerWritten) {
+            int len;
+            do {
+                len = deflate(Deflater.SYNC_FLUSH);
+            } while (len == buffer.length);
+            adapt();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes all remaining data and the GZIP trailer without closing the underlying stream. The
+     * {@link Deflater} and the buffer are released even if writing fails.
+     *
+     * @throws IOException
+     *             in case writing fails.
+     */
+    public synchronized void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            writeHeader();
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            byte[] trailer = new byte[8];
+            writeIntLE(trailer, 0, crc.getValue());
+            writeIntLE(trailer, 4, deflater.getBytesRead());
+            out.write(trailer);
+            out.flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Finishes the GZIP stream and closes the underlying stream. The {@link Deflater} and the
+     * buffer are released in any case.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Releases the native resources of the {@link Deflater} and returns the buffer to the pool.
+     * The stream cannot be written to afterwards.
+     */
+    private void release() {
+        finished = true;
+        if (buffer != null) {
+            deflater.end();
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Decides whether to compress the next chunk of data, based on the ratio achieved in the
+     * current window. Called only at flush points, where the compressed size of all input so far
+     * is known.
+     */
+    private void adapt() {
+        if (!storing && windowIn >= PROBE_BYTES) {
+            if (windowOut > windowIn * MIN_RATIO) {
+                storing = true;
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+                Metrics.counter("exec.compress.skipped_windows").incrementAndGet();
+            }
+            windowIn = 0;
+            windowOut = 0;
+        } else if (storing && windowIn >= STORE_BYTES) {
+            storing = false;
+            deflater.setLevel(Deflater.BEST_SPEED);
+            windowIn = 0;
+            windowOut = 0;
+        }
+    }
+
+    private int deflate(int mode) throws IOException {
+        long start = System.nanoTime();
+        int len = deflater.deflate(buffer, 0, buffer.length, mode);
+        Metrics.counter("exec.compress.time_us").addAndGet((System.nanoTime() - start) / 1000);
+        if (len > 0) {
+            out.write(buffer, 0, len);
+            windowOut += len;
+            Metrics.counter("exec.compress.out_bytes").addAndGet(len);
+        }
+        return len;
+    }
+
+    private void writeHeader() throws IOException {
+        if (!headerWritten) {
+            out.write(GZIP_HEADER);
+            headerWritten = true;
+        }
+    }
+
+    private static void writeIntLE(byte[] b, int off, long value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >> 8);
+        b[off + 2] = (byte) (value >> 16);
+        b[off + 3] = (byte) (value >> 24);
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared pool of byte arrays used by the stream stages between processes and channels. Buffers
+ * are handed out in power of two size classes from {@value #MIN_SIZE} to {@value #MAX_SIZE}
+ * bytes. Each thread keeps a few buffers per class for itself, further released buffers go to a
+ * bounded shared queue per class. Larger requests are allocated normally and not pooled.
+ * <p>
+ * Pooled buffers are heap arrays: all stages work on {@link java.io.InputStream} and
+ * {@link java.io.OutputStream}, so direct buffers would only add a copy.
+ * <p>
+ * Buffers are not cleared, callers must only read what they have written. A buffer must not be
+ * used anymore after it has been released, and must be released only once: the pool does not
+ * check this, a buffer released twice is handed out twice. With leak detection enabled (see
+ * {@link #setLeakDetection(boolean)}), such releases are logged and ignored, and buffers that are
+ * garbage collected without having been released are logged together with the stack that
+ * acquired them.
+ */
+public final class BufferPool {
+
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    /** size of the smallest size class */
+    public static final int MIN_SIZE = 256;
+
+    /** size of the largest size class */
+    public static final int MAX_SIZE = 64 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    /** number of buffers per class each thread keeps for itself */
+    private static final int LOCAL_CACHE_SIZE = 4;
+
+    /** number of bytes per class kept in the shared queues */
+    private static final int SHARED_BYTES_PER_CLASS = 1024 * 1024;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final ConcurrentLinkedQueue<byte[]>[] shared = new ConcurrentLinkedQueue[CLASSES];
+    private static final AtomicInteger[] sharedCount = new AtomicInteger[CLASSES];
+
+    private static final ThreadLocal<LocalCache> local = new ThreadLocal<LocalCache>() {
+        @Override
+        protected LocalCache initialValue() {
+            return new LocalCache();
+        }
+    };
+
+    private static volatile boolean leakDetection;
+    private static final Map<byte[], Tracker> tracked = new WeakHashMap<>();
+    private static final Set<Tracker> trackers = Collections
+            .newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    private static final ReferenceQueue<byte[]> collected = new ReferenceQueue<>();
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCount[i] = new AtomicInteger();
+        }
+        Metrics.gauge("buffers.shared_bytes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long bytes = 0;
+                for (int i = 0; i < CLASSES; i++) {
+                    bytes += (long) sharedCount[i].get() * sizeOf(i);
+                }
+                return bytes;
+            }
+        });
+        Metrics.gauge("buffers.outstanding", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return Metrics.counter("buffers.acquired").get()
+                        - Metrics.counter("buffers.released").get();
+            }
+        });
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Enables or disables leak detection. Tracking every buffer is expensive, use only for
+     * testing. Only buffers acquired while enabled are tracked.
+     *
+     * @param enabled
+     *            whether to track acquired buffers.
+     */
+    public static void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+        if (enabled) {
+            log.info("buffer leak detection enabled");
+        }
+    }
+
+    /**
+     * @param minSize
+     *            the minimum number of bytes needed
+     * @return a buffer of at least the given size. Pass it to {@link #release(byte[])} once done.
+     */
+    public static byte[] acquire(int minSize) {
+        if (minSize > MAX_SIZE) {
+            Metrics.counter("buffers.unpooled").incrementAndGet();
+            return new byte[minSize];
+        }
+        int sizeClass = classOf(minSize);
+        byte[] buffer = local.get().poll(sizeClass);
+        if (buffer == null) {
+            buffer = shared[sizeClass].poll();
+            if (buffer != null) {
+                sharedCount[sizeClass].decrementAndGet();
+            }
+        }
+        if (buffer == null) {
+            Metrics.counter("buffers.miss").incrementAndGet();
+            buffer = new byte[sizeOf(sizeClass)];
+        } else {
+            Metrics.counter("buffers.hit").incrementAndGet();
+        }
+        Metrics.counter("buffers.acquired").incrementAndGet();
+        if (leakDetection) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Must be called once per {@link #acquire(int)}, buffers that
+     * do not fit a size class are ignored.
+     *
+     * @param buffer
+     *            the buffer to return, may be <code>null</code>.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length > MAX_SIZE || Integer.bitCount(buffer.length) != 1
+                || buffer.length < MIN_SIZE) {
+            return;
+        }
+        if ((leakDetection || !trackers.isEmpty()) && !untrack(buffer)) {
+            // never hand out the same buffer twice.
+            return;
+        }
+        Metrics.counter("buffers.released").incrementAndGet();
+        int sizeClass = classOf(buffer.length);
+        if (local.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        if (sharedCount[sizeClass].incrementAndGet() * sizeOf(sizeClass) <= SHARED_BYTES_PER_CLASS) {
+            shared[sizeClass].offer(buffer);
+        } else {
+            sharedCount[sizeClass].decrementAndGet();
+        }
+    }
+
+    private static int classOf(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static int sizeOf(int sizeClass) {
+        return MIN_SIZE << sizeClass;
+    }
+
+    private static void track(byte[] buffer) {
+        reportLeaks();
+        Tracker tracker = new Tracker(buffer);
+        trackers.add(tracker);
+        synchronized (tracked) {
+            tracked.put(buffer, tracker);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the buffer is tracked as not in use.
+     */
+    private static boolean untrack(byte[] buffer) {
+        Tracker tracker;
+        synchronized (tracked) {
+            tracker = tracked.remove(buffer);
+        }
+        if (tracker != null) {
+            tracker.clear();
+            trackers.remove(tracker);
+        } else if (leakDetection) {
+            log.warn("released a buffer that is not in use", new Throwable("released here"));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Logs buffers that have been collected without being released.
+     */
+    private static void reportLeaks() {
+        Reference<? extends byte[]> ref;
+        while ((ref = collected.poll()) != null) {
+            if (trackers.remove(ref)) {
+                Metrics.counter("buffers.leaked").incrementAndGet();
+                log.error("pooled buffer was never released", ((Tracker) ref).acquired);
+            }
+        }
+    }
+
+    /**
+     * Per thread buffers, only accessed by the owning thread.
+     */
+    private static final class LocalCache {
+
+        private final byte[][][] buffers = new byte[CLASSES][LOCAL_CACHE_SIZE][];
+        private final int[] count = new int[CLASSES];
+
+        byte[] poll(int sizeClass) {
+            if (count[sizeClass] == 0) {
+                return null;
+            }
+            int i = --count[sizeClass];
+            byte[] buffer = buffers[sizeClass][i];
+            buffers[sizeClass][i] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, byte[] buffer) {
+            if (count[sizeClass] == LOCAL_CACHE_SIZE) {
+                return false;
+            }
+            buffers[sizeClass][count[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * Remembers where a buffer was acquired, enqueued once the buffer has been collected.
+     */
+    private static final class Tracker extends WeakReference<byte[]> {
+
+        final Throwable acquired = new Throwable("acquired here");
+
+        Tracker(byte[] buffer) {
+            super(buffer, collected);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads for the server's executors, so background work never keeps the JVM
+ * alive. Threads are named after the executor, numbered if it may run more than one.
+ */
+public final class DaemonThreads implements ThreadFactory {
+
+    private final String name;
+
+    /** null if the threads are not numbered */
+    private final AtomicInteger count;
+
+    private DaemonThreads(String name, AtomicInteger count) {
+        this.name = name;
+        this.count = count;
+    }
+
+    /**
+     * @param name
+     *            the name of all threads, fex. of a single threaded executor.
+     * @return a {@link ThreadFactory} creating daemon threads with the given name.
+     */
+    public static ThreadFactory named(String name) {
+        return new DaemonThreads(name, null);
+    }
+
+    /**
+     * @param name
+     *            the name of the threads, followed by a number starting at 1.
+     * @return a {@link ThreadFactory} creating numbered daemon threads.
+     */
+    public static ThreadFactory numbered(String name) {
+        return new DaemonThreads(name, new AtomicInteger());
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, count == null ? name : name + " " + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+}
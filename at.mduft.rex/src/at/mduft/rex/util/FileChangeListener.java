@@ -6,17 +6,16 @@ package at.mduft.rex.util;
 import java.nio.file.Path;
 
 /**
- * Implementors can register with a {@link FileChangeWatch} to get notify on file modifications on
+ * Implementors can register with a {@link FileWatchHub} to get notify on file modifications on
  * disc.
  */
 public interface FileChangeListener {
 
     /**
-     * Called whenever the file changes the the underlying {@link FileChangeWatch} is bound to.
+     * Called whenever a file changes the listener has been registered for.
      * 
      * @param file
-     *            the file that changed to allow binding the listener to multiple
-     *            {@link FileChangeWatch}es.
+     *            the file that changed to allow binding the listener to multiple files.
      */
     public void fileChanged(Path file);
 
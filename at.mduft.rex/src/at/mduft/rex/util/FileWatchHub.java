@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single {@link Thread} that watches any number of files for modifications. Files are
+ * multiplexed over one {@link WatchService}, directories containing multiple watched files are
+ * registered only once. Bursts of modifications (editors and deployment tools often write in
+ * multiple steps) are coalesced into a single notification once the file has been quiet for the
+ * debounce window.
+ * <p>
+ * Files on file systems that do not deliver change events (fex. CIFS or NFS mounts) are polled
+ * instead, comparing modification time and size, which is a single cheap stat per file and poll
+ * interval.
+ * <p>
+ * Failures handling a single event, file or listener are logged, the hub keeps running.
+ */
+public class FileWatchHub extends Thread {
+
+    private static final Logger log = LoggerFactory.getLogger(FileWatchHub.class);
+
+    /** file store types known to not deliver reliable change notifications */
+    private static final List<String> POLLED_STORES = Arrays.asList("cifs", "smbfs", "smb2",
+            "nfs", "nfs4", "fuse.sshfs", "9p");
+
+    private final Map<Path, WatchedFile> files = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final WatchService service;
+    private final long debounceNanos;
+    private final long pollNanos;
+
+    /**
+     * Creates a new {@link FileWatchHub}. The hub has to be started before notifications are
+     * delivered.
+     *
+     * @param debounceMillis
+     *            the time a file has to be unmodified before listeners are notified.
+     * @param pollMillis
+     *            the interval in which files without native change notification are polled.
+     * @throws IOException
+     *             in case the {@link WatchService} cannot be created.
+     */
+    public FileWatchHub(long debounceMillis, long pollMillis) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.pollNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, pollMillis));
+
+        setName("File Watch Hub");
+        setDaemon(true);
+    }
+
+    /**
+     * Starts watching the given file. The listener is notified whenever the file has been
+     * modified and the debounce window has passed without further modifications.
+     *
+     * @param file
+     *            the file to watch
+     * @param listener
+     *            the listener to notify about modifications.
+     * @throws IOException
+     *             in case the file's directory cannot be registered.
+     */
+    public void watch(Path file, FileChangeListener listener) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        WatchedFile watched = files.get(absolute);
+        if (watched == null) {
+            watched = new WatchedFile(absolute);
+            watched.polled = !registerNative(absolute);
+            files.put(absolute, watched);
+            log.debug("start watching " + absolute + (watched.polled ? " (polling)" : ""));
+        }
+        watched.listeners.add(listener);
+    }
+
+    /**
+     * Stops notifying the given listener about modifications of the given file.
+     *
+     * @param file
+     *            the file that is watched
+     * @param listener
+     *            the listener to remove.
+     */
+    public void unwatch(Path file, FileChangeListener listener) {
+        Path absolute = file.toAbsolutePath().normalize();
+        WatchedFile watched = files.get(absolute);
+        if (watched != null) {
+            watched.listeners.remove(listener);
+            if (watched.listeners.isEmpty()) {
+                files.remove(absolute);
+            }
+        }
+    }
+
+    /**
+     * Registers the file's parent directory with the {@link WatchService} if the file system is
+     * known to deliver change notifications.
+     *
+     * @return whether native notifications are used for the file.
+     */
+    private boolean registerNative(Path file) {
+        Path dir = file.getParent();
+        try {
+            FileStore store = Files.getFileStore(dir);
+            if (POLLED_STORES.contains(store.type().toLowerCase(Locale.ENGLISH))) {
+                return false;
+            }
+            if (!directories.containsValue(dir)) {
+                WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_CREATE);
+                directories.put(key, dir);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.info("no native change notification for " + dir + ", polling: " + e);
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextPoll = System.nanoTime() + pollNanos;
+        try {
+            while (!isInterrupted()) {
+                long now = System.nanoTime();
+                long wait = Math.min(nextPoll, nextDue(now + pollNanos)) - now;
+
+                WatchKey key = service.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                now = System.nanoTime();
+                while (key != null) {
+                    handleKey(key, now);
+                    key = service.poll();
+                }
+
+                if (now - nextPoll >= 0) {
+                    for (WatchedFile watched : files.values()) {
+                        if (watched.polled) {
+                            try {
+                                watched.checkModified(now);
+                            } catch (RuntimeException e) {
+                                log.warn("cannot check " + watched.file, e);
+                            }
+                        }
+                    }
+                    nextPoll = now + pollNanos;
+                }
+
+                for (WatchedFile watched : files.values()) {
+                    if (watched.due != 0 && now - watched.due >= 0) {
+                        watched.due = 0;
+                        watched.notifyListeners();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            log.info("watch hub interrupted");
+        } catch (RuntimeException e) {
+            log.error("watch hub failed", e);
+        }
+    }
+
+    /**
+     * @return the earliest pending notification time or the given default.
+     */
+    private long nextDue(long dflt) {
+        long result = dflt;
+        for (WatchedFile watched : files.values()) {
+            if (watched.due != 0 && watched.due - result < 0) {
+                result = watched.due;
+            }
+        }
+        return result;
+    }
+
+    private void handleKey(WatchKey key, long now) {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+            // a single bad event must not stop the hub, nor keep the key from being reset.
+            try {
+                handleEvent(dir, event, now);
+            } catch (RuntimeException e) {
+                log.warn("cannot handle " + event.kind() + " of " + event.context() + " in "
+                        + dir, e);
+            }
+        }
+        if (!key.reset()) {
+            log.warn("directory inaccessible, falling back to polling: " + dir);
+            directories.remove(key);
+            for (WatchedFile watched : files.values()) {
+                if (watched.file.getParent().equals(dir)) {
+                    watched.polled = true;
+                }
+            }
+        }
+    }
+
+    private void handleEvent(Path dir, WatchEvent<?> event, long now) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            // events lost, check everything in the directory.
+            for (WatchedFile watched : files.values()) {
+                if (dir.equals(watched.file.getParent())) {
+                    watched.modified(now);
+                }
+            }
+            return;
+        }
+        WatchedFile watched = files.get(dir.resolve((Path) event.context()));
+        if (watched != null) {
+            watched.modified(now);
+        }
+    }
+
+    /**
+     * State of a single watched file. Only modified by the hub's thread, except for the
+     * listeners.
+     */
+    private final class WatchedFile {
+
+        final Path file;
+        final List<FileChangeListener> listeners = new CopyOnWriteArrayList<>();
+        volatile boolean polled;
+        long modified;
+        long size;
+        long due;
+
+        WatchedFile(Path file) {
+            this.file = file;
+            readAttributes();
+        }
+
+        /**
+         * Remembers current attributes of the file.
+         *
+         * @return whether the attributes changed.
+         */
+        private boolean readAttributes() {
+            long newModified = -1;
+            long newSize = -1;
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                newModified = attrs.lastModifiedTime().toMillis();
+                newSize = attrs.size();
+            } catch (NoSuchFileException e) {
+                // treated as size -1.
+            } catch (IOException e) {
+                log.debug("cannot stat " + file + ": " + e);
+                return false;
+            }
+            boolean changed = newModified != modified || newSize != size;
+            modified = newModified;
+            size = newSize;
+            return changed;
+        }
+
+        void checkModified(long now) {
+            if (readAttributes()) {
+                modified(now);
+            }
+        }
+
+        void modified(long now) {
+            readAttributes();
+            due = now + debounceNanos;
+            if (due == 0) {
+                due = 1;
+            }
+        }
+
+        void notifyListeners() {
+            for (FileChangeListener l : listeners) {
+                try {
+                    l.fileChanged(file);
+                } catch (RuntimeException e) {
+                    log.warn("failed to notify " + l, e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+/**
+ * Helpers for writing JSON by hand, as done for the server's logs and status output.
+ */
+public final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * Escapes a string for use inside a JSON string literal: quotes and backslashes are escaped,
+     * control characters written as unicode escapes.
+     *
+     * @param s
+     *            the string to escape.
+     * @return the escaped string, without surrounding quotes.
+     */
+    public static String escape(String s) {
+        return quote(new StringBuilder(s.length() + 2), s, false).toString();
+    }
+
+    /**
+     * Appends a string as JSON string literal.
+     *
+     * @param json
+     *            the JSON written so far.
+     * @param s
+     *            the string to append.
+     * @return the given {@link StringBuilder}.
+     */
+    public static StringBuilder quote(StringBuilder json, String s) {
+        return quote(json, s, true);
+    }
+
+    private static StringBuilder quote(StringBuilder json, String s, boolean quotes) {
+        if (quotes) {
+            json.append('"');
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        if (quotes) {
+            json.append('"');
+        }
+        return json;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free, log-linear histogram of latencies in microseconds. Each power of two is split into 8
+ * sub-buckets, so percentiles are accurate to roughly 12%, independent of the number of samples
+ * recorded.
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the time elapsed since the given start time.
+     *
+     * @param startNanos
+     *            the start time as obtained from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records a single sample.
+     *
+     * @param micros
+     *            the latency in microseconds.
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(index(micros));
+        count.incrementAndGet();
+
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded samples
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return the largest recorded sample in microseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Calculates the given percentile. The result is the upper bound of the bucket the percentile
+     * falls into.
+     *
+     * @param quantile
+     *            the quantile to calculate, between 0 and 1.
+     * @return the latency in microseconds, 0 if nothing was recorded yet.
+     */
+    public long percentile(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return a copy of the current bucket counts, to calculate percentiles of a time window
+     *         using {@link #percentile(long[], long[], double)}.
+     */
+    public long[] copyBuckets() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            copy[i] = buckets.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Calculates the given percentile of the samples recorded between two bucket copies.
+     *
+     * @param before
+     *            the older copy obtained from {@link #copyBuckets()}
+     * @param after
+     *            the newer copy obtained from {@link #copyBuckets()}
+     * @param quantile
+     *            the quantile to calculate, between 0 and 1.
+     * @return the latency in microseconds, 0 if nothing was recorded in between.
+     */
+    public static long percentile(long[] before, long[] after, double quantile) {
+        long total = count(before, after);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += after[i] - before[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * @return the number of samples recorded between two bucket copies.
+     */
+    public static long count(long[] before, long[] after) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            total += after[i] - before[i];
+        }
+        return total;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (msb - SUB_BITS)) & (SUB_COUNT - 1));
+        return (msb - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_COUNT) {
+            return index;
+        }
+        int msb = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long width = 1L << (msb - SUB_BITS);
+        return ((SUB_COUNT + sub) << (msb - SUB_BITS)) + width - 1;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global registry for counters, gauges and latency distributions of the server. All accessors are
+ * lock free and cheap enough to be used on hot paths. Names are dot separated, lower case, fex.
+ * {@code auth.verify.active}.
+ */
+public final class Metrics {
+
+    private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyRecorder> latencies = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * A value that is computed on demand when a snapshot of all metrics is taken.
+     */
+    public interface Gauge {
+
+        /**
+         * @return the current value of the gauge.
+         */
+        public long value();
+    }
+
+    /**
+     * @param name
+     *            the name of the counter
+     * @return the counter with the given name, created if it does not yet exist.
+     */
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong fresh = new AtomicLong();
+            counter = counters.putIfAbsent(name, fresh);
+            if (counter == null) {
+                counter = fresh;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Registers a {@link Gauge}, replacing any previously registered {@link Gauge} with the same
+     * name.
+     *
+     * @param name
+     *            the name of the gauge
+     * @param gauge
+     *            the {@link Gauge} to query for the value
+     */
+    public static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @param name
+     *            the name of the latency distribution
+     * @return the {@link LatencyRecorder} with the given name, created if it does not yet exist.
+     */
+    public static LatencyRecorder latency(String name) {
+        LatencyRecorder recorder = latencies.get(name);
+        if (recorder == null) {
+            LatencyRecorder fresh = new LatencyRecorder();
+            recorder = latencies.putIfAbsent(name, fresh);
+            if (recorder == null) {
+                recorder = fresh;
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * @param name
+     *            the name of a counter or gauge
+     * @return the current value of the counter or gauge, 0 if neither exists.
+     */
+    public static long value(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter != null) {
+            return counter.get();
+        }
+        Gauge gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.value();
+    }
+
+    /**
+     * Creates a sorted snapshot of all metrics. Latency distributions are expanded into count,
+     * p50, p99, p999 and max values, all in microseconds.
+     *
+     * @return all current metric values by name.
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().value());
+        }
+        for (Map.Entry<String, LatencyRecorder> entry : latencies.entrySet()) {
+            LatencyRecorder r = entry.getValue();
+            String name = entry.getKey();
+            result.put(name + ".count", r.count());
+            result.put(name + ".p50_us", r.percentile(0.5));
+            result.put(name + ".p99_us", r.percentile(0.99));
+            result.put(name + ".p999_us", r.percentile(0.999));
+            result.put(name + ".max_us", r.max());
+        }
+        return result;
+    }
+
+}
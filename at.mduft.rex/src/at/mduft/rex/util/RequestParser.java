@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import joptsimple.OptionDescriptor;
+
+/**
+ * Parser for the options of REX requests (fex. <code>exec --roots=... --pwd=... -- cmd</code>).
+ * Unlike joptsimple's parser, a {@link RequestParser} is immutable once created and keeps the
+ * state of each parse in the returned {@link Result}, so all sessions can share one instance
+ * without any locking.
+ * <p>
+ * Supported syntax: <code>--name=value</code>, <code>--name value</code>, unique abbreviations
+ * of long names, <code>-n value</code>, <code>-nvalue</code> and clusters of short flags
+ * (<code>-ab</code>). Options end at <code>--</code> or at the first argument that is not an
+ * option; everything after is available from {@link Result#nonOptions()}.
+ * <p>
+ * {@link Option}s are {@link OptionDescriptor}s, so help is rendered using the
+ * {@link CrNlHelpFormatter} like for any joptsimple parser.
+ */
+public final class RequestParser {
+
+    private final Map<String, Option> options;
+
+    /**
+     * @param options
+     *            all options accepted by the parser.
+     */
+    public RequestParser(Option... options) {
+        Map<String, Option> byName = new LinkedHashMap<>();
+        for (Option option : options) {
+            for (String name : option.names) {
+                if (byName.put(name, option) != null) {
+                    throw new IllegalArgumentException("duplicate option: " + name);
+                }
+            }
+        }
+        this.options = Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * Creates an option without argument.
+     *
+     * @param description
+     *            the description shown in the help
+     * @param names
+     *            the names of the option, single letters are short options.
+     * @return the {@link Option}.
+     */
+    public static Option flag(String description, String... names) {
+        return new Option(names, description, null, false, false);
+    }
+
+    /**
+     * Creates an option with a single argument. If given multiple times, the last one counts.
+     *
+     * @param description
+     *            the description shown in the help
+     * @param argument
+     *            the description of the argument shown in the help
+     * @param names
+     *            the names of the option, single letters are short options.
+     * @return the {@link Option}.
+     */
+    public static Option value(String description, String argument, String... names) {
+        return new Option(names, description, argument, false, false);
+    }
+
+    /**
+     * Creates an option with a list of ',' separated arguments. If given multiple times, all
+     * values are collected.
+     *
+     * @param description
+     *            the description shown in the help
+     * @param argument
+     *            the description of the argument shown in the help
+     * @param names
+     *            the names of the option, single letters are short options.
+     * @return the {@link Option}.
+     */
+    public static Option list(String description, String argument, String... names) {
+        return new Option(names, description, argument, true, false);
+    }
+
+    /**
+     * Parses the given arguments.
+     *
+     * @param args
+     *            the arguments of the request
+     * @param from
+     *            the index of the first argument to parse, fex. 1 to skip the command name.
+     * @return the parsed {@link Result}.
+     * @throws IllegalArgumentException
+     *             if an option is unknown, lacks its argument or a required option is missing.
+     */
+    public Result parse(String[] args, int from) {
+        Result result = new Result();
+        int i = from;
+        while (i < args.length) {
+            String arg = args[i];
+            if ("--".equals(arg)) {
+                i++;
+                break;
+            }
+            if (arg.startsWith("--")) {
+                String name = arg.substring(2);
+                String value = null;
+                int eq = name.indexOf('=');
+                if (eq >= 0) {
+                    value = name.substring(eq + 1);
+                    name = name.substring(0, eq);
+                }
+                Option option = findLong(name);
+                if (option.argument == null) {
+                    if (value != null) {
+                        throw new IllegalArgumentException("option '" + name
+                                + "' does not take an argument");
+                    }
+                    result.add(option, null);
+                } else {
+                    if (value == null) {
+                        value = argumentAt(args, ++i, name);
+                    }
+                    result.add(option, value);
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (int c = 1; c < arg.length(); ++c) {
+                    String name = arg.substring(c, c + 1);
+                    Option option = options.get(name);
+                    if (option == null) {
+                        throw new IllegalArgumentException("'" + name
+                                + "' is not a recognized option");
+                    }
+                    if (option.argument == null) {
+                        result.add(option, null);
+                        continue;
+                    }
+                    String value = arg.substring(c + 1);
+                    if (value.startsWith("=")) {
+                        value = value.substring(1);
+                    }
+                    if (value.isEmpty()) {
+                        value = argumentAt(args, ++i, name);
+                    }
+                    result.add(option, value);
+                    break;
+                }
+            } else {
+                break;
+            }
+            i++;
+        }
+        result.nonOptions = Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(args,
+                Math.min(i, args.length), args.length)));
+
+        for (Option option : options.values()) {
+            if (option.required && !result.has(option)) {
+                throw new IllegalArgumentException("missing required option '"
+                        + option.names.get(0) + "'");
+            }
+        }
+        return result;
+    }
+
+    private Option findLong(String name) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("missing option name");
+        }
+        Option option = options.get(name);
+        if (option != null) {
+            return option;
+        }
+        for (Map.Entry<String, Option> entry : options.entrySet()) {
+            if (entry.getKey().length() > 1 && entry.getKey().startsWith(name)) {
+                if (option != null && option != entry.getValue()) {
+                    throw new IllegalArgumentException("option '" + name + "' is ambiguous");
+                }
+                option = entry.getValue();
+            }
+        }
+        if (option == null) {
+            throw new IllegalArgumentException("'" + name + "' is not a recognized option");
+        }
+        return option;
+    }
+
+    private static String argumentAt(String[] args, int index, String name) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("option '" + name + "' requires an argument");
+        }
+        return args[index];
+    }
+
+    /**
+     * @return the help for all options, formatted by the {@link CrNlHelpFormatter}.
+     */
+    public String help() {
+        return CrNlHelpFormatter.INSTANCE.format(options);
+    }
+
+    /**
+     * An option accepted by a {@link RequestParser}. Immutable.
+     */
+    public static final class Option implements OptionDescriptor {
+
+        private final List<String> names;
+        private final String description;
+        private final String argument;
+        private final boolean list;
+        private final boolean required;
+
+        private Option(String[] names, String description, String argument, boolean list,
+                boolean required) {
+            this(Collections.unmodifiableList(Arrays.asList(names)), description, argument, list,
+                    required);
+        }
+
+        private Option(List<String> names, String description, String argument, boolean list,
+                boolean required) {
+            this.names = names;
+            this.description = description;
+            this.argument = argument;
+            this.list = list;
+            this.required = required;
+        }
+
+        /**
+         * @return a copy of this option that must be given.
+         */
+        public Option required() {
+            return new Option(names, description, argument, list, true);
+        }
+
+        @Override
+        public Collection<String> options() {
+            return names;
+        }
+
+        @Override
+        public String description() {
+            return description;
+        }
+
+        @Override
+        public List<?> defaultValues() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isRequired() {
+            return required;
+        }
+
+        @Override
+        public boolean acceptsArguments() {
+            return argument != null;
+        }
+
+        @Override
+        public boolean requiresArgument() {
+            return argument != null;
+        }
+
+        @Override
+        public String argumentDescription() {
+            return argument;
+        }
+
+        @Override
+        public String argumentTypeIndicator() {
+            return null;
+        }
+
+        @Override
+        public boolean representsNonOptions() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return names.toString();
+        }
+    }
+
+    /**
+     * The options and non-option arguments of a single request.
+     */
+    public static final class Result {
+
+        private final Map<Option, List<String>> values = new HashMap<>();
+        private List<String> nonOptions;
+
+        private void add(Option option, String value) {
+            List<String> current = values.get(option);
+            if (current == null || (!option.list && value != null)) {
+                current = new ArrayList<>(1);
+                values.put(option, current);
+            }
+            if (value == null) {
+                return;
+            }
+            if (option.list) {
+                current.addAll(Arrays.asList(value.split(",")));
+            } else {
+                current.add(value);
+            }
+        }
+
+        /**
+         * @return whether the given option was given.
+         */
+        public boolean has(Option option) {
+            return values.containsKey(option);
+        }
+
+        /**
+         * @return the (last) value of the given option, <code>null</code> if not given.
+         */
+        public String valueOf(Option option) {
+            List<String> list = values.get(option);
+            return list == null || list.isEmpty() ? null : list.get(list.size() - 1);
+        }
+
+        /**
+         * @return all values of the given option, empty if not given.
+         */
+        public List<String> valuesOf(Option option) {
+            List<String> list = values.get(option);
+            return list == null ? Collections.<String> emptyList() : Collections
+                    .unmodifiableList(list);
+        }
+
+        /**
+         * @return the arguments following the options.
+         */
+        public List<String> nonOptions() {
+            return nonOptions;
+        }
+    }
+
+}
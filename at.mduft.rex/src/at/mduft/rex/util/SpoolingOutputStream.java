@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples a fast producer (the pump reading a process' output) from a slow target (a channel
+ * whose remote window is full). Writes never block while the spool has room: data is queued in
+ * memory up to {@link #configure(int, long) a limit}, further data overflows to a memory mapped
+ * temporary file, and a separate writer passes everything on to the target at the rate the
+ * target accepts. So a process can exit (and free its resources) as soon as it is done,
+ * independent of how fast the client reads.
+ * <p>
+ * Writes only block if the spool file reached its maximum size, until the writer caught up.
+ * {@link #flush()} does not wait for the target, the writer flushes it whenever the spool runs
+ * empty. {@link #close()} closes the target once all data has been written, use
+ * {@link #awaitDrained()} to wait for that. Like {@link WindowedPipe}, no thread is bound to an
+ * idle spool.
+ */
+public class SpoolingOutputStream extends OutputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(SpoolingOutputStream.class);
+
+    /** size of the file regions mapped at once */
+    private static final int SEGMENT = 4 * 1024 * 1024;
+
+    private static volatile int memoryLimit = 1024 * 1024;
+    private static volatile long fileLimit = 1024L * 1024 * 1024;
+
+    private static final ExecutorService WRITERS = Executors
+            .newCachedThreadPool(DaemonThreads.numbered("Spool Writer"));
+
+    private final OutputStream target;
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private int inMemory;
+
+    private FileChannel file;
+    private long fileWritePos;
+    private long fileReadPos;
+    private MappedByteBuffer writeSegment;
+    private long writeSegmentIndex = -1;
+    private MappedByteBuffer readSegment;
+    private long readSegmentIndex = -1;
+
+    private boolean eof;
+    private boolean draining;
+    private boolean discarding;
+    private boolean closed;
+
+    /**
+     * Sets the limits of all spools created afterwards.
+     *
+     * @param memory
+     *            number of bytes kept in memory per spool before overflowing to a file.
+     * @param file
+     *            maximum size of the spool file, writers block when reached.
+     */
+    public static void configure(int memory, long file) {
+        memoryLimit = memory;
+        fileLimit = file;
+    }
+
+    /**
+     * @param target
+     *            the stream to pass all data on to.
+     */
+    public SpoolingOutputStream(OutputStream target) {
+        this.target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (eof) {
+            throw new IOException("spool closed");
+        }
+        while (len > 0 && !discarding) {
+            int n;
+            if ((file == null || fileReadPos == fileWritePos) && inMemory < memoryLimit) {
+                n = queue(b, off, Math.min(len, memoryLimit - inMemory));
+            } else {
+                n = spill(b, off, len);
+            }
+            off += n;
+            len -= n;
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Queues data in memory.
+     */
+    private int queue(byte[] b, int off, int len) {
+        int n = Math.min(len, BufferPool.MAX_SIZE);
+        byte[] copy = BufferPool.acquire(n);
+        System.arraycopy(b, off, copy, 0, n);
+        chunks.add(ByteBuffer.wrap(copy, 0, n));
+        inMemory += n;
+        Metrics.counter("spool.memory").addAndGet(n);
+        return n;
+    }
+
+    /**
+     * Appends data to the spool file, which is created on first use. Memory data is always
+     * written before file data, so order is kept.
+     */
+    private int spill(byte[] b, int off, int len) throws IOException {
+        if (file == null) {
+            Path path = Files.createTempFile("rex-spool", ".tmp");
+            file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            fileWritePos = 0;
+            fileReadPos = 0;
+            Metrics.counter("spool.overflows").incrementAndGet();
+        }
+        while (fileWritePos >= fileLimit && !discarding) {
+            // back pressure: the producer waits for the writer.
+            Metrics.counter("spool.blocked").incrementAndGet();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for spool");
+            }
+        }
+        if (discarding) {
+            return len;
+        }
+
+        long index = fileWritePos / SEGMENT;
+        if (index != writeSegmentIndex) {
+            writeSegment = file.map(FileChannel.MapMode.READ_WRITE, index * SEGMENT, SEGMENT);
+            writeSegmentIndex = index;
+        }
+        int pos = (int) (fileWritePos % SEGMENT);
+        int n = (int) Math.min(Math.min(len, SEGMENT - pos), fileLimit - fileWritePos);
+        writeSegment.position(pos);
+        writeSegment.put(b, off, n);
+        fileWritePos += n;
+        Metrics.counter("spool.file").addAndGet(n);
+        return n;
+    }
+
+    /**
+     * Does not wait for the target, data is flushed by the writer once the spool runs empty.
+     */
+    @Override
+    public void flush() {
+        // nothing to do.
+    }
+
+    /**
+     * Closes the target once all data has been written. Does not block.
+     */
+    @Override
+    public synchronized void close() {
+        if (!eof) {
+            eof = true;
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Waits until all data written so far has been passed on (or discarded because the target
+     * failed).
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public synchronized void awaitDrained() throws InterruptedException {
+        while (draining) {
+            wait();
+        }
+    }
+
+    /**
+     * Discards all spooled and future data, fex. because the client is gone.
+     */
+    public synchronized void abort() {
+        discarding = true;
+        dropSpooled();
+        notifyAll();
+    }
+
+    private void scheduleDrain() {
+        if (!draining && (hasData() || (eof && !closed))) {
+            draining = true;
+            WRITERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    private boolean hasData() {
+        return !chunks.isEmpty() || (file != null && fileReadPos < fileWritePos);
+    }
+
+    /**
+     * Writes spooled data until the spool is empty. Closes the target once closed and all data
+     * has been written.
+     */
+    private void drain() {
+        byte[] buffer = null;
+        try {
+            for (;;) {
+                ByteBuffer chunk;
+                byte[] pooled = null;
+                boolean close = false;
+                boolean last;
+                synchronized (this) {
+                    chunk = chunks.poll();
+                    if (chunk != null) {
+                        pooled = chunk.array();
+                        inMemory -= chunk.limit();
+                        Metrics.counter("spool.memory").addAndGet(-chunk.limit());
+                    } else if (file != null && fileReadPos < fileWritePos) {
+                        if (buffer == null) {
+                            buffer = BufferPool.acquire(BufferPool.MAX_SIZE);
+                        }
+                        try {
+                            chunk = readFile(buffer);
+                        } catch (IOException e) {
+                            log.warn("cannot read spool file, discarding output: " + e);
+                            discarding = true;
+                            dropSpooled();
+                            continue;
+                        }
+                    } else if (eof && !closed) {
+                        closed = true;
+                        close = true;
+                    } else {
+                        draining = false;
+                        notifyAll();
+                        return;
+                    }
+                    last = !hasData();
+                    // the producer may wait for room in the file.
+                    notifyAll();
+                }
+
+                if (close) {
+                    closeTarget();
+                    continue;
+                }
+                try {
+                    if (!discarding) {
+                        target.write(chunk.array(), 0, chunk.limit());
+                        if (last) {
+                            target.flush();
+                        }
+                        Metrics.counter("spool.bytes").addAndGet(chunk.limit());
+                    }
+                } catch (IOException e) {
+                    // the target has been closed, nobody is interested in the rest.
+                    log.debug("cannot write spooled data: " + e);
+                    abort();
+                } finally {
+                    if (pooled != null) {
+                        BufferPool.release(pooled);
+                    }
+                }
+            }
+        } finally {
+            if (buffer != null) {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads the next part of the spool file into the given buffer. Once the reader caught up
+     * with the writer, the file is reused from its start.
+     */
+    private ByteBuffer readFile(byte[] buffer) throws IOException {
+        long index = fileReadPos / SEGMENT;
+        if (index != readSegmentIndex) {
+            readSegment = index == writeSegmentIndex ? writeSegment : file.map(
+                    FileChannel.MapMode.READ_ONLY, index * SEGMENT, SEGMENT);
+            readSegmentIndex = index;
+        }
+        int pos = (int) (fileReadPos % SEGMENT);
+        int n = (int) Math.min(Math.min(buffer.length, SEGMENT - pos), fileWritePos
+                - fileReadPos);
+        ByteBuffer view = readSegment.duplicate();
+        view.position(pos);
+        view.get(buffer, 0, n);
+        fileReadPos += n;
+        Metrics.counter("spool.file").addAndGet(-n);
+        if (fileReadPos == fileWritePos) {
+            fileReadPos = 0;
+            fileWritePos = 0;
+        }
+        return ByteBuffer.wrap(buffer, 0, n);
+    }
+
+    private void dropSpooled() {
+        for (ByteBuffer c : chunks) {
+            BufferPool.release(c.array());
+        }
+        Metrics.counter("spool.memory").addAndGet(-inMemory);
+        chunks.clear();
+        inMemory = 0;
+        if (file != null) {
+            Metrics.counter("spool.file").addAndGet(fileReadPos - fileWritePos);
+            fileReadPos = 0;
+            fileWritePos = 0;
+        }
+    }
+
+    private void closeTarget() {
+        try {
+            target.close();
+        } catch (IOException e) {
+            log.debug("cannot close spool target: " + e);
+        }
+        synchronized (this) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    log.debug("cannot delete spool file: " + e);
+                }
+                file = null;
+                writeSegment = null;
+                readSegment = null;
+                writeSegmentIndex = -1;
+                readSegmentIndex = -1;
+            }
+        }
+    }
+
+}
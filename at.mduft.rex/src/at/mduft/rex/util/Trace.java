@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The spans of a single request, identified by a random correlation id. The id is passed to
+ * executed processes as {@value #ENV_REQUEST_ID} and should be part of log lines concerning the
+ * request.
+ * <p>
+ * Spans are recorded for every request, as cheap as possible. Once a request {@link #finish()
+ * finished}, its spans are written to the trace file if the request was sampled or took longer
+ * than the configured threshold. The file uses the JSON array variant of the Chrome trace event
+ * format (the closing bracket is optional), and can be loaded into chrome://tracing or Perfetto.
+ * Each request is shown as its own track, spans nest by time.
+ * <p>
+ * The trace of the request handled by the current thread is available from {@link #current()},
+ * so code deep down the call chain can record {@link #span(String) spans} without having the
+ * trace passed along. Code running on other threads has to hold on to the {@link Trace}.
+ */
+public final class Trace {
+
+    private static final Logger log = LoggerFactory.getLogger(Trace.class);
+
+    /** name of the environment variable carrying the id of the request to processes */
+    public static final String ENV_REQUEST_ID = "REX_REQUEST_ID";
+
+    /** maximum number of finished traces waiting to be written, more are dropped */
+    private static final int MAX_PENDING = 1024;
+
+    /** offset to convert {@link System#nanoTime()} based micros to epoch micros */
+    private static final long EPOCH_OFFSET_MICROS = System.currentTimeMillis() * 1000
+            - System.nanoTime() / 1000;
+
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    private static final AtomicInteger serial = new AtomicInteger();
+
+    private static final Comparator<Span> BY_START = new Comparator<Span>() {
+        @Override
+        public int compare(Span a, Span b) {
+            return Long.compare(a.start, b.start);
+        }
+    };
+
+    /** returned if there is no current trace, records nothing */
+    private static final Span NOOP = new Span(null, null, null, 0);
+
+    private static volatile double sampleRate;
+    private static volatile long thresholdNanos = Long.MAX_VALUE;
+    private static ExecutorService writer;
+    private static File traceFile;
+    private static long maxSize;
+    private static Writer traceOut;
+
+    private final String id;
+    private final int track;
+    private final long startNanos;
+    private final List<Span> spans = new ArrayList<>();
+    private final Map<String, String> args = new LinkedHashMap<>();
+    private long endNanos = -1;
+
+    private Trace(long startNanos) {
+        this.id = String.format("%016x", ThreadLocalRandom.current().nextLong());
+        this.track = serial.incrementAndGet();
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Configures where and which traces are written. Tracing is disabled until called.
+     *
+     * @param file
+     *            the file to append traces to, <code>null</code> to disable writing traces.
+     * @param maxBytes
+     *            size of the file before it is rolled over (once, to <code>file.1</code>).
+     * @param sample
+     *            fraction of all requests to write, 0 to 1.
+     * @param thresholdMillis
+     *            requests taking at least that long are always written.
+     */
+    public static synchronized void configure(File file, long maxBytes, double sample,
+            long thresholdMillis) {
+        traceFile = file;
+        maxSize = maxBytes;
+        sampleRate = file == null ? 0 : sample;
+        thresholdNanos = file == null ? Long.MAX_VALUE : TimeUnit.MILLISECONDS
+                .toNanos(thresholdMillis);
+        if (file != null && writer == null) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_PENDING),
+                    DaemonThreads.named("Trace Writer"));
+        }
+    }
+
+    /**
+     * Starts a new trace. The trace is not {@link #attach(Trace) attached} to the current thread.
+     *
+     * @return the new {@link Trace}.
+     */
+    public static Trace begin() {
+        return new Trace(System.nanoTime());
+    }
+
+    /**
+     * @return the {@link Trace} attached to the current thread, <code>null</code> if none.
+     */
+    public static Trace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the id of the request handled by the current thread, for log messages. "-" if
+     *         there is no current trace.
+     */
+    public static String currentId() {
+        Trace trace = CURRENT.get();
+        return trace == null ? "-" : trace.id;
+    }
+
+    /**
+     * Attaches a trace to the current thread.
+     *
+     * @param trace
+     *            the {@link Trace} to attach, <code>null</code> to detach.
+     * @return the previously attached {@link Trace}, to be restored once done.
+     */
+    public static Trace attach(Trace trace) {
+        Trace previous = CURRENT.get();
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+        return previous;
+    }
+
+    /**
+     * Opens a span in the current thread's trace, use with try-with-resources. The span variable
+     * is usually not referenced in the block, so methods opening spans suppress the "try" lint
+     * warning.
+     *
+     * @param name
+     *            the name of the span
+     * @return the open {@link Span}, one that records nothing if there is no current trace.
+     */
+    public static Span span(String name) {
+        return span(name, null);
+    }
+
+    /**
+     * Opens a span in the current thread's trace, use with try-with-resources.
+     *
+     * @param name
+     *            the name of the span
+     * @param detail
+     *            additional information shown with the span, fex. the file checked.
+     * @return the open {@link Span}, one that records nothing if there is no current trace.
+     */
+    public static Span span(String name, String detail) {
+        Trace trace = CURRENT.get();
+        return trace == null ? NOOP : trace.open(name, detail);
+    }
+
+    /**
+     * @return the correlation id of the request.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Opens a span in this trace, use with try-with-resources.
+     *
+     * @param name
+     *            the name of the span
+     * @return the open {@link Span}.
+     */
+    public Span open(String name) {
+        return open(name, null);
+    }
+
+    private synchronized Span open(String name, String detail) {
+        Span span = new Span(this, name, detail, System.nanoTime());
+        if (endNanos < 0) {
+            spans.add(span);
+        }
+        return span;
+    }
+
+    /**
+     * Records a span that has already ended.
+     *
+     * @param name
+     *            the name of the span
+     * @param start
+     *            the start of the span as returned by {@link System#nanoTime()}.
+     * @param end
+     *            the end of the span as returned by {@link System#nanoTime()}.
+     */
+    public synchronized void record(String name, long start, long end) {
+        if (endNanos < 0) {
+            Span span = new Span(this, name, null, start);
+            span.end = end;
+            spans.add(span);
+        }
+    }
+
+    /**
+     * Records an instant event (a span without duration), fex. the first byte of output.
+     *
+     * @param name
+     *            the name of the event.
+     */
+    public void mark(String name) {
+        long now = System.nanoTime();
+        record(name, now, now);
+    }
+
+    /**
+     * Adds information about the whole request, fex. the command.
+     *
+     * @param key
+     *            the name of the information
+     * @param value
+     *            the value, converted to a string.
+     */
+    public synchronized void annotate(String key, Object value) {
+        args.put(key, String.valueOf(value));
+    }
+
+    /**
+     * Ends the request. Writes the trace if the request has been sampled or took longer than the
+     * threshold. Does nothing if already finished.
+     */
+    public void finish() {
+        final String json;
+        synchronized (this) {
+            if (endNanos >= 0) {
+                return;
+            }
+            endNanos = System.nanoTime();
+            long duration = endNanos - start();
+            boolean slow = duration >= thresholdNanos;
+            if (!slow && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                return;
+            }
+            if (slow) {
+                Metrics.counter("trace.slow").incrementAndGet();
+            }
+            json = toJson();
+        }
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    append(json);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.counter("trace.dropped").incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the start of the request, which may be before the trace has been created, fex.
+     *         when the authentication of the session is part of it.
+     */
+    private long start() {
+        long start = startNanos;
+        for (Span span : spans) {
+            start = Math.min(start, span.start);
+        }
+        return start;
+    }
+
+    private String toJson() {
+        long start = start();
+        StringBuilder b = new StringBuilder();
+        b.append("{\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": ").append(track)
+                .append(", \"args\": {\"name\": \"").append(id).append("\"}},\n");
+        Map<String, String> rootArgs = new LinkedHashMap<>();
+        rootArgs.put("id", id);
+        rootArgs.putAll(args);
+        event(b, "request", start, endNanos, rootArgs);
+        Collections.sort(spans, BY_START);
+        for (Span span : spans) {
+            Map<String, String> spanArgs = new LinkedHashMap<>();
+            if (span.detail != null) {
+                spanArgs.put("detail", span.detail);
+            }
+            // spans still open when the request ended, fex. because of a failure.
+            event(b, span.name, span.start, span.end < 0 ? endNanos : span.end, spanArgs);
+        }
+        return b.toString();
+    }
+
+    private void event(StringBuilder b, String name, long start, long end,
+            Map<String, String> eventArgs) {
+        b.append("{\"name\": \"").append(Json.escape(name)).append("\", \"ph\": \"")
+                .append(start == end ? "i\", \"s\": \"t" : "X").append("\", \"pid\": 1, \"tid\": ")
+                .append(track).append(", \"ts\": ").append(EPOCH_OFFSET_MICROS + start / 1000);
+        if (start != end) {
+            b.append(", \"dur\": ").append((end - start) / 1000);
+        }
+        b.append(", \"args\": {");
+        String sep = "";
+        for (Map.Entry<String, String> arg : eventArgs.entrySet()) {
+            b.append(sep).append('"').append(Json.escape(arg.getKey())).append("\": \"")
+                    .append(Json.escape(arg.getValue())).append('"');
+            sep = ", ";
+        }
+        b.append("}},\n");
+    }
+
+    /**
+     * Called on the writer thread only.
+     */
+    private static void append(String events) {
+        try {
+            if (traceOut != null && traceFile.length() > maxSize) {
+                traceOut.close();
+                traceOut = null;
+                Path path = traceFile.toPath();
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (traceOut == null) {
+                boolean fresh = traceFile.length() == 0;
+                traceOut = new OutputStreamWriter(new FileOutputStream(traceFile, true),
+                        StandardCharsets.UTF_8);
+                if (fresh) {
+                    traceOut.write("[\n");
+                }
+            }
+            traceOut.write(events);
+            traceOut.flush();
+            Metrics.counter("trace.written").incrementAndGet();
+        } catch (IOException e) {
+            log.warn("cannot write trace file " + traceFile + ": " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+
+    /**
+     * A part of a request. Ends when closed, closing it again does nothing.
+     */
+    public static final class Span implements AutoCloseable {
+
+        private final Trace trace;
+        private final String name;
+        private final String detail;
+        private final long start;
+        private long end = -1;
+
+        private Span(Trace trace, String name, String detail, long start) {
+            this.trace = trace;
+            this.name = name;
+            this.detail = detail;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (trace == null) {
+                return;
+            }
+            synchronized (trace) {
+                if (end < 0) {
+                    end = System.nanoTime();
+                }
+            }
+        }
+    }
+
+}
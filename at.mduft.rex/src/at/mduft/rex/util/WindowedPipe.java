@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ */
+package at.mduft.rex.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.sshd.common.channel.Window;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes data received on an SSH channel on to a (possibly slow) stream. Received data is queued
+ * without blocking the session's I/O thread, and written by a separate writer. The channel
+ * window is only re-opened for data that has actually been written, so a sender faster than the
+ * target is throttled by the SSH flow control, and the queue is bounded by the window size.
+ * <p>
+ * No thread is bound to an idle pipe: a writer is only scheduled while data is queued.
+ */
+public class WindowedPipe {
+
+    private static final Logger log = LoggerFactory.getLogger(WindowedPipe.class);
+
+    private static final ExecutorService WRITERS = Executors
+            .newCachedThreadPool(DaemonThreads.numbered("Pipe Writer"));
+
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private final Window window;
+    private final String metrics;
+    private OutputStream target;
+    private Runnable onClosed;
+    private int queued;
+    private volatile long bytesWritten;
+    private boolean eof;
+    private boolean draining;
+    private boolean discarding;
+
+    /**
+     * @param window
+     *            the local window of the channel data is received on
+     * @param metrics
+     *            prefix of the metrics to update: <code>.queued</code> holds the number of bytes
+     *            currently queued, <code>.bytes</code> counts the bytes written.
+     */
+    public WindowedPipe(Window window, String metrics) {
+        this.window = window;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connects the pipe to the target stream. Data received before is queued until then.
+     *
+     * @param target
+     *            the stream to write data to.
+     */
+    public synchronized void connect(OutputStream target) {
+        this.target = target;
+        scheduleDrain();
+    }
+
+    /**
+     * @param onClosed
+     *            called once the target has been closed after {@link #finish()}.
+     */
+    public synchronized void setOnClosed(Runnable onClosed) {
+        this.onClosed = onClosed;
+    }
+
+    /**
+     * Discards all queued and future data, fex. because the target is gone.
+     */
+    public void abort() {
+        int dropped;
+        synchronized (this) {
+            discarding = true;
+            dropped = dropQueued();
+        }
+        release(dropped);
+    }
+
+    /**
+     * @return the number of bytes written to the target so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Queues received data.
+     *
+     * @return the number of bytes to consume from the window right away, see
+     *         {@link org.apache.sshd.server.channel.ChannelDataReceiver#data}.
+     * @throws IOException
+     *             if the sender did not respect the window.
+     */
+    public int offer(byte[] buf, int start, int len) throws IOException {
+        synchronized (this) {
+            if (!discarding) {
+                // the sender cannot send more than the window allows, so this is bounded.
+                if (queued + len > window.getMaxSize()) {
+                    throw new IOException("sender exceeded the channel window");
+                }
+                byte[] copy = BufferPool.acquire(len);
+                System.arraycopy(buf, start, copy, 0, len);
+                chunks.add(ByteBuffer.wrap(copy, 0, len));
+                queued += len;
+                Metrics.counter(metrics + ".queued").addAndGet(len);
+                scheduleDrain();
+                // the window is adjusted once the data has been written.
+                return 0;
+            }
+        }
+        // consume right away, the sender must not get stuck on a closed window.
+        return len;
+    }
+
+    /**
+     * Signals the end of data. The target is closed once all queued data has been written.
+     */
+    public synchronized void finish() {
+        eof = true;
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (!draining && target != null && (!chunks.isEmpty() || eof)) {
+            draining = true;
+            WRITERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes queued data until the queue is empty. Closes the target once EOF has been received
+     * and all data has been written.
+     */
+    private void drain() {
+        for (;;) {
+            ByteBuffer chunk;
+            boolean last;
+            OutputStream out;
+            Runnable closed = null;
+            synchronized (this) {
+                chunk = chunks.poll();
+                last = chunks.isEmpty();
+                out = target;
+                if (chunk == null) {
+                    draining = false;
+                    if (!eof) {
+                        return;
+                    }
+                    // prevent scheduling again, the stream is closed below.
+                    target = null;
+                    eof = false;
+                    closed = onClosed;
+                }
+            }
+            if (chunk == null) {
+                closeQuietly(out);
+                if (closed != null) {
+                    closed.run();
+                }
+                return;
+            }
+
+            int written = chunk.limit();
+            try {
+                out.write(chunk.array(), 0, written);
+                if (last) {
+                    out.flush();
+                }
+                Metrics.counter(metrics + ".bytes").addAndGet(written);
+                bytesWritten += written;
+            } catch (IOException e) {
+                // the target has been closed, nobody is interested in the rest.
+                log.debug("cannot write to " + metrics + ": " + e);
+                synchronized (this) {
+                    discarding = true;
+                    written += dropQueued();
+                }
+            } finally {
+                BufferPool.release(chunk.array());
+            }
+            release(written);
+        }
+    }
+
+    private int dropQueued() {
+        int dropped = 0;
+        for (ByteBuffer c : chunks) {
+            dropped += c.limit();
+            BufferPool.release(c.array());
+        }
+        chunks.clear();
+        return dropped;
+    }
+
+    /**
+     * Gives the window for the given amount of data back to the sender.
+     */
+    private void release(int len) {
+        if (len == 0) {
+            return;
+        }
+        synchronized (this) {
+            queued -= len;
+        }
+        Metrics.counter(metrics + ".queued").addAndGet(-len);
+        try {
+            window.consumeAndCheck(len);
+        } catch (IOException e) {
+            log.debug("cannot adjust window: " + e);
+        }
+    }
+
+    private void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.debug("cannot close " + metrics + ": " + e);
+        }
+    }
+
+}
@@ -5,6 +5,10 @@ export REX_PORT=9000
 export REX_USER=rex
 export REX_ROOTS='C:\;/mnt/C,D:\;/work'
 
+# set to 1 to have the server gzip stdout/stderr of executed commands. saves
+#   bandwidth on slow links for verbose tools, costs some CPU on both sides.
+export REX_COMPRESS=${REX_COMPRESS:-0}
+
 # ATTENTION: all scripts use this variable to assure that the SSH options
 #   are the same for all connections. This is essential when sharing connections
 #   between calls (see ../README.md). The SendEnv='*' option that is on by
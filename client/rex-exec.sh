@@ -10,5 +10,20 @@ if [[ ${EXEC_DIR} != ${REX_ROOT}* ]]; then
     exit 1
 fi
 
+if [[ ${REX_COMPRESS} == 1 ]]; then
+    # ssh -q keeps ssh's own diagnostics out of the compressed stderr. stderr is decompressed
+    # from a FIFO by a background gzip, which is waited for, so the end of it is not lost.
+    fifo_dir=$(mktemp -d "${TMPDIR:-/tmp}/rex-exec.XXXXXX") || exit 1
+    trap 'rm -rf "${fifo_dir}"' EXIT
+    mkfifo "${fifo_dir}/stderr" || exit 1
+    gzip -dcf < "${fifo_dir}/stderr" >&2 &
+    stderr_pid=$!
+    ${SSH} -q ${REX_USER}@${REX_SERVER} -p ${REX_PORT} exec --compress --roots="${REX_ROOTS}" --pwd="${EXEC_DIR}" -- "${args[@]}" \
+        2> "${fifo_dir}/stderr" | gzip -dcf
+    status=${PIPESTATUS[0]}
+    wait ${stderr_pid}
+    exit ${status}
+fi
+
 ${SSH} ${REX_USER}@${REX_SERVER} -p ${REX_PORT} exec --roots="${REX_ROOTS}" --pwd="${EXEC_DIR}" -- "${args[@]}"
 
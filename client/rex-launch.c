@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) Salomon Automation GmbH
+ *
+ * Thin launcher for the REX client daemon (at.mduft.rex.client.ClientDaemon).
+ * Forwards a request, the environment and stdin to the daemon and replays
+ * stdout, stderr and the exit status of the remote command.
+ *
+ * Build: cc -O2 -o rex-launch rex-launch.c
+ *
+ * Usage: rex-launch exec <command> [args...]
+ *        rex-launch path [path-options...]
+ *
+ * The daemon is located using the state file $REX_DAEMON_STATE, which
+ * defaults to ~/.rex/daemon.
+ */
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <netinet/in.h>
+#include <poll.h>
+#include <signal.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/uio.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+#define FAILED 255
+
+extern char **environ;
+
+static void die(const char *msg) __attribute__((noreturn));
+
+static void die(const char *msg) {
+    fprintf(stderr, "rex-launch: %s\n", msg);
+    exit(FAILED);
+}
+
+static int write_fully(int fd, const char *data, size_t len) {
+    while (len > 0) {
+        ssize_t n = write(fd, data, len);
+        if (n < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            return -1;
+        }
+        data += n;
+        len -= (size_t) n;
+    }
+    return 0;
+}
+
+static int read_fully(int fd, char *data, size_t len) {
+    while (len > 0) {
+        ssize_t n = read(fd, data, len);
+        if (n < 0 && errno == EINTR) {
+            continue;
+        }
+        if (n <= 0) {
+            return -1;
+        }
+        data += n;
+        len -= (size_t) n;
+    }
+    return 0;
+}
+
+static void put_header(char *head, char type, size_t len) {
+    head[0] = type;
+    head[1] = (char) (len >> 24);
+    head[2] = (char) (len >> 16);
+    head[3] = (char) (len >> 8);
+    head[4] = (char) len;
+}
+
+static int send_frame(int fd, char type, const char *data, size_t len) {
+    char head[5];
+    put_header(head, type, len);
+    struct iovec iov[2];
+    iov[0].iov_base = head;
+    iov[0].iov_len = sizeof(head);
+    iov[1].iov_base = (char *) data;
+    iov[1].iov_len = len;
+
+    /* a single syscall in the common case, finish partial writes the slow way. */
+    ssize_t n = writev(fd, iov, 2);
+    if (n < 0 && errno != EINTR) {
+        return -1;
+    }
+    size_t done = n < 0 ? 0 : (size_t) n;
+    if (done < sizeof(head)) {
+        if (write_fully(fd, head + done, sizeof(head) - done) < 0) {
+            return -1;
+        }
+        done = sizeof(head);
+    }
+    return write_fully(fd, data + (done - sizeof(head)), len - (done - sizeof(head)));
+}
+
+static void send_string(int fd, char type, const char *s) {
+    if (send_frame(fd, type, s, strlen(s)) < 0) {
+        die("write failed");
+    }
+}
+
+static int connect_daemon(char *token, size_t token_len) {
+    char path[PATH_MAX];
+    char address[PATH_MAX];
+    const char *state = getenv("REX_DAEMON_STATE");
+    if (state == NULL) {
+        const char *home = getenv("HOME");
+        snprintf(path, sizeof(path), "%s/.rex/daemon", home ? home : "");
+        state = path;
+    }
+
+    FILE *f = fopen(state, "r");
+    if (f == NULL) {
+        die("daemon not running (no state file)");
+    }
+    if (fgets(address, sizeof(address), f) == NULL || fgets(token, (int) token_len, f) == NULL) {
+        die("invalid state file");
+    }
+    fclose(f);
+    address[strcspn(address, "\n")] = 0;
+    token[strcspn(token, "\n")] = 0;
+
+    int fd;
+    if (strncmp(address, "unix:", 5) == 0) {
+        struct sockaddr_un sa;
+        memset(&sa, 0, sizeof(sa));
+        sa.sun_family = AF_UNIX;
+        if (strlen(address + 5) >= sizeof(sa.sun_path)) {
+            die("daemon socket path too long");
+        }
+        memcpy(sa.sun_path, address + 5, strlen(address + 5));
+        fd = socket(AF_UNIX, SOCK_STREAM, 0);
+        if (fd < 0 || connect(fd, (struct sockaddr *) &sa, sizeof(sa)) < 0) {
+            die("cannot connect to daemon");
+        }
+    } else if (strncmp(address, "tcp:", 4) == 0) {
+        struct sockaddr_in sa;
+        memset(&sa, 0, sizeof(sa));
+        sa.sin_family = AF_INET;
+        sa.sin_port = htons((uint16_t) atoi(address + 4));
+        sa.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+        fd = socket(AF_INET, SOCK_STREAM, 0);
+        if (fd < 0 || connect(fd, (struct sockaddr *) &sa, sizeof(sa)) < 0) {
+            die("cannot connect to daemon");
+        }
+    } else {
+        die("invalid daemon address in state file");
+    }
+    return fd;
+}
+
+/* Reads one frame from the daemon and replays it. Returns the exit status once known, -1 otherwise. */
+static int handle_frame(int fd, char *buffer, size_t size) {
+    unsigned char head[5];
+    if (read_fully(fd, (char *) head, sizeof(head)) < 0) {
+        die("connection to daemon lost");
+    }
+    size_t len = ((size_t) head[1] << 24) | ((size_t) head[2] << 16) | ((size_t) head[3] << 8)
+            | head[4];
+    if (len > size || read_fully(fd, buffer, len) < 0) {
+        die("invalid frame from daemon");
+    }
+    switch (head[0]) {
+    case 'O':
+        if (write_fully(STDOUT_FILENO, buffer, len) < 0) {
+            die("write failed");
+        }
+        break;
+    case 'R':
+        if (write_fully(STDERR_FILENO, buffer, len) < 0) {
+            die("write failed");
+        }
+        break;
+    case 'X':
+        if (len != 4) {
+            die("invalid exit frame");
+        }
+        return ((unsigned char) buffer[0] << 24) | ((unsigned char) buffer[1] << 16)
+                | ((unsigned char) buffer[2] << 8) | (unsigned char) buffer[3];
+    default:
+        die("unexpected frame from daemon");
+    }
+    return -1;
+}
+
+int main(int argc, char **argv) {
+    static char buffer[1024 * 1024];
+    static char input[5 + 64 * 1024];
+    char token[256];
+    char cwd[PATH_MAX];
+
+    if (argc < 2 || (strcmp(argv[1], "exec") != 0 && strcmp(argv[1], "path") != 0)) {
+        fprintf(stderr, "usage: %s exec <command> [args...] | path [options...]\n", argv[0]);
+        return FAILED;
+    }
+    if (getcwd(cwd, sizeof(cwd)) == NULL) {
+        die("cannot determine working directory");
+    }
+
+    /* the daemon may close the connection while stdin is still being sent. */
+    signal(SIGPIPE, SIG_IGN);
+
+    /* with stdin closed, the connection to the daemon would take its place. */
+    if (fcntl(STDIN_FILENO, F_GETFD) < 0 && errno == EBADF
+            && open("/dev/null", O_RDONLY) != STDIN_FILENO) {
+        die("cannot open /dev/null");
+    }
+
+    int fd = connect_daemon(token, sizeof(token));
+    send_string(fd, 'T', token);
+    send_string(fd, 'K', argv[1]);
+    send_string(fd, 'P', cwd);
+    for (char **env = environ; *env != NULL; ++env) {
+        send_string(fd, 'V', *env);
+    }
+    for (int i = 2; i < argc; ++i) {
+        send_string(fd, 'A', argv[i]);
+    }
+    if (send_frame(fd, 'S', "", 0) < 0) {
+        die("write failed");
+    }
+
+    /*
+     * stdin frames are sent without blocking: the daemon may not take more input before the
+     * command's output has been read, so output is replayed while a frame is pending, and stdin
+     * is only read again once the frame has been sent.
+     */
+    struct pollfd fds[2];
+    fds[0].fd = fd;
+    fds[1].events = POLLIN;
+    int reading = 1;
+    size_t pending = 0;
+    size_t sent = 0;
+
+    for (;;) {
+        fds[0].events = (short) (POLLIN | (sent < pending ? POLLOUT : 0));
+        /* negative descriptors are ignored by poll. */
+        fds[1].fd = reading && sent == pending ? STDIN_FILENO : -1;
+        if (poll(fds, 2, -1) < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            die("poll failed");
+        }
+        if (fds[0].revents & POLLNVAL) {
+            die("connection to daemon lost");
+        }
+        if (fds[1].revents & POLLNVAL) {
+            /* stdin is not open at all, there is no input. */
+            put_header(input, 'E', 0);
+            pending = 5;
+            sent = 0;
+            reading = 0;
+        } else if (fds[1].revents & (POLLIN | POLLHUP | POLLERR)) {
+            ssize_t n = read(STDIN_FILENO, input + 5, sizeof(input) - 5);
+            if (n > 0) {
+                put_header(input, 'I', (size_t) n);
+                pending = 5 + (size_t) n;
+                sent = 0;
+            } else if (n == 0 || errno != EINTR) {
+                put_header(input, 'E', 0);
+                pending = 5;
+                sent = 0;
+                reading = 0;
+            }
+        }
+        if (sent < pending) {
+            ssize_t n = send(fd, input + sent, pending - sent, MSG_DONTWAIT);
+            if (n >= 0) {
+                sent += (size_t) n;
+            } else if (errno != EAGAIN && errno != EWOULDBLOCK && errno != EINTR) {
+                /* the command finished without reading all input, collect its status. */
+                sent = pending;
+                reading = 0;
+            }
+        }
+        if (fds[0].revents & (POLLIN | POLLHUP | POLLERR)) {
+            int status = handle_frame(fd, buffer, sizeof(buffer));
+            if (status >= 0) {
+                return status;
+            }
+        }
+    }
+}